@@ -0,0 +1,106 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import no.priv.garshol.duke.Cleaner;
+import no.priv.garshol.duke.DataGenerator;
+import no.priv.garshol.duke.cleaners.ChainedCleaner;
+import no.priv.garshol.duke.cleaners.GenericValueCleaner;
+import no.priv.garshol.duke.cleaners.LowerCaseNormalizeCleaner;
+import no.priv.garshol.duke.cleaners.RegexpCleaner;
+import no.priv.garshol.duke.cleaners.TrimCleaner;
+import no.priv.garshol.duke.utils.ObjectUtils;
+
+/**
+ * Measures the time taken to clean a value with each of the built-in
+ * cleaners. MappingFileCleaner is left out, since it needs a mapping
+ * file, and what it costs depends entirely on that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CleanerBenchmark {
+  @Param({"ChainedCleaner", "DigitsOnlyCleaner", "FamilyCommaGivenCleaner",
+          "GenericValueCleaner", "HTMLCleaner", "LowerCaseNormalizeCleaner",
+          "NorwegianAddressCleaner", "NorwegianCompanyNameCleaner",
+          "PersonNameCleaner", "PhoneNumberCleaner", "RegexpCleaner",
+          "StripNontextCharacters", "TrimCleaner"})
+  public String cleaner;
+
+  @Param({"1000"})
+  public int values;
+
+  @Param({"1"})
+  public long seed;
+
+  private Cleaner theCleaner;
+  private String[] data;
+  private int pos;
+
+  @Setup
+  public void setup() {
+    theCleaner = makeCleaner(cleaner);
+
+    // values as they might look in a source: messy case and spacing
+    DataGenerator generator = SyntheticData.makeGenerator(seed);
+    DataGenerator.Kind kind = getKind(cleaner);
+    data = new String[values];
+    for (int ix = 0; ix < values; ix++) {
+      String value = generator.makeValue(kind);
+      if (ix % 2 == 0)
+        value = " " + value.toUpperCase() + "  ";
+      data[ix] = value;
+    }
+  }
+
+  @Benchmark
+  public String clean() {
+    pos = (pos + 1) % data.length;
+    return theCleaner.clean(data[pos]);
+  }
+
+  private static Cleaner makeCleaner(String name) {
+    if (name.equals("ChainedCleaner"))
+      return new ChainedCleaner(new Cleaner[] {
+          new TrimCleaner(), new LowerCaseNormalizeCleaner() });
+    else if (name.equals("GenericValueCleaner")) {
+      GenericValueCleaner cleaner = new GenericValueCleaner();
+      cleaner.setGeneric("99999999");
+      return cleaner;
+    } else if (name.equals("RegexpCleaner")) {
+      RegexpCleaner cleaner = new RegexpCleaner();
+      cleaner.setRegexp("(\\d+)");
+      return cleaner;
+    }
+    return (Cleaner) ObjectUtils.instantiate("no.priv.garshol.duke.cleaners." +
+                                             name);
+  }
+
+  private static DataGenerator.Kind getKind(String cleaner) {
+    if (cleaner.equals("PhoneNumberCleaner") ||
+        cleaner.equals("DigitsOnlyCleaner") ||
+        cleaner.equals("GenericValueCleaner"))
+      return DataGenerator.Kind.CODE;
+    else if (cleaner.equals("NorwegianAddressCleaner") ||
+             cleaner.equals("RegexpCleaner"))
+      return DataGenerator.Kind.TEXT;
+    else
+      return DataGenerator.Kind.NAME;
+  }
+}
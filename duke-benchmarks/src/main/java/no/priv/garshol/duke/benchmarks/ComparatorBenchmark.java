@@ -0,0 +1,73 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.DataGenerator;
+import no.priv.garshol.duke.utils.ObjectUtils;
+
+/**
+ * Measures the time taken to compare a pair of values with each of
+ * the built-in comparators. Half the pairs are near-duplicates, the
+ * other half unrelated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComparatorBenchmark {
+  @Param({"DiceCoefficientComparator", "DifferentComparator",
+          "ExactComparator", "GeopositionComparator",
+          "JaccardIndexComparator", "JaroWinkler", "JaroWinklerTokenized",
+          "Levenshtein", "LongestCommonSubstring", "MetaphoneComparator",
+          "NorphoneComparator", "NumericComparator", "PersonNameComparator",
+          "QGramComparator", "SoundexComparator", "WeightedLevenshtein"})
+  public String comparator;
+
+  @Param({"1000"})
+  public int pairs;
+
+  @Param({"1"})
+  public long seed;
+
+  private Comparator comp;
+  private String[] values;
+  private int pos;
+
+  @Setup
+  public void setup() {
+    comp = (Comparator) ObjectUtils.instantiate("no.priv.garshol.duke." +
+                                                "comparators." + comparator);
+    values = SyntheticData.makeValuePairs(seed, getKind(comparator), pairs);
+  }
+
+  @Benchmark
+  public double compare() {
+    pos = (pos + 2) % values.length;
+    return comp.compare(values[pos], values[pos + 1]);
+  }
+
+  private static DataGenerator.Kind getKind(String comparator) {
+    if (comparator.equals("GeopositionComparator"))
+      return DataGenerator.Kind.GEO;
+    else if (comparator.equals("NumericComparator"))
+      return DataGenerator.Kind.NUMBER;
+    else
+      return DataGenerator.Kind.NAME;
+  }
+}
@@ -0,0 +1,46 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.databases.InMemoryBlockingDatabase;
+import no.priv.garshol.duke.databases.KeyValueDatabase;
+import no.priv.garshol.duke.databases.LuceneDatabase;
+import no.priv.garshol.duke.databases.MapDBBlockingDatabase;
+import no.priv.garshol.duke.databases.ShardedLuceneDatabase;
+
+/**
+ * Creates the databases the benchmarks are run against. All of them
+ * are kept in memory, so that disk speed doesn't affect the results.
+ */
+class Databases {
+
+  /**
+   * Returns a new, empty database of the given kind.
+   * @param kind One of "lucene", "sharded", "keyvalue", "blocking",
+   *             and "mapdb".
+   */
+  public static Database create(String kind, Configuration config) {
+    Database db;
+    if (kind.equals("lucene"))
+      db = new LuceneDatabase();
+    else if (kind.equals("sharded"))
+      db = new ShardedLuceneDatabase();
+    else if (kind.equals("keyvalue"))
+      db = new KeyValueDatabase();
+    else if (kind.equals("blocking")) {
+      InMemoryBlockingDatabase blocking = new InMemoryBlockingDatabase();
+      blocking.setKeyFunctions(SyntheticData.makeKeyFunctions());
+      db = blocking;
+    } else if (kind.equals("mapdb")) {
+      MapDBBlockingDatabase mapdb = new MapDBBlockingDatabase();
+      mapdb.setKeyFunctions(SyntheticData.makeKeyFunctions());
+      db = mapdb;
+    } else
+      throw new IllegalArgumentException("Unknown database: " + kind);
+
+    db.setConfiguration(config);
+    db.setOverwrite(true);
+    return db;
+  }
+}
@@ -0,0 +1,64 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Record;
+
+/**
+ * Measures the time taken to index the whole synthetic data set into
+ * a new database and commit it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+  @Param({"lucene", "sharded", "keyvalue", "blocking", "mapdb"})
+  public String database;
+
+  @Param({"10000"})
+  public int size;
+
+  @Param({"0.2"})
+  public double duprate;
+
+  @Param({"1"})
+  public long seed;
+
+  private Configuration config;
+  private List<Record> records;
+
+  @Setup
+  public void setup() {
+    config = SyntheticData.makeConfiguration();
+    records = SyntheticData.makeRecords(seed, size, duprate);
+  }
+
+  @Benchmark
+  public Database index() {
+    Database db = Databases.create(database, config);
+    for (Record record : records)
+      db.index(record);
+    db.commit();
+    db.close();
+    return db;
+  }
+}
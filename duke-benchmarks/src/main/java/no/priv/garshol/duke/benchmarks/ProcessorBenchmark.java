@@ -0,0 +1,82 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.IndexedRecord;
+import no.priv.garshol.duke.Processor;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.databases.InMemoryDatabase;
+
+/**
+ * Measures the time taken by Processor.compare to compare a pair of
+ * records, with and without bounded comparison and indexed records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+  @Param({"false", "true"})
+  public boolean bounded;
+
+  @Param({"false", "true"})
+  public boolean indexed;
+
+  @Param({"1000"})
+  public int pairs;
+
+  @Param({"1"})
+  public long seed;
+
+  private Configuration config;
+  private Processor processor;
+  private Record[] records;
+  private double threshold;
+  private int pos;
+
+  @Setup
+  public void setup() {
+    config = SyntheticData.makeConfiguration();
+    processor = new Processor(config, new InMemoryDatabase());
+    threshold = config.getMaybeThreshold();
+
+    List<Record> list = SyntheticData.makeRecordPairs(seed, pairs);
+    records = new Record[list.size()];
+    for (int ix = 0; ix < records.length; ix++) {
+      records[ix] = list.get(ix);
+      if (indexed)
+        records[ix] = IndexedRecord.copyOf(records[ix], config);
+    }
+  }
+
+  @TearDown
+  public void teardown() {
+    processor.close();
+  }
+
+  @Benchmark
+  public double compare() {
+    pos = (pos + 2) % records.length;
+    if (bounded)
+      return processor.compare(records[pos], records[pos + 1], threshold);
+    return processor.compare(records[pos], records[pos + 1]);
+  }
+}
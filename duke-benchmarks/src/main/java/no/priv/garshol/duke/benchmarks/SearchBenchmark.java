@@ -0,0 +1,73 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Record;
+
+/**
+ * Measures the time taken by findCandidateMatches to look up a record
+ * in a database holding the whole synthetic data set.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+  @Param({"lucene", "sharded", "keyvalue", "blocking", "mapdb"})
+  public String database;
+
+  @Param({"10000"})
+  public int size;
+
+  @Param({"0.2"})
+  public double duprate;
+
+  @Param({"1"})
+  public long seed;
+
+  private Database db;
+  private Record[] records;
+  private int pos;
+
+  @Setup
+  public void setup() {
+    Configuration config = SyntheticData.makeConfiguration();
+    List<Record> list = SyntheticData.makeRecords(seed, size, duprate);
+    db = Databases.create(database, config);
+    for (Record record : list)
+      db.index(record);
+    db.commit();
+    records = list.toArray(new Record[list.size()]);
+  }
+
+  @TearDown
+  public void teardown() {
+    db.close();
+  }
+
+  @Benchmark
+  public Collection<Record> findCandidateMatches() {
+    pos = (pos + 1) % records.length;
+    return db.findCandidateMatches(records[pos]);
+  }
+}
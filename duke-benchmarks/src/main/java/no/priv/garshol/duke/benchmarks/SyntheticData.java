@@ -0,0 +1,144 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.ConfigurationImpl;
+import no.priv.garshol.duke.DataGenerator;
+import no.priv.garshol.duke.DukeException;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.comparators.ExactComparator;
+import no.priv.garshol.duke.comparators.GeopositionComparator;
+import no.priv.garshol.duke.comparators.JaroWinklerTokenized;
+import no.priv.garshol.duke.comparators.Levenshtein;
+import no.priv.garshol.duke.comparators.NumericComparator;
+import no.priv.garshol.duke.databases.AbstractKeyFunction;
+import no.priv.garshol.duke.databases.KeyFunction;
+
+/**
+ * The configuration, key functions, and data used by the
+ * benchmarks. The data is made by DataGenerator, and the same seed
+ * always produces the same data, so that results from different
+ * releases and settings can be compared.
+ */
+public class SyntheticData {
+
+  /**
+   * Makes the given number of records.
+   * @param duprate The fraction of records which are noisy copies of
+   *                an earlier record.
+   */
+  public static List<Record> makeRecords(long seed, int count,
+                                         double duprate) {
+    Configuration config = makeConfiguration();
+    DataGenerator generator = new DataGenerator(config, seed);
+    generator.setDuplicateRate(duprate);
+    DataGenerator.RecordCollector collector =
+      new DataGenerator.RecordCollector(config);
+    try {
+      generator.generate(count, collector, null);
+    } catch (IOException e) {
+      throw new DukeException(e); // can't happen, we're not writing
+    }
+    return collector.getRecords();
+  }
+
+  /**
+   * Makes pairs of records, as a list of length 2 * count. Half the
+   * pairs are a record and a noisy copy of it, the other half are
+   * unrelated records.
+   */
+  public static List<Record> makeRecordPairs(long seed, int count) {
+    Configuration config = makeConfiguration();
+    DataGenerator.RecordCollector collector =
+      new DataGenerator.RecordCollector(config);
+    try {
+      new DataGenerator(config, seed).generatePairs(count, collector);
+    } catch (IOException e) {
+      throw new DukeException(e); // can't happen, we're not writing
+    }
+    return collector.getRecords();
+  }
+
+  /**
+   * Makes pairs of values of the given kind, as an array of length
+   * 2 * count. Half the pairs are a value and a noisy copy of it, the
+   * other half are unrelated values.
+   */
+  public static String[] makeValuePairs(long seed, DataGenerator.Kind kind,
+                                        int count) {
+    DataGenerator generator = makeGenerator(seed);
+    String[] values = new String[count * 2];
+    for (int ix = 0; ix < count; ix++) {
+      values[ix * 2] = generator.makeValue(kind);
+      if (ix % 2 == 0)
+        values[ix * 2 + 1] = generator.addNoise(kind, values[ix * 2]);
+      else
+        values[ix * 2 + 1] = generator.makeValue(kind);
+    }
+    return values;
+  }
+
+  /**
+   * Returns a generator for the benchmark configuration.
+   */
+  public static DataGenerator makeGenerator(long seed) {
+    return new DataGenerator(makeConfiguration(), seed);
+  }
+
+  /**
+   * Returns a configuration suitable for matching the generated
+   * records. Databases are not set.
+   */
+  public static Configuration makeConfiguration() {
+    List<Property> props = new ArrayList();
+    props.add(new PropertyImpl("ID"));
+    props.add(new PropertyImpl("NAME", new JaroWinklerTokenized(), 0.2, 0.9));
+    props.add(new PropertyImpl("ADDRESS", new Levenshtein(), 0.3, 0.8));
+    props.add(new PropertyImpl("EMAIL", new ExactComparator(), 0.4, 0.9));
+    props.add(new PropertyImpl("PHONE", new ExactComparator(), 0.3, 0.85));
+    props.add(new PropertyImpl("GEO", new GeopositionComparator(), 0.3, 0.7));
+    props.add(new PropertyImpl("AGE", new NumericComparator(), 0.4, 0.6));
+
+    // searching on these makes no sense
+    props.get(3).setLookupBehaviour(Property.Lookup.FALSE); // EMAIL
+    props.get(5).setLookupBehaviour(Property.Lookup.FALSE); // GEO
+    props.get(6).setLookupBehaviour(Property.Lookup.FALSE); // AGE
+
+    ConfigurationImpl config = new ConfigurationImpl();
+    config.setThreshold(0.85); // must be set before lookups are computed
+    config.setMaybeThreshold(0.7);
+    config.setProperties(props);
+    return config;
+  }
+
+  /**
+   * Returns key functions suitable for blocking the generated records.
+   */
+  public static Collection<KeyFunction> makeKeyFunctions() {
+    Collection<KeyFunction> functions = new ArrayList();
+    functions.add(new FamilyNameKey());
+    functions.add(new PhoneKey());
+    return functions;
+  }
+
+  // ===== KEY FUNCTIONS
+
+  static class FamilyNameKey extends AbstractKeyFunction {
+    public String makeKey(Record record) {
+      return lastLongerThan(record.getValue("NAME"), 2);
+    }
+  }
+
+  static class PhoneKey extends AbstractKeyFunction {
+    public String makeKey(Record record) {
+      return allDigits(record.getValue("PHONE"));
+    }
+  }
+}
@@ -0,0 +1,512 @@
+
+package no.priv.garshol.duke;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributeListImpl;
+
+import no.priv.garshol.duke.databases.KeyFunction;
+import no.priv.garshol.duke.databases.PropertyKeyFunction;
+import no.priv.garshol.duke.databases.InMemoryBlockingDatabase;
+import no.priv.garshol.duke.utils.XMLPrettyPrinter;
+import no.priv.garshol.duke.utils.CommandLineParser;
+import no.priv.garshol.duke.utils.LinkDatabaseUtils;
+
+/**
+ * Finds good key functions and window sizes for the blocking
+ * databases by trying them out against a test file. Each blocking
+ * configuration is scored on pair completeness (the share of the
+ * true matches in the test file that end up as candidates) and
+ * reduction ratio (the share of all possible comparisons that are
+ * avoided).
+ *
+ * <p>First every single PropertyKeyFunction over the non-ID
+ * properties is tried, then combinations of the best of them, since
+ * using several key functions catches matches that any one of them
+ * would miss.
+ * @since 1.4
+ */
+public class BlockingKeyLearner {
+  private static final int[] LENGTHS = { 0, 3, 5 };
+  private Configuration config;
+  private List<Record> records; // the records to index
+  private List<Record> queries; // the records to find candidates for
+  private Map<String, Set<String>> matches; // id -> ids of true matches
+  private int truepairs;
+  private long possible; // number of comparisons without blocking
+
+  // settings
+  private int[] window_sizes;
+  private int max_functions;
+  private int beam;
+  private double min_completeness;
+
+  public BlockingKeyLearner(Configuration config, LinkDatabase testdb) {
+    this.config = config;
+    this.window_sizes = new int[] { 1, 3, 5, 10, 20 };
+    this.max_functions = 2;
+    this.beam = 8;
+    loadRecords();
+    loadMatches(testdb);
+  }
+
+  /**
+   * Sets the window sizes to try. Default 1, 3, 5, 10, and 20.
+   */
+  public void setWindowSizes(int[] window_sizes) {
+    this.window_sizes = window_sizes;
+  }
+
+  /**
+   * Sets the largest number of key functions to combine. Default 2.
+   */
+  public void setMaxFunctions(int max_functions) {
+    this.max_functions = max_functions;
+  }
+
+  /**
+   * Sets the number of best single key functions that are combined.
+   * Default 8.
+   */
+  public void setBeam(int beam) {
+    this.beam = beam;
+  }
+
+  /**
+   * If set, the best configuration is the one with the highest
+   * reduction ratio among those with at least this pair completeness.
+   * Otherwise it's the one with the best harmonic mean of the two.
+   */
+  public void setMinCompleteness(double min_completeness) {
+    this.min_completeness = min_completeness;
+  }
+
+  /**
+   * Returns the number of true matches in the test file where both
+   * records were found in the data.
+   */
+  public int getTruePairs() {
+    return truepairs;
+  }
+
+  /**
+   * Tries out the blocking configurations, and returns the results,
+   * best first.
+   */
+  public List<Result> run() {
+    List<Result> results = new ArrayList();
+
+    // first try each key function on its own
+    List<Result> singles = new ArrayList();
+    for (KeyFunction function : makeKeyFunctions()) {
+      List<KeyFunction> functions = Collections.singletonList(function);
+      List<Result> tried = evaluate(functions);
+      results.addAll(tried);
+      singles.add(Collections.max(tried, new ResultComparator()));
+    }
+
+    // then combinations of the best ones
+    Collections.sort(singles, new ResultComparator());
+    Collections.reverse(singles);
+    List<KeyFunction> best = new ArrayList();
+    for (int ix = 0; ix < Math.min(beam, singles.size()); ix++)
+      best.add(singles.get(ix).functions.get(0));
+    combine(results, best, new ArrayList(), 0);
+
+    Collections.sort(results, new ResultComparator());
+    Collections.reverse(results);
+    markParetoFront(results);
+    return results;
+  }
+
+  /**
+   * Writes the configuration as the XML for the database and its key
+   * functions, for pasting into a configuration file.
+   */
+  public void writeConfig(Result result, OutputStream out)
+    throws IOException {
+    XMLPrettyPrinter pp = new XMLPrettyPrinter(out);
+    pp.startDocument();
+    pp.startElement("duke", null);
+
+    StringBuilder names = new StringBuilder();
+    for (int ix = 0; ix < result.functions.size(); ix++) {
+      PropertyKeyFunction function =
+        (PropertyKeyFunction) result.functions.get(ix);
+      String name = "key" + (ix + 1);
+      names.append(ix == 0 ? "" : " ").append(name);
+
+      AttributeListImpl atts = new AttributeListImpl();
+      atts.addAttribute("class", "CDATA", PropertyKeyFunction.class.getName());
+      atts.addAttribute("name", "CDATA", name);
+      pp.startElement("object", atts);
+      writeParam(pp, "property", function.getProperty());
+      writeParam(pp, "part", function.getPart().toString().toLowerCase());
+      if (function.getLength() > 0)
+        writeParam(pp, "length", "" + function.getLength());
+      pp.endElement("object");
+    }
+
+    AttributeListImpl atts = new AttributeListImpl();
+    atts.addAttribute("class", "CDATA",
+                      InMemoryBlockingDatabase.class.getName());
+    pp.startElement("database", atts);
+    writeParam(pp, "window-size", "" + result.window_size);
+    writeParam(pp, "key-functions", names.toString());
+    pp.endElement("database");
+
+    pp.endElement("duke");
+    pp.endDocument();
+  }
+
+  // ----- INTERNALS
+
+  private void loadRecords() {
+    records = new ArrayList();
+    if (config.isDeduplicationMode()) {
+      readRecords(config.getDataSources(), records);
+      queries = records;
+      possible = (long) records.size() * (records.size() - 1);
+    } else {
+      readRecords(config.getDataSources(1), records);
+      queries = new ArrayList();
+      readRecords(config.getDataSources(2), queries);
+      possible = (long) records.size() * queries.size();
+    }
+  }
+
+  private void readRecords(Collection<DataSource> sources,
+                           List<Record> records) {
+    for (DataSource src : sources) {
+      RecordIterator it = src.getRecords();
+      while (it.hasNext())
+        records.add(it.next());
+      it.close();
+    }
+  }
+
+  // keeps only the matches where we have both records
+  private void loadMatches(LinkDatabase testdb) {
+    Set<String> ids = new HashSet();
+    for (Record record : records)
+      ids.add(getId(record));
+    Set<String> queryids = ids;
+    if (queries != records) {
+      queryids = new HashSet();
+      for (Record record : queries)
+        queryids.add(getId(record));
+    }
+
+    matches = new HashMap();
+    for (Link link : testdb.getAllLinks()) {
+      if (link.getKind() != LinkKind.SAME)
+        continue;
+      String id1 = link.getID1();
+      String id2 = link.getID2();
+      if (!(ids.contains(id1) && queryids.contains(id2)) &&
+          !(ids.contains(id2) && queryids.contains(id1)))
+        continue;
+
+      addMatch(id1, id2);
+      addMatch(id2, id1);
+      truepairs++;
+    }
+  }
+
+  private void addMatch(String id1, String id2) {
+    Set<String> ids = matches.get(id1);
+    if (ids == null) {
+      ids = new HashSet();
+      matches.put(id1, ids);
+    }
+    ids.add(id2);
+  }
+
+  private Collection<KeyFunction> makeKeyFunctions() {
+    Collection<KeyFunction> functions = new ArrayList();
+    for (Property prop : config.getProperties()) {
+      if (prop.isIdProperty() || prop.isIgnoreProperty())
+        continue;
+      for (PropertyKeyFunction.Part part : PropertyKeyFunction.Part.values())
+        for (int ix = 0; ix < LENGTHS.length; ix++)
+          functions.add(new PropertyKeyFunction(prop.getName(), part,
+                                                LENGTHS[ix]));
+    }
+    return functions;
+  }
+
+  // tries all combinations of 2 to max_functions of the functions
+  private void combine(List<Result> results, List<KeyFunction> functions,
+                       List<KeyFunction> chosen, int start) {
+    if (chosen.size() > 1)
+      results.addAll(evaluate(chosen));
+    if (chosen.size() == max_functions)
+      return;
+
+    for (int ix = start; ix < functions.size(); ix++) {
+      List<KeyFunction> next = new ArrayList(chosen);
+      next.add(functions.get(ix));
+      combine(results, functions, next, ix + 1);
+    }
+  }
+
+  /**
+   * Indexes all records with the key functions, then evaluates each
+   * window size. The window size doesn't affect indexing, so there's
+   * no need to index again for each one.
+   */
+  private List<Result> evaluate(List<KeyFunction> functions) {
+    InMemoryBlockingDatabase db = new InMemoryBlockingDatabase();
+    db.setConfiguration(config);
+    db.setKeyFunctions(functions);
+    for (Record record : records)
+      db.index(record);
+    db.commit();
+
+    List<Result> results = new ArrayList();
+    for (int ix = 0; ix < window_sizes.length; ix++) {
+      db.setWindowSize(window_sizes[ix]);
+      results.add(evaluate(db, functions, window_sizes[ix]));
+    }
+    return results;
+  }
+
+  private Result evaluate(Database db, List<KeyFunction> functions,
+                          int window_size) {
+    long comparisons = 0;
+    Set<String> found = new HashSet();
+    for (Record query : queries) {
+      String queryid = getId(query);
+      Set<String> truematches = matches.get(queryid);
+      for (Record candidate : db.findCandidateMatches(query)) {
+        String id = getId(candidate);
+        if (id.equals(queryid))
+          continue;
+        comparisons++;
+        if (truematches != null && truematches.contains(id))
+          found.add(queryid.compareTo(id) < 0 ?
+                    queryid + " " + id : id + " " + queryid);
+      }
+    }
+
+    Result result = new Result(functions, window_size);
+    result.comparisons = comparisons;
+    result.completeness = truepairs == 0 ? 0.0 :
+      found.size() / (double) truepairs;
+    result.reduction = possible == 0 ? 0.0 :
+      1.0 - (comparisons / (double) possible);
+    return result;
+  }
+
+  // results must be sorted best first
+  private void markParetoFront(List<Result> results) {
+    for (Result result : results) {
+      result.pareto = true;
+      for (Result other : results) {
+        if (other.completeness >= result.completeness &&
+            other.reduction >= result.reduction &&
+            (other.completeness > result.completeness ||
+             other.reduction > result.reduction)) {
+          result.pareto = false;
+          break;
+        }
+      }
+    }
+  }
+
+  private String getId(Record record) {
+    for (Property idprop : config.getIdentityProperties()) {
+      String id = record.getValue(idprop.getName());
+      if (id != null)
+        return id;
+    }
+    throw new DukeException("Record has no ID: " + record);
+  }
+
+  private static void writeParam(XMLPrettyPrinter pp, String name,
+                                 String value) {
+    AttributeListImpl atts = new AttributeListImpl();
+    atts.addAttribute("name", "CDATA", name);
+    atts.addAttribute("value", "CDATA", value);
+    pp.startElement("param", atts);
+    pp.endElement("param");
+  }
+
+  /**
+   * The score of a single blocking configuration.
+   */
+  public static class Result {
+    private List<KeyFunction> functions;
+    private int window_size;
+    private double completeness;
+    private double reduction;
+    private long comparisons;
+    private boolean pareto;
+
+    public Result(List<KeyFunction> functions, int window_size) {
+      this.functions = functions;
+      this.window_size = window_size;
+    }
+
+    public List<KeyFunction> getKeyFunctions() {
+      return functions;
+    }
+
+    public int getWindowSize() {
+      return window_size;
+    }
+
+    /**
+     * Returns the share of the true matches which were found as
+     * candidates.
+     */
+    public double getPairCompleteness() {
+      return completeness;
+    }
+
+    /**
+     * Returns the share of all possible comparisons which were
+     * avoided.
+     */
+    public double getReductionRatio() {
+      return reduction;
+    }
+
+    public long getComparisons() {
+      return comparisons;
+    }
+
+    /**
+     * Returns the harmonic mean of pair completeness and reduction
+     * ratio.
+     */
+    public double getFMeasure() {
+      if (completeness + reduction == 0.0)
+        return 0.0;
+      return 2 * completeness * reduction / (completeness + reduction);
+    }
+
+    /**
+     * Returns true iff no other result is better on both pair
+     * completeness and reduction ratio.
+     */
+    public boolean isParetoOptimal() {
+      return pareto;
+    }
+
+    public String toString() {
+      return "PC " + format(completeness) + "  RR " + format(reduction) +
+        "  comparisons " + comparisons + "  window " + window_size +
+        "  " + functions;
+    }
+
+    private static String format(double value) {
+      return String.format("%.4f", value);
+    }
+  }
+
+  // orders results from worst to best
+  private class ResultComparator implements java.util.Comparator<Result> {
+    public int compare(Result r1, Result r2) {
+      double score1 = score(r1);
+      double score2 = score(r2);
+      if (score1 != score2)
+        return Double.compare(score1, score2);
+      // on ties, the one with fewer comparisons is better
+      return Long.compare(r2.comparisons, r1.comparisons);
+    }
+
+    private double score(Result result) {
+      if (min_completeness == 0.0)
+        return result.getFMeasure();
+      if (result.completeness < min_completeness)
+        return result.completeness - 1.0; // always below the others
+      return result.reduction;
+    }
+  }
+
+  // ----- COMMAND-LINE INTERFACE
+
+  public static void main(String[] argv) throws IOException, SAXException {
+    CommandLineParser parser = new CommandLineParser();
+    parser.setMinimumArguments(2);
+    parser.setMaximumArguments(2);
+    parser.addStringOption("output", 'O');
+    parser.addStringOption("max-functions", 'F');
+    parser.addStringOption("min-completeness", 'C');
+    parser.addStringOption("windows", 'W');
+    parser.addStringOption("beam", 'B');
+
+    try {
+      argv = parser.parse(argv);
+    } catch (CommandLineParser.CommandLineParserException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      usage();
+      System.exit(1);
+    }
+
+    Configuration config = ConfigLoader.load(argv[0]);
+    LinkDatabase testdb = LinkDatabaseUtils.loadTestFile(argv[1]);
+    BlockingKeyLearner learner = new BlockingKeyLearner(config, testdb);
+    learner.setMaxFunctions(parser.getOptionInteger("max-functions", 2));
+    learner.setMinCompleteness(parser.getOptionDouble("min-completeness", 0.0));
+    learner.setBeam(parser.getOptionInteger("beam", 8));
+    if (parser.getOptionValue("windows") != null) {
+      String[] sizes = parser.getOptionValue("windows").split(",");
+      int[] windows = new int[sizes.length];
+      for (int ix = 0; ix < sizes.length; ix++)
+        windows[ix] = Integer.parseInt(sizes[ix].trim());
+      learner.setWindowSizes(windows);
+    }
+
+    System.out.println("True matches in test file: " +
+                       learner.getTruePairs());
+    List<Result> results = learner.run();
+    System.out.println("");
+    System.out.println("Trade-offs (no configuration is better on both):");
+    for (Result result : results)
+      if (result.isParetoOptimal())
+        System.out.println("  " + result);
+
+    Result best = results.get(0);
+    System.out.println("");
+    System.out.println("Best: " + best);
+    System.out.println("");
+
+    String output = parser.getOptionValue("output");
+    if (output == null)
+      learner.writeConfig(best, System.out);
+    else {
+      FileOutputStream out = new FileOutputStream(output);
+      learner.writeConfig(best, out);
+      out.close();
+      System.out.println("Configuration written to " + output);
+    }
+  }
+
+  private static void usage() {
+    System.out.println("");
+    System.out.println("java no.priv.garshol.duke.BlockingKeyLearner [options] <cfgfile> <testfile>");
+    System.out.println("");
+    System.out.println("  --output=<file>         file to write best configuration to");
+    System.out.println("  --max-functions=N       max key functions to combine (2)");
+    System.out.println("  --min-completeness=x    best is the one with the highest");
+    System.out.println("                          reduction ratio with at least this");
+    System.out.println("                          pair completeness");
+    System.out.println("  --windows=N,N,...       window sizes to try (1,3,5,10,20)");
+    System.out.println("  --beam=N                number of key functions to combine (8)");
+    System.out.println("");
+    System.out.println("Duke version " + Duke.getVersionString());
+  }
+}
@@ -0,0 +1,23 @@
+
+package no.priv.garshol.duke;
+
+/**
+ * Extended Record interface for records which can hold on to values
+ * prepared by PreparedComparators, so that these don't have to be
+ * prepared again every time the record is compared.
+ * @since 1.4
+ */
+public interface CachingRecord extends Record {
+
+  /**
+   * Returns the prepared values for the given property, or null if
+   * there are none.
+   */
+  public PreparedValues getPreparedValues(String prop);
+
+  /**
+   * Stores the prepared values, replacing any previously stored for
+   * the same property. Must be thread-safe.
+   */
+  public void setPreparedValues(PreparedValues values);
+}
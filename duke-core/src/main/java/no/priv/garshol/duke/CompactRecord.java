@@ -12,9 +12,12 @@ import java.io.Serializable;
  * than RecordImpl, and which seems to be a little faster.
  * @since 1.2
  */
-public class CompactRecord implements ModifiableRecord, Serializable {
+public class CompactRecord
+  implements ModifiableRecord, CachingRecord, Serializable {
   private String[] s; // 0: prop name, 1: value, 2: prop, 3: value, ...
   private int free; // index of next free prop name cell
+  // replaced, never modified, so that match threads can share it
+  private transient volatile PreparedValues[] prepared;
 
   public CompactRecord() {
     this.s = new String[16];
@@ -25,6 +28,18 @@ public class CompactRecord implements ModifiableRecord, Serializable {
     this.s = s;
   }
 
+  /**
+   * Makes a CompactRecord with the same values as the given record.
+   * @since 1.4
+   */
+  public static CompactRecord copyOf(Record record) {
+    CompactRecord copy = new CompactRecord();
+    for (String prop : record.getProperties())
+      for (String value : record.getValues(prop))
+        copy.addValue(prop, value);
+    return copy;
+  }
+
   public Collection<String> getProperties() {
     Collection<String> props = new HashSet();
     for (int ix = 0; ix < free; ix += 2)
@@ -60,12 +75,43 @@ public class CompactRecord implements ModifiableRecord, Serializable {
     }
     s[free++] = property;
     s[free++] = value;
+    prepared = null; // the prepared values no longer match the values
   }
 
   public boolean isEmpty() {
     return free == 0;
   }
 
+  public PreparedValues getPreparedValues(String prop) {
+    PreparedValues[] prepared = this.prepared;
+    if (prepared == null)
+      return null;
+    for (int ix = 0; ix < prepared.length; ix++)
+      if (prepared[ix].getProperty().equals(prop))
+        return prepared[ix];
+    return null;
+  }
+
+  public void setPreparedValues(PreparedValues values) {
+    // if two threads do this at the same time one of the values may
+    // be lost, but then it will just be prepared again later
+    PreparedValues[] old = this.prepared;
+    if (old == null) {
+      this.prepared = new PreparedValues[] { values };
+      return;
+    }
+
+    int pos = old.length;
+    for (int ix = 0; ix < old.length; ix++)
+      if (old[ix].getProperty().equals(values.getProperty()))
+        pos = ix;
+
+    PreparedValues[] prepared =
+      Arrays.copyOf(old, Math.max(old.length, pos + 1));
+    prepared[pos] = values;
+    this.prepared = prepared;
+  }
+
   public int getFree() {
     return free;
   }
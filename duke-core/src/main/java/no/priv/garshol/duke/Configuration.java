@@ -73,6 +73,22 @@ public interface Configuration {
    */
   public Property getPropertyByName(String name);
 
+  /**
+   * Returns the position of the property with the given name in the
+   * list returned by getProperties(), or -1 if there is no such
+   * property. The positions are fixed once the properties are set.
+   * The default implementation scans the list, so implementations
+   * should override it with something faster.
+   * @since 1.4
+   */
+  public default int getPropertyIndex(String name) {
+    List<Property> props = getProperties();
+    for (int ix = 0; ix < props.size(); ix++)
+      if (props.get(ix).getName().equals(name))
+        return ix;
+    return -1;
+  }
+
   /**
    * Returns the properties Duke queries for in the Lucene index. This
    * is a subset of getProperties(), and is computed based on the
@@ -29,6 +29,7 @@ public class ConfigurationImpl implements Configuration {
   private Map<String, Property> properties;
   private List<Property> proplist; // duplicate to preserve order
   private Collection<Property> lookups; // subset of properties
+  private Map<String, Integer> indexes; // property name -> position
 
   private Database database1;
   private Database database2; // used for record linkage, if necessary
@@ -160,8 +161,12 @@ public class ConfigurationImpl implements Configuration {
   public void setProperties(List<Property> props) {
     this.proplist = props;
     this.properties = new HashMap(props.size());
-    for (Property prop : props)
+    this.indexes = new HashMap(props.size());
+    for (int ix = 0; ix < props.size(); ix++) {
+      Property prop = props.get(ix);
       properties.put(prop.getName(), prop);
+      indexes.put(prop.getName(), ix);
+    }
 
     // analyze properties to find lookup set
     findLookupProperties();
@@ -195,6 +200,16 @@ public class ConfigurationImpl implements Configuration {
     return properties.get(name);
   }
 
+  /**
+   * Returns the position of the property with the given name in the
+   * list returned by getProperties(), or -1 if there is no such
+   * property.
+   */
+  public int getPropertyIndex(String name) {
+    Integer index = indexes.get(name);
+    return index == null ? -1 : index;
+  }
+
   /**
    * Returns the properties Duke queries for in the Lucene index. This
    * is a subset of getProperties(), and is computed based on the
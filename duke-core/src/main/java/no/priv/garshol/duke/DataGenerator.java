@@ -0,0 +1,561 @@
+
+package no.priv.garshol.duke;
+
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.xml.sax.SAXException;
+
+import no.priv.garshol.duke.comparators.ExactComparator;
+import no.priv.garshol.duke.comparators.GeopositionComparator;
+import no.priv.garshol.duke.comparators.NumericComparator;
+import no.priv.garshol.duke.comparators.PersonNameComparator;
+import no.priv.garshol.duke.utils.CommandLineParser;
+import no.priv.garshol.duke.utils.LinkFileWriter;
+import no.priv.garshol.duke.utils.NTriplesWriter;
+
+/**
+ * Generates synthetic records for the properties in a configuration,
+ * with a known fraction of duplicates, and writes a test file listing
+ * the duplicates. This makes it possible to measure precision, recall
+ * and speed on data sets of any size without access to real data.
+ * Duplicates are noisy copies of the original record, with typos,
+ * abbreviations, transpositions, and missing values. They are
+ * scattered through the output, rather than placed next to the
+ * original.
+ * @since 1.4
+ */
+public class DataGenerator {
+  private List<Property> properties;
+  private Kind[] kinds;
+  private Random random;
+  private double duprate;  // fraction of records that are duplicates
+  private double noise;    // chance that a duplicate value has noise
+  private double missing;  // chance that a duplicate value is missing
+  private String idprefix; // prepended to all record IDs
+  private List<Pending> pending; // duplicates waiting to be written
+  private int nextid;
+
+  private static final int MAX_PENDING = 10000;
+
+  private static final String[] GIVEN = {
+    "Anne", "Bjorn", "Carl", "Diana", "Erik", "Frida", "Geir", "Hilde",
+    "Ingrid", "Jon", "Kari", "Lars", "Marius", "Nina", "Ola", "Per",
+    "Ragnhild", "Sigrid", "Tor", "Unni", "Vegard", "Wenche", "Yngve",
+    "Alexander", "Benedicte", "Christian", "Elisabeth", "Fredrik",
+    "Hans", "Johanne", "Kristoffer", "Magnus", "Maria", "Thomas"
+  };
+  private static final String[] SYLLABLES = {
+    "an", "ber", "dal", "en", "fjell", "gaard", "hau", "holm", "kr",
+    "lund", "mo", "nes", "ol", "rud", "sen", "stad", "strand", "vik",
+    "\u00e5s", "bakk", "ei", "li", "s\u00e6t", "tor", "ul", "vang", "\u00f8y"
+  };
+
+  /**
+   * The kinds of values we can generate.
+   */
+  public enum Kind { NAME, TEXT, CODE, NUMBER, GEO }
+
+  public DataGenerator(Configuration config, long seed) {
+    this.properties = config.getProperties();
+    this.kinds = new Kind[properties.size()];
+    for (int ix = 0; ix < kinds.length; ix++)
+      kinds[ix] = getKind(properties.get(ix));
+    this.random = new Random(seed);
+    this.duprate = 0.2;
+    this.noise = 0.3;
+    this.missing = 0.05;
+    this.idprefix = "";
+    this.pending = new ArrayList();
+  }
+
+  /**
+   * Sets the fraction of the records which are duplicates of another
+   * record. Default is 0.2.
+   */
+  public void setDuplicateRate(double duprate) {
+    this.duprate = duprate;
+  }
+
+  /**
+   * Sets the probability that a value in a duplicate differs from
+   * the value in the original. Default is 0.3.
+   */
+  public void setNoiseRate(double noise) {
+    this.noise = noise;
+  }
+
+  /**
+   * Sets the probability that a value in a duplicate is left
+   * out. Default is 0.05.
+   */
+  public void setMissingRate(double missing) {
+    this.missing = missing;
+  }
+
+  /**
+   * Sets a string which is prepended to all record IDs. Useful for
+   * making the IDs URIs.
+   */
+  public void setIdPrefix(String idprefix) {
+    this.idprefix = idprefix;
+  }
+
+  /**
+   * Generates records and passes them to the handler. Duplicates
+   * are written to the link file writer, if there is one.
+   * @param count The number of records to generate.
+   */
+  public void generate(int count, RecordHandler handler,
+                       LinkFileWriter links) throws IOException {
+    for (int ix = 0; ix < count; ix++) {
+      // write out a duplicate? we keep a pool of pending duplicates,
+      // so that they end up some distance from the original
+      if (!pending.isEmpty() &&
+          (pending.size() >= MAX_PENDING ||
+           random.nextDouble() < duprate ||
+           count - ix <= pending.size())) {
+        int pos = random.nextInt(pending.size());
+        Pending dup = pending.get(pos);
+        pending.set(pos, pending.get(pending.size() - 1));
+        pending.remove(pending.size() - 1);
+
+        String id = makeId();
+        handler.record(id, makeDuplicate(dup.values));
+        if (links != null)
+          for (String other : dup.cluster)
+            links.write(other, id, true, 1.0);
+        dup.cluster.add(id);
+        continue;
+      }
+
+      // make an original record
+      String id = makeId();
+      String[] values = makeValues();
+      handler.record(id, values);
+
+      // decide how many duplicates it's going to have. the number is
+      // geometrically distributed, so that on average duprate of all
+      // records written are duplicates
+      List<String> cluster = null;
+      while (random.nextDouble() < duprate) {
+        if (cluster == null) {
+          cluster = new ArrayList();
+          cluster.add(id);
+        }
+        pending.add(new Pending(values, cluster));
+      }
+    }
+    pending.clear();
+  }
+
+  /**
+   * Generates pairs of records and passes them to the handler, two
+   * records per pair. In half the pairs, picked at random, the second
+   * record is a duplicate of the first; in the rest it's unrelated.
+   * @param count The number of pairs to generate.
+   */
+  public void generatePairs(int count, RecordHandler handler)
+    throws IOException {
+    for (int ix = 0; ix < count; ix++) {
+      String[] values = makeValues();
+      handler.record(makeId(), values);
+      if (random.nextBoolean())
+        handler.record(makeId(), makeDuplicate(values));
+      else
+        handler.record(makeId(), makeValues());
+    }
+  }
+
+  private String makeId() {
+    return idprefix + (nextid++);
+  }
+
+  private String[] makeValues() {
+    String[] values = new String[kinds.length];
+    for (int ix = 0; ix < kinds.length; ix++)
+      if (kinds[ix] != null)
+        values[ix] = makeValue(kinds[ix]);
+    return values;
+  }
+
+  private String[] makeDuplicate(String[] original) {
+    String[] values = new String[original.length];
+    for (int ix = 0; ix < original.length; ix++) {
+      if (original[ix] == null || random.nextDouble() < missing)
+        continue;
+      if (random.nextDouble() < noise)
+        values[ix] = addNoise(kinds[ix], original[ix]);
+      else
+        values[ix] = original[ix];
+    }
+    return values;
+  }
+
+  // ===== VALUE GENERATION
+
+  /**
+   * Returns a random value of the given kind.
+   */
+  public String makeValue(Kind kind) {
+    switch (kind) {
+    case NAME:
+      String name = pick(GIVEN) + " " + makeWord(true);
+      if (random.nextDouble() < 0.3)
+        name = pick(GIVEN) + " " + name;
+      return name;
+    case TEXT:
+      StringBuilder buf = new StringBuilder(makeWord(true));
+      int words = random.nextInt(3);
+      for (int ix = 0; ix < words; ix++)
+        buf.append(' ').append(makeWord(false));
+      return buf.toString();
+    case CODE:
+      return "" + (10000000 + random.nextInt(90000000));
+    case NUMBER:
+      return "" + random.nextInt(100000);
+    case GEO:
+      return String.format(Locale.ROOT, "%.5f,%.5f",
+                           -80 + random.nextDouble() * 160,
+                           -180 + random.nextDouble() * 360);
+    default:
+      throw new DukeException("Unknown kind " + kind);
+    }
+  }
+
+  private String makeWord(boolean capitalized) {
+    StringBuilder buf = new StringBuilder();
+    int syllables = 2 + random.nextInt(3);
+    for (int ix = 0; ix < syllables; ix++)
+      buf.append(pick(SYLLABLES));
+    if (capitalized)
+      buf.setCharAt(0, Character.toUpperCase(buf.charAt(0)));
+    return buf.toString();
+  }
+
+  /**
+   * Returns a noisy version of the value. Text gets a typo, an
+   * abbreviation, or a transposition; numbers and positions are
+   * moved slightly.
+   */
+  public String addNoise(Kind kind, String value) {
+    switch (kind) {
+    case NUMBER:
+      int number = Integer.parseInt(value);
+      return "" + (number + random.nextInt(number / 100 + 3) - 1);
+    case GEO:
+      int pos = value.indexOf(',');
+      double lat = Double.parseDouble(value.substring(0, pos));
+      double lng = Double.parseDouble(value.substring(pos + 1));
+      return String.format(Locale.ROOT, "%.5f,%.5f",
+                           lat + (random.nextDouble() - 0.5) * 0.001,
+                           lng + (random.nextDouble() - 0.5) * 0.001);
+    case CODE:
+      return transpose(value);
+    default:
+      switch (random.nextInt(3)) {
+      case 0:
+        return typo(value);
+      case 1:
+        return abbreviate(value);
+      default:
+        return transpose(value);
+      }
+    }
+  }
+
+  /**
+   * Replaces, deletes, or inserts a single character.
+   */
+  private String typo(String value) {
+    int pos = random.nextInt(value.length());
+    char ch = (char) ('a' + random.nextInt(26));
+    switch (random.nextInt(3)) {
+    case 0:
+      return value.substring(0, pos) + ch + value.substring(pos + 1);
+    case 1:
+      if (value.length() > 1)
+        return value.substring(0, pos) + value.substring(pos + 1);
+      // fall through, so we don't make the value empty
+    default:
+      return value.substring(0, pos) + ch + value.substring(pos);
+    }
+  }
+
+  /**
+   * Shortens one of the words to its initial, like "J. Smith". Does
+   * a typo instead if there is only a single word.
+   */
+  private String abbreviate(String value) {
+    String[] words = value.split(" ");
+    if (words.length < 2)
+      return typo(value);
+
+    int pos = random.nextInt(words.length - 1); // keep the last word
+    words[pos] = words[pos].charAt(0) + ".";
+    return join(words);
+  }
+
+  /**
+   * Swaps two adjacent words or, if there is only one word, two
+   * adjacent characters.
+   */
+  private String transpose(String value) {
+    String[] words = value.split(" ");
+    if (words.length > 1) {
+      int pos = random.nextInt(words.length - 1);
+      String tmp = words[pos];
+      words[pos] = words[pos + 1];
+      words[pos + 1] = tmp;
+      return join(words);
+    }
+
+    if (value.length() < 2)
+      return value;
+    int pos = random.nextInt(value.length() - 1);
+    return value.substring(0, pos) + value.charAt(pos + 1) +
+      value.charAt(pos) + value.substring(pos + 2);
+  }
+
+  private static String join(String[] words) {
+    StringBuilder buf = new StringBuilder(words[0]);
+    for (int ix = 1; ix < words.length; ix++)
+      buf.append(' ').append(words[ix]);
+    return buf.toString();
+  }
+
+  private String pick(String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+
+  /**
+   * Guesses what kind of values the property has from its comparator
+   * and name. Returns null for identity properties.
+   */
+  private static Kind getKind(Property prop) {
+    if (prop.isIdProperty())
+      return null;
+
+    Comparator comparator = prop.getComparator();
+    if (comparator instanceof GeopositionComparator)
+      return Kind.GEO;
+    else if (comparator instanceof NumericComparator)
+      return Kind.NUMBER;
+    else if (comparator instanceof ExactComparator)
+      return Kind.CODE;
+    else if (comparator instanceof PersonNameComparator ||
+             prop.getName().toLowerCase().contains("name"))
+      return Kind.NAME;
+    else
+      return Kind.TEXT;
+  }
+
+  /**
+   * A duplicate that's yet to be written, and the IDs of the records
+   * it's a duplicate of.
+   */
+  static class Pending {
+    private String[] values;
+    private List<String> cluster;
+
+    public Pending(String[] values, List<String> cluster) {
+      this.values = values;
+      this.cluster = cluster;
+    }
+  }
+
+  // ===== OUTPUT
+
+  /**
+   * Receives the generated records.
+   */
+  public interface RecordHandler {
+
+    /**
+     * Called once for each record. The values are in the same order
+     * as the properties in the configuration, and missing values are
+     * null. The value of the identity property is the ID.
+     */
+    public void record(String id, String[] values) throws IOException;
+
+  }
+
+  /**
+   * Writes records to a CSV file, with a header row giving the
+   * property names.
+   */
+  public static class CSVHandler implements RecordHandler {
+    private Writer out;
+    private List<Property> properties;
+
+    public CSVHandler(Writer out, Configuration config) throws IOException {
+      this.out = out;
+      this.properties = config.getProperties();
+
+      for (int ix = 0; ix < properties.size(); ix++) {
+        if (ix > 0)
+          out.write(',');
+        out.write(escape(properties.get(ix).getName()));
+      }
+      out.write('\n');
+    }
+
+    public void record(String id, String[] values) throws IOException {
+      for (int ix = 0; ix < values.length; ix++) {
+        if (ix > 0)
+          out.write(',');
+        if (properties.get(ix).isIdProperty())
+          out.write(escape(id));
+        else if (values[ix] != null)
+          out.write(escape(values[ix]));
+      }
+      out.write('\n');
+    }
+
+    private static String escape(String value) {
+      if (value.indexOf(',') == -1 && value.indexOf('"') == -1)
+        return value;
+      return '"' + value.replace("\"", "\"\"") + '"';
+    }
+  }
+
+  /**
+   * Collects the records in a list, as CompactRecords.
+   */
+  public static class RecordCollector implements RecordHandler {
+    private List<Record> records;
+    private List<Property> properties;
+
+    public RecordCollector(Configuration config) {
+      this.records = new ArrayList();
+      this.properties = config.getProperties();
+    }
+
+    public void record(String id, String[] values) {
+      CompactRecord record = new CompactRecord();
+      for (int ix = 0; ix < values.length; ix++) {
+        String prop = properties.get(ix).getName();
+        if (properties.get(ix).isIdProperty())
+          record.addValue(prop, id);
+        else if (values[ix] != null)
+          record.addValue(prop, values[ix]);
+      }
+      records.add(record);
+    }
+
+    public List<Record> getRecords() {
+      return records;
+    }
+  }
+
+  /**
+   * Writes records as NTriples, using the record ID as the subject,
+   * and the property names prefixed with a base URI as the
+   * predicates. The identity property is not written.
+   */
+  public static class NTriplesHandler implements RecordHandler {
+    private NTriplesWriter out;
+    private List<Property> properties;
+    private String base;
+
+    public NTriplesHandler(NTriplesWriter out, Configuration config,
+                           String base) {
+      this.out = out;
+      this.properties = config.getProperties();
+      this.base = base;
+    }
+
+    public void record(String id, String[] values) {
+      for (int ix = 0; ix < values.length; ix++)
+        if (values[ix] != null)
+          out.statement(id, base + properties.get(ix).getName(),
+                        values[ix], true);
+    }
+  }
+
+  // ===== COMMAND-LINE TOOL
+
+  public static void main(String[] argv) throws IOException, SAXException {
+    CommandLineParser parser = new CommandLineParser();
+    parser.setMinimumArguments(2);
+    parser.setMaximumArguments(2);
+    parser.addStringOption("records", 'r');
+    parser.addStringOption("duplicates", 'd');
+    parser.addStringOption("noise", 'n');
+    parser.addStringOption("missing", 'm');
+    parser.addStringOption("seed", 's');
+    parser.addStringOption("testfile", 'T');
+    parser.addStringOption("base", 'u');
+
+    try {
+      argv = parser.parse(argv);
+    } catch (CommandLineParser.CommandLineParserException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      usage();
+      System.exit(1);
+    }
+
+    Configuration config = ConfigLoader.load(argv[0]);
+    DataGenerator generator =
+      new DataGenerator(config, parser.getOptionInteger("seed", 0));
+    generator.setDuplicateRate(parser.getOptionDouble("duplicates", 0.2));
+    generator.setNoiseRate(parser.getOptionDouble("noise", 0.3));
+    generator.setMissingRate(parser.getOptionDouble("missing", 0.05));
+    int count = parser.getOptionInteger("records", 100000);
+
+    LinkFileWriter links = null;
+    Writer testfile = null;
+    if (parser.getOptionValue("testfile") != null) {
+      testfile = new FileWriter(parser.getOptionValue("testfile"));
+      links = new LinkFileWriter(testfile);
+    }
+
+    String outfile = argv[1];
+    if (outfile.endsWith(".ntriples") || outfile.endsWith(".nt")) {
+      String base = parser.getOptionValue("base");
+      if (base == null)
+        base = "http://example.com/";
+      generator.setIdPrefix(base + "record/");
+
+      OutputStream out = new FileOutputStream(outfile);
+      NTriplesWriter writer = new NTriplesWriter(out);
+      generator.generate(count, new NTriplesHandler(writer, config, base),
+                         links);
+      writer.done();
+      out.close();
+    } else {
+      Writer out = new OutputStreamWriter(new FileOutputStream(outfile),
+                                          "utf-8");
+      generator.generate(count, new CSVHandler(out, config), links);
+      out.close();
+    }
+
+    if (testfile != null)
+      testfile.close();
+  }
+
+  private static void usage() {
+    System.out.println("");
+    System.out.println("java no.priv.garshol.duke.DataGenerator [options] <cfgfile> <outfile>");
+    System.out.println("");
+    System.out.println("  Writes CSV, or NTriples if <outfile> ends in .nt or .ntriples");
+    System.out.println("");
+    System.out.println("  --records=N           number of records to generate (100000)");
+    System.out.println("  --duplicates=F        fraction of records that are duplicates (0.2)");
+    System.out.println("  --noise=F             chance a duplicate value has noise (0.3)");
+    System.out.println("  --missing=F           chance a duplicate value is missing (0.05)");
+    System.out.println("  --seed=N              random seed, for reproducible data (0)");
+    System.out.println("  --testfile=<file>     write the duplicates to a test file");
+    System.out.println("  --base=<uri>          base URI for NTriples output");
+    System.out.println("");
+    System.out.println("Duke version " + Duke.getVersionString());
+  }
+}
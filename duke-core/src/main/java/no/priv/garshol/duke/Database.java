@@ -14,6 +14,16 @@ public interface Database {
    */
   public boolean isInMemory();
 
+  /**
+   * Returns true iff index() may be called from several threads at
+   * the same time. If so, the Processor may index records in
+   * parallel. The default is false.
+   * @since 1.4
+   */
+  public default boolean supportsConcurrentIndexing() {
+    return false;
+  }
+
   /**
    * Add the record to the index.
    */
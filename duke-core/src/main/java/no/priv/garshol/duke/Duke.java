@@ -90,6 +90,9 @@ public class Duke {
     Processor processor = new Processor(config, !noreindex);
     processor.setLogger(logger);
     processor.setThreads(threads);
+    processor.setBoundedComparison(parser.getOptionState("bounded"));
+    processor.setPipelining(parser.getOptionState("pipeline"));
+    processor.setIndexedRecords(parser.getOptionState("indexed"));
 
     // sanity check
     if (noreindex && processor.getDatabase().isInMemory()) {
@@ -151,6 +154,12 @@ public class Duke {
     if (parser.getOptionState("profile"))
       processor.setPerformanceProfiling(true);
 
+    // --histograms
+    if (parser.getOptionState("histograms")) {
+      processor.setPerformanceProfiling(true);
+      processor.setDetailedProfiling(true);
+    }
+
     // --singlematch setting
     boolean matchall = true;
     if (parser.getOptionState("singlematch")) {
@@ -217,11 +226,17 @@ public class Duke {
     System.out.println("  --batchsize=n         set size of Lucene indexing batches");
     System.out.println("  --showdata            show all cleaned data (data debug mode)");
     System.out.println("  --profile             display performance statistics");
+    System.out.println("  --histograms          display detailed performance statistics");
     System.out.println("  --threads=N           run processing in N parallell threads");
     System.out.println("  --pretty              pretty display when comparing records");
     System.out.println("  --singlematch         (in record linkage mode) only accept");
     System.out.println("                        the best match for each record");
     System.out.println("  --lookups             display lookup properties");
+    System.out.println("  --bounded             stop comparing records once they");
+    System.out.println("                        can no longer match");
+    System.out.println("  --pipeline            read records in a separate thread");
+    System.out.println("  --indexed             copy records into a faster format");
+    System.out.println("                        before matching");
     System.out.println("");
     System.out.println("Duke version " + getVersionString());
   }
@@ -244,10 +259,14 @@ public class Duke {
     parser.addBooleanOption("interactive", 'I');
     parser.addBooleanOption("showdata", 'D');
     parser.addBooleanOption("profile", 'o');
+    parser.addBooleanOption("histograms", 'H');
     parser.addStringOption("threads", 'n');
     parser.addBooleanOption("pretty", 'n');
     parser.addBooleanOption("singlematch", 'n');
     parser.addBooleanOption("lookups", 'L');
+    parser.addBooleanOption("bounded", 'B');
+    parser.addBooleanOption("pipeline", 'i');
+    parser.addBooleanOption("indexed", 'x');
     return parser;
   }
 
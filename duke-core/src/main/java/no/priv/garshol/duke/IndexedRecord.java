@@ -0,0 +1,162 @@
+
+package no.priv.garshol.duke;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * A record implementation which stores the values of each property in
+ * an array slot given by the property's position in the
+ * configuration. This allows Processor to compare records without
+ * looking up properties by name, and without allocating
+ * collections. Values of properties not in the configuration are
+ * kept, but are slower to access.
+ * @since 1.4
+ */
+public class IndexedRecord implements ModifiableRecord, CachingRecord {
+  private static final String[] NO_VALUES = new String[0];
+  private Configuration config;
+  private String[][] values; // indexed by property index
+  private CompactRecord extra; // values of unknown properties, if any
+  // replaced, never modified, so that match threads can share it
+  private volatile PreparedValues[] prepared;
+
+  public IndexedRecord(Configuration config) {
+    this.config = config;
+    this.values = new String[config.getProperties().size()][];
+  }
+
+  /**
+   * Makes an IndexedRecord with the same values as the given record.
+   */
+  public static IndexedRecord copyOf(Record record, Configuration config) {
+    IndexedRecord copy = new IndexedRecord(config);
+    for (String prop : record.getProperties())
+      for (String value : record.getValues(prop))
+        copy.addValue(prop, value);
+    return copy;
+  }
+
+  /**
+   * Returns the configuration whose properties the record is indexed
+   * by.
+   */
+  public Configuration getConfiguration() {
+    return config;
+  }
+
+  /**
+   * Returns the values of the property with the given index. The
+   * array must not be modified.
+   */
+  public String[] getValues(int index) {
+    String[] vs = values[index];
+    return vs == null ? NO_VALUES : vs;
+  }
+
+  public Collection<String> getProperties() {
+    Collection<String> props = new ArrayList();
+    for (int ix = 0; ix < values.length; ix++)
+      if (values[ix] != null)
+        props.add(config.getProperties().get(ix).getName());
+    if (extra != null)
+      props.addAll(extra.getProperties());
+    return props;
+  }
+
+  public Collection<String> getValues(String prop) {
+    int index = config.getPropertyIndex(prop);
+    if (index == -1)
+      return extra == null ? Collections.EMPTY_LIST : extra.getValues(prop);
+    return Arrays.asList(getValues(index));
+  }
+
+  public String getValue(String prop) {
+    int index = config.getPropertyIndex(prop);
+    if (index == -1)
+      return extra == null ? null : extra.getValue(prop);
+    String[] vs = values[index];
+    return vs == null ? null : vs[0];
+  }
+
+  public void merge(Record other) {
+    throw new UnsupportedOperationException();
+  }
+
+  public void addValue(String property, String value) {
+    if (value == null || value.equals(""))
+      return; // records may not contain these
+
+    int index = config.getPropertyIndex(property);
+    if (index == -1) {
+      if (extra == null)
+        extra = new CompactRecord();
+      extra.addValue(property, value);
+      return;
+    }
+
+    String[] vs = values[index];
+    if (vs == null)
+      vs = new String[1];
+    else
+      vs = Arrays.copyOf(vs, vs.length + 1);
+    vs[vs.length - 1] = value;
+    values[index] = vs;
+    prepared = null; // the prepared values no longer match the values
+  }
+
+  public boolean isEmpty() {
+    for (int ix = 0; ix < values.length; ix++)
+      if (values[ix] != null)
+        return false;
+    return extra == null || extra.isEmpty();
+  }
+
+  /**
+   * Returns the prepared values of the property with the given index,
+   * or null if there are none.
+   */
+  public PreparedValues getPreparedValues(int index) {
+    PreparedValues[] prepared = this.prepared;
+    return prepared == null ? null : prepared[index];
+  }
+
+  public PreparedValues getPreparedValues(String prop) {
+    int index = config.getPropertyIndex(prop);
+    return index == -1 ? null : getPreparedValues(index);
+  }
+
+  public void setPreparedValues(PreparedValues values) {
+    int index = config.getPropertyIndex(values.getProperty());
+    if (index == -1)
+      return; // can't compare these anyway
+
+    // if two threads do this at the same time one of the values may
+    // be lost, but then it will just be prepared again later
+    PreparedValues[] old = this.prepared;
+    PreparedValues[] prepared;
+    if (old == null)
+      prepared = new PreparedValues[this.values.length];
+    else
+      prepared = old.clone();
+    prepared[index] = values;
+    this.prepared = prepared;
+  }
+
+  public String toString() {
+    StringBuilder builder = new StringBuilder("{");
+    for (int ix = 0; ix < values.length; ix++) {
+      if (values[ix] == null)
+        continue;
+      if (builder.length() > 1)
+        builder.append(", ");
+      builder.append(config.getProperties().get(ix).getName())
+        .append('=')
+        .append(Arrays.asList(values[ix]));
+    }
+    builder.append("}");
+    return "[IndexedRecord " + builder + "]";
+  }
+}
@@ -0,0 +1,26 @@
+
+package no.priv.garshol.duke;
+
+/**
+ * A comparator which can compute what it needs to know about a value
+ * up front, so that this only has to be done once per value, and not
+ * once for every comparison the value takes part in. The prepared
+ * values are cached on records which implement CachingRecord.
+ * @since 1.4
+ */
+public interface PreparedComparator extends Comparator {
+
+  /**
+   * Computes whatever the comparator needs to know about the value.
+   * The result may be shared between threads, and so must not be
+   * modified after it has been returned.
+   */
+  public Object prepare(String value);
+
+  /**
+   * Compares two values, given both the raw values and what prepare
+   * returned for them. Must return the same as compare(v1, v2).
+   */
+  public double compare(String v1, Object p1, String v2, Object p2);
+
+}
@@ -0,0 +1,80 @@
+
+package no.priv.garshol.duke;
+
+import java.util.Collection;
+
+/**
+ * The values of one property in a record, together with the result
+ * of preparing each of them with a PreparedComparator. Empty values
+ * are left out.
+ * @since 1.4
+ */
+public class PreparedValues {
+  private String property;
+  private PreparedComparator comparator;
+  private boolean empty; // true iff the record had no values at all
+  private String[] values;
+  private Object[] prepared;
+
+  public PreparedValues(String property, PreparedComparator comparator,
+                        Collection<String> values) {
+    this.property = property;
+    this.comparator = comparator;
+    this.empty = values == null || values.isEmpty();
+
+    int count = 0;
+    if (!empty)
+      for (String value : values)
+        if (!value.equals("")) // FIXME: these values shouldn't be here at all
+          count++;
+
+    this.values = new String[count];
+    this.prepared = new Object[count];
+    if (count == 0)
+      return;
+
+    int ix = 0;
+    for (String value : values) {
+      if (value.equals(""))
+        continue;
+      this.values[ix] = value;
+      this.prepared[ix++] = comparator.prepare(value);
+    }
+  }
+
+  /**
+   * Returns the name of the property the values belong to.
+   */
+  public String getProperty() {
+    return property;
+  }
+
+  /**
+   * Returns the comparator which prepared the values.
+   */
+  public PreparedComparator getComparator() {
+    return comparator;
+  }
+
+  /**
+   * Returns true iff the record had no values for the property.
+   */
+  public boolean isEmpty() {
+    return empty;
+  }
+
+  /**
+   * Returns the number of non-empty values.
+   */
+  public int size() {
+    return values.length;
+  }
+
+  public String getValue(int ix) {
+    return values[ix];
+  }
+
+  public Object getPrepared(int ix) {
+    return prepared[ix];
+  }
+}
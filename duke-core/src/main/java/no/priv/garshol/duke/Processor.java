@@ -7,13 +7,25 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.io.Writer;
 import java.io.PrintWriter;
 
 import no.priv.garshol.duke.matchers.MatchListener;
 import no.priv.garshol.duke.matchers.PrintMatchListener;
 import no.priv.garshol.duke.matchers.AbstractMatchListener;
+import no.priv.garshol.duke.utils.Histogram;
 import no.priv.garshol.duke.utils.Utils;
 import no.priv.garshol.duke.utils.DefaultRecordIterator;
 
@@ -26,20 +38,34 @@ public class Processor {
   private Collection<MatchListener> listeners;
   private Logger logger;
   private List<Property> proporder;
+  private int[] propindex; // index in config of each property in proporder
+  private int[] idindex; // index in config of each identity property
   private double[] accprob;
   private int threads;
+  private boolean bounded;
+  private boolean pipelining;
+  private boolean indexed;
   private Database database1;
   private Database database2;
   private final static int DEFAULT_BATCH_SIZE = 40000;
+  private final static int PIPELINE_DEPTH = 2; // batches read ahead
+  private final static int MATCH_CHUNK_SIZE = 16; // records per match task
+  private final static int INDEX_CHUNK_SIZE = 64; // records per index task
+  private ForkJoinPool matchpool; // created on first use
+  private List<MatchWorker> workers; // match threads since last start
 
   // performance statistics
-  private long comparisons; // number of records compared
-  private long srcread; // ms spent reading from data sources
-  private long indexing; // ms spent indexing records
-  private long searching; // ms spent searching for records
-  private long comparing; // ms spent comparing records
-  private long callbacks; // ms spent in callbacks
+  // these are updated concurrently by the match threads, so we use
+  // LongAdders, which don't make the threads contend with each other
+  private LongAdder comparisons; // number of records compared
+  private LongAdder srcread; // ns spent reading from data sources
+  private LongAdder indexing; // ns spent indexing records
+  private LongAdder searching; // ns spent searching for records
+  private LongAdder comparing; // ns spent comparing records
+  private LongAdder callbacks; // ns spent in callbacks
+  private LongAdder matchwall; // ns spent waiting for the match threads
   private Profiler profiler;
+  private Instrumentation instrumentation; // null unless detailed profiling
 
   /**
    * Creates a new processor, overwriting the existing Lucene index.
@@ -69,6 +95,14 @@ public class Processor {
     this.listeners = new CopyOnWriteArrayList<MatchListener>();
     this.logger = new DummyLogger();
     this.threads = 1;
+    this.comparisons = new LongAdder();
+    this.srcread = new LongAdder();
+    this.indexing = new LongAdder();
+    this.searching = new LongAdder();
+    this.comparing = new LongAdder();
+    this.callbacks = new LongAdder();
+    this.matchwall = new LongAdder();
+    this.workers = new CopyOnWriteArrayList();
 
     // precomputing for later optimizations
     this.proporder = new ArrayList();
@@ -76,12 +110,21 @@ public class Processor {
       if (!p.isIdProperty())
         proporder.add(p);
     Collections.sort(proporder, new PropertyComparator());
+    propindex = new int[proporder.size()];
+    for (int ix = 0; ix < proporder.size(); ix++)
+      propindex[ix] = config.getPropertyIndex(proporder.get(ix).getName());
+    Collection<Property> idprops = config.getIdentityProperties();
+    idindex = new int[idprops.size()];
+    int ix = 0;
+    for (Property p : idprops)
+      idindex[ix++] = config.getPropertyIndex(p.getName());
 
-    // still precomputing
+    // still precomputing. accprob[ix] is the highest probability
+    // the properties from ix and onwards can possibly produce
     double prob = 0.5;
     accprob = new double[proporder.size()];
-    for (int ix = proporder.size() - 1; ix >= 0; ix--) {
-      prob = Utils.computeBayes(prob, proporder.get(ix).getHighProbability());
+    for (ix = proporder.size() - 1; ix >= 0; ix--) {
+      prob = Utils.computeBayes(prob, getMaximumProbability(proporder.get(ix)));
       accprob[ix] = prob;
     }
   }
@@ -108,6 +151,73 @@ public class Processor {
     return threads;
   }
 
+  /**
+   * Turns bounded comparison on or off. If on, comparison of a
+   * candidate pair stops as soon as it is clear that the pair cannot
+   * score above the threshold (or the maybe-threshold, if set). This
+   * saves a lot of work when most candidates are non-matches. The
+   * default is off.
+   * @since 1.4
+   */
+  public void setBoundedComparison(boolean bounded) {
+    this.bounded = bounded;
+  }
+
+  /**
+   * Returns true iff bounded comparison is turned on.
+   * @since 1.4
+   */
+  public boolean isBoundedComparison() {
+    return bounded;
+  }
+
+  /**
+   * Turns pipelined deduplication on or off. If on, records are read
+   * from the data sources in a separate thread, so that the next
+   * batches are being read while the current batch is indexed and
+   * matched. Matching still only sees committed records. The record
+   * iterators are only used from the reading thread, and
+   * batchProcessed() is only called on them when every record read
+   * so far has been processed. Since the reader is usually ahead,
+   * several batches may be acknowledged with a single call, but
+   * there is always one before the iterator is closed. The default
+   * is off.
+   * @since 1.4
+   */
+  public void setPipelining(boolean pipelining) {
+    this.pipelining = pipelining;
+  }
+
+  /**
+   * Returns true iff pipelined deduplication is turned on.
+   * @since 1.4
+   */
+  public boolean isPipelining() {
+    return pipelining;
+  }
+
+  /**
+   * Turns indexed records on or off. If on, incoming records are
+   * copied into IndexedRecords before they are indexed and matched,
+   * so that comparisons can get at property values by position
+   * rather than by name. Listeners then receive the copies. This
+   * only speeds up comparisons where both records are IndexedRecords,
+   * so it makes little difference with databases which return other
+   * kinds of records, like Lucene. The default is off.
+   * @since 1.4
+   */
+  public void setIndexedRecords(boolean indexed) {
+    this.indexed = indexed;
+  }
+
+  /**
+   * Returns true iff indexed records are turned on.
+   * @since 1.4
+   */
+  public boolean isIndexedRecords() {
+    return indexed;
+  }
+
   /**
    * Adds a listener to be notified of processing events.
    */
@@ -185,6 +295,29 @@ public class Processor {
     return profiler;
   }
 
+  /**
+   * Used to turn detailed performance profiling on and off. If on,
+   * the time spent comparing each property and in each comparator is
+   * recorded, as well as the number of candidates found for each
+   * record. The profiler reports these, if it is on.
+   * @since 1.4
+   */
+  public void setDetailedProfiling(boolean detailed) {
+    if (detailed && instrumentation == null)
+      instrumentation = new Instrumentation();
+    else if (!detailed)
+      instrumentation = null;
+  }
+
+  /**
+   * Returns the detailed performance statistics, or null if detailed
+   * profiling is off.
+   * @since 1.4
+   */
+  public Instrumentation getInstrumentation() {
+    return instrumentation;
+  }
+
   /**
    * Reads all available records from the data sources and processes
    * them in batches, notifying the listeners throughout.
@@ -206,6 +339,11 @@ public class Processor {
    * them in batches, notifying the listeners throughout.
    */
   public void deduplicate(Collection<DataSource> sources, int batch_size) {
+    if (pipelining) {
+      deduplicatePipelined(sources, batch_size);
+      return;
+    }
+
     int count = 0;
     startProcessing();
 
@@ -217,21 +355,22 @@ public class Processor {
       RecordIterator it2 = source.getRecords();
       try {
         Collection<Record> batch = new ArrayList();
-        long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         while (it2.hasNext()) {
           Record record = it2.next();
           batch.add(record);
           count++;
           if (count % batch_size == 0) {
-            srcread += (System.currentTimeMillis() - start);
+            srcread.add(System.nanoTime() - start);
             deduplicate(batch);
             it2.batchProcessed();
             batch = new ArrayList();
-            start = System.currentTimeMillis();
+            start = System.nanoTime();
           }
         }
 
         if (!batch.isEmpty()) {
+          srcread.add(System.nanoTime() - start);
           deduplicate(batch);
           it2.batchProcessed();
         }
@@ -243,21 +382,58 @@ public class Processor {
     endProcessing();
   }
 
+  /**
+   * Does the same as deduplicate(sources, batch_size), but reads
+   * records in a separate thread, handing batches over through a
+   * bounded queue. Indexing and matching stay in the calling thread,
+   * since databases can't be searched while they're being committed.
+   * Processed batches are handed back to the reader, which is the
+   * only thread that touches the record iterators.
+   */
+  private void deduplicatePipelined(Collection<DataSource> sources,
+                                    int batch_size) {
+    startProcessing();
+
+    BlockingQueue<Batch> queue = new ArrayBlockingQueue(PIPELINE_DEPTH);
+    BlockingQueue<Batch> processed = new LinkedBlockingQueue();
+    SourceReader reader = new SourceReader(sources, batch_size, queue,
+                                           processed);
+    reader.start();
+    try {
+      Batch batch = queue.take();
+      while (batch.records != null) {
+        deduplicate(batch.records);
+        processed.put(batch);
+        batch = queue.take();
+      }
+    } catch (InterruptedException e) {
+      throw new DukeException("Interrupted while waiting for records", e);
+    } finally {
+      // if we failed the reader may be blocked on a full queue
+      reader.interrupt();
+    }
+
+    if (reader.getError() != null)
+      throw new DukeException("Reading from data source failed",
+                              reader.getError());
+
+    endProcessing();
+  }
+
   /**
    * Deduplicates a newly arrived batch of records. The records may
    * have been seen before.
    */
   public void deduplicate(Collection<Record> records) {
+    records = toIndexed(records);
     logger.info("Deduplicating batch of " + records.size() + " records");
     batchReady(records.size());
 
     // prepare
-    long start = System.currentTimeMillis();
-    for (Record record : records)
-      database1.index(record);
-
+    long start = System.nanoTime();
+    index(database1, records);
     database1.commit();
-    indexing += System.currentTimeMillis() - start;
+    indexing.add(System.nanoTime() - start);
 
     // then match
     match(records, true);
@@ -274,26 +450,69 @@ public class Processor {
   }
 
   private void threadedmatch(Collection<Record> records, boolean matchall) {
-    // split batch into n smaller batches
-    MatchThread[] threads = new MatchThread[this.threads];
-    for (int ix = 0; ix < threads.length; ix++)
-      threads[ix] = new MatchThread(ix, records.size() / threads.length,
-                                    matchall);
-    int ix = 0;
-    for (Record record : records)
-      threads[ix++ % threads.length].addRecord(record);
+    List<Record> list = toList(records);
+    long start = System.nanoTime();
+    getMatchPool().invoke(new MatchTask(list, 0, list.size(), matchall));
+    matchwall.add(System.nanoTime() - start);
+  }
 
-    // kick off threads
-    for (ix = 0; ix < threads.length; ix++)
-      threads[ix].start();
+  /**
+   * Indexes the records. If there are several threads, and the
+   * database supports it, the match threads index the records in
+   * parallel.
+   */
+  private void index(Database db, Collection<Record> records) {
+    if (threads == 1 || !db.supportsConcurrentIndexing() ||
+        records.size() < 2) {
+      for (Record record : records)
+        index(db, record);
+      return;
+    }
 
-    // wait for threads to finish
-    try {
-      for (ix = 0; ix < threads.length; ix++)
-        threads[ix].join();
-    } catch (InterruptedException e) {
-      // argh
+    List<Record> list = toList(records);
+    // indexing the first record in this thread makes sure the
+    // database is fully initialized before the threads start
+    index(db, list.get(0));
+    long start = System.nanoTime();
+    getMatchPool().invoke(new IndexTask(db, list, 1, list.size()));
+    matchwall.add(System.nanoTime() - start);
+  }
+
+  private void index(Database db, Record record) {
+    if (logger.isDebugEnabled())
+      logger.debug("Indexing record " + record);
+    db.index(record);
+  }
+
+  private static List<Record> toList(Collection<Record> records) {
+    if (records instanceof List && records instanceof RandomAccess)
+      return (List<Record>) records;
+    else
+      return new ArrayList(records);
+  }
+
+  /**
+   * Returns the pool of match threads, creating it if necessary.
+   */
+  private synchronized ForkJoinPool getMatchPool() {
+    if (matchpool != null && matchpool.getParallelism() != threads)
+      shutdownMatchPool(); // number of threads has changed
+
+    if (matchpool == null) {
+      workers.clear();
+      matchpool = new ForkJoinPool(threads, new MatchWorkerFactory(workers),
+                                   null, false);
+      matchwall.reset();
     }
+    return matchpool;
+  }
+
+  private synchronized void shutdownMatchPool() {
+    if (matchpool == null)
+      return;
+
+    matchpool.shutdown();
+    matchpool = null;
   }
 
   /**
@@ -333,6 +552,7 @@ public class Processor {
 
     // start with source 1
     for (Collection<Record> batch : makeBatches(sources1, batch_size)) {
+      batch = toIndexed(batch);
       index(1, batch);
       if (hasTwoDatabases())
         linkBatch(2, batch, matchall);
@@ -340,6 +560,7 @@ public class Processor {
 
     // then source 2
     for (Collection<Record> batch : makeBatches(sources2, batch_size)) {
+      batch = toIndexed(batch);
       if (hasTwoDatabases())
         index(2, batch);
       linkBatch(1, batch, matchall);
@@ -419,6 +640,7 @@ public class Processor {
   }
 
   private void linkBatch(int dbno, Collection<Record> batch, boolean matchall) {
+    batch = toIndexed(batch);
     batchReady(batch.size());
     for (Record r : batch)
       match(dbno, r, matchall);
@@ -443,21 +665,23 @@ public class Processor {
     Database thedb = getDB(dbno);
 
     int count = 0;
+    List<Record> batch = new ArrayList();
     for (DataSource source : sources) {
       source.setLogger(logger);
 
       RecordIterator it2 = source.getRecords();
       while (it2.hasNext()) {
-        Record record = it2.next();
-        if (logger.isDebugEnabled())
-          logger.debug("Indexing record " + record);
-        thedb.index(record);
+        batch.add(toIndexed(it2.next()));
         count++;
-        if (count % batch_size == 0)
+        if (count % batch_size == 0) {
+          index(thedb, batch);
+          batch.clear();
           batchReady(batch_size);
+        }
       }
       it2.close();
     }
+    index(thedb, batch);
     if (count % batch_size == 0)
       batchReady(count % batch_size);
     thedb.commit();
@@ -471,11 +695,7 @@ public class Processor {
   public void index(int dbno, Collection<Record> batch) {
     Database thedb = getDB(dbno);
 
-    for (Record r : batch) {
-      if (logger.isDebugEnabled())
-        logger.debug("Indexing record " + r);
-      thedb.index(r);
-    }
+    index(thedb, toIndexed(batch));
     thedb.commit();
   }
 
@@ -483,24 +703,43 @@ public class Processor {
    * Returns the number of records that have been compared.
    */
   public long getComparisonCount() {
-    return comparisons;
+    return comparisons.sum();
+  }
+
+  /**
+   * Returns a snapshot of the performance statistics collected so
+   * far. The statistics are correct also when running with several
+   * threads, and are what the Profiler prints at the end of
+   * processing.
+   * @since 1.4
+   */
+  public Statistics getStatistics() {
+    long[] busy = new long[workers.size()];
+    for (int ix = 0; ix < busy.length; ix++)
+      busy[ix] = workers.get(ix).busy.get();
+    return new Statistics(comparisons.sum(), srcread.sum(), indexing.sum(),
+                          searching.sum(), comparing.sum(), callbacks.sum(),
+                          matchwall.sum(), busy);
   }
 
   private void match(int dbno, Record record, boolean matchall) {
-    long start = System.currentTimeMillis();
+    long start = System.nanoTime();
     Collection<Record> candidates = getDB(dbno).findCandidateMatches(record);
-    searching += System.currentTimeMillis() - start;
+    searching.add(System.nanoTime() - start);
+    Instrumentation instr = instrumentation;
+    if (instr != null)
+      instr.candidates.record(candidates.size());
     if (logger.isDebugEnabled())
       logger.debug("Matching record " +
                    PrintMatchListener.toString(record, config.getProperties()) +
                    " found " + candidates.size() + " candidates");
 
-    start = System.currentTimeMillis();
+    start = System.nanoTime();
     if (matchall)
       compareCandidatesSimple(record, candidates);
     else
       compareCandidatesBest(record, candidates);
-    comparing += System.currentTimeMillis() - start;
+    comparing.add(System.nanoTime() - start);
   }
 
   // ===== RECORD LINKAGE STRATEGIES
@@ -524,11 +763,13 @@ public class Processor {
   protected void compareCandidatesSimple(Record record,
                                          Collection<Record> candidates) {
     boolean found = false;
+    double cutoff = getLowestThreshold();
     for (Record candidate : candidates) {
       if (isSameAs(record, candidate))
         continue;
 
-      double prob = compare(record, candidate);
+      double prob = bounded ?
+        compare(record, candidate, cutoff) : compare(record, candidate);
       if (prob > config.getThreshold()) {
         found = true;
         registerMatch(record, candidate, prob);
@@ -549,13 +790,18 @@ public class Processor {
                                          Collection<Record> candidates) {
     double max = 0.0;
     Record best = null;
+    double threshold = getLowestThreshold();
 
     // go through all candidates, and find the best
     for (Record candidate : candidates) {
       if (isSameAs(record, candidate))
         continue;
 
-      double prob = compare(record, candidate);
+      // in bounded mode there's no point in scoring candidates which
+      // can't beat both the threshold and the best we have so far
+      double prob = bounded ?
+        compare(record, candidate, Math.max(threshold, max)) :
+        compare(record, candidate);
       if (prob > max) {
         max = prob;
         best = candidate;
@@ -580,7 +826,11 @@ public class Processor {
    * represent the same real-world entity.
    */
   public double compare(Record r1, Record r2) {
-    comparisons++;
+    if (isIndexed(r1, r2))
+      // no cutoff, so this compares all properties
+      return compare(r1, r2, Double.NEGATIVE_INFINITY);
+
+    comparisons.increment();
     double prob = 0.5;
     for (String propname : r1.getProperties()) {
       Property prop = config.getPropertyByName(propname);
@@ -589,40 +839,210 @@ public class Processor {
       if (prop.isIdProperty() || prop.isIgnoreProperty())
         continue;
 
-      Collection<String> vs1 = r1.getValues(propname);
-      Collection<String> vs2 = r2.getValues(propname);
-      if (vs1 == null || vs1.isEmpty() || vs2 == null || vs2.isEmpty())
+      double high = compareProperty(prop, -1, r1, r2);
+      if (high < 0.0)
+        continue; // no values to compare, so skip
+
+      prob = Utils.computeBayes(prob, high);
+    }
+    return prob;
+  }
+
+  /**
+   * Compares two records like compare(r1, r2), but gives up as soon
+   * as it is clear that the probability cannot end up above the
+   * cutoff. Properties are compared in an order that makes this
+   * happen as early as possible. If the comparison is abandoned the
+   * value returned is an upper bound on the real probability, and
+   * never higher than the cutoff.
+   * @since 1.4
+   */
+  public double compare(Record r1, Record r2, double cutoff) {
+    comparisons.increment();
+    boolean indexed = isIndexed(r1, r2);
+    double prob = 0.5;
+    for (int ix = 0; ix < proporder.size(); ix++) {
+      Property prop = proporder.get(ix);
+      if (prop.isIgnoreProperty())
+        continue;
+
+      double high = compareProperty(prop, indexed ? propindex[ix] : -1, r1, r2);
+      if (high < 0.0)
         continue; // no values to compare, so skip
 
-      double high = 0.0;
-      for (String v1 : vs1) {
-        if (v1.equals("")) // FIXME: these values shouldn't be here at all
+      prob = Utils.computeBayes(prob, high);
+
+      // can the remaining properties still get us above the cutoff?
+      if (ix + 1 < accprob.length) {
+        double ceiling = Utils.computeBayes(prob, accprob[ix + 1]);
+        if (ceiling <= cutoff)
+          return ceiling;
+      }
+    }
+    return prob;
+  }
+
+  /**
+   * Returns the highest probability produced by comparing any value
+   * of the property in r1 with any value of the property in r2, or
+   * -1.0 if one of the records has no values for the property.
+   * @param index The index of the property in the configuration, if
+   *              both records are IndexedRecords using it, and -1
+   *              otherwise.
+   */
+  private double compareProperty(Property prop, int index,
+                                 Record r1, Record r2) {
+    Instrumentation instr = instrumentation;
+    Histogram comphist = null;
+    long propstart = 0;
+    if (instr != null) {
+      comphist = instr.getComparatorHistogram(prop);
+      propstart = System.nanoTime();
+    }
+
+    double high;
+    if (prop.getComparator() instanceof PreparedComparator) {
+      PreparedValues pv1 = getPreparedValues(r1, prop, index);
+      PreparedValues pv2 = getPreparedValues(r2, prop, index);
+      if (pv1.isEmpty() || pv2.isEmpty())
+        return -1.0;
+      high = comparePrepared(prop, pv1, pv2, comphist);
+    } else if (index != -1) {
+      String[] vs1 = ((IndexedRecord) r1).getValues(index);
+      String[] vs2 = ((IndexedRecord) r2).getValues(index);
+      if (vs1.length == 0 || vs2.length == 0)
+        return -1.0;
+      high = compareValues(prop, vs1, vs2, comphist);
+    } else {
+      Collection<String> vs1 = r1.getValues(prop.getName());
+      Collection<String> vs2 = r2.getValues(prop.getName());
+      if (vs1 == null || vs1.isEmpty() || vs2 == null || vs2.isEmpty())
+        return -1.0;
+      high = compareValues(prop, vs1, vs2, comphist);
+    }
+
+    if (instr != null)
+      instr.getPropertyHistogram(prop).record(System.nanoTime() - propstart);
+    return high;
+  }
+
+  /**
+   * Returns the highest probability produced by comparing any value
+   * in vs1 with any value in vs2.
+   */
+  private double compareValues(Property prop, Collection<String> vs1,
+                               Collection<String> vs2, Histogram comphist) {
+    double high = 0.0;
+    for (String v1 : vs1) {
+      if (v1.equals("")) // FIXME: these values shouldn't be here at all
+        continue;
+
+      for (String v2 : vs2) {
+        if (v2.equals("")) // FIXME: these values shouldn't be here at all
           continue;
 
-        for (String v2 : vs2) {
-          if (v2.equals("")) // FIXME: these values shouldn't be here at all
-            continue;
-
-          try {
-            double p = prop.compare(v1, v2);
-            high = Math.max(high, p);
-          } catch (Exception e) {
-            throw new DukeException("Comparison of values '" + v1 + "' and "+
-                                    "'" + v2 + "' with " +
-                                    prop.getComparator() + " failed", e);
-          }
+        try {
+          long start = comphist == null ? 0 : System.nanoTime();
+          double p = prop.compare(v1, v2);
+          if (comphist != null)
+            comphist.record(System.nanoTime() - start);
+          high = Math.max(high, p);
+        } catch (Exception e) {
+          throw new DukeException("Comparison of values '" + v1 + "' and "+
+                                  "'" + v2 + "' with " +
+                                  prop.getComparator() + " failed", e);
         }
       }
+    }
+    return high;
+  }
 
-      prob = Utils.computeBayes(prob, high);
+  /**
+   * Does the same as compareValues, but for the values of an
+   * IndexedRecord, which are never empty.
+   */
+  private double compareValues(Property prop, String[] vs1, String[] vs2,
+                               Histogram comphist) {
+    double high = 0.0;
+    for (int ix1 = 0; ix1 < vs1.length; ix1++) {
+      for (int ix2 = 0; ix2 < vs2.length; ix2++) {
+        try {
+          long start = comphist == null ? 0 : System.nanoTime();
+          double p = prop.compare(vs1[ix1], vs2[ix2]);
+          if (comphist != null)
+            comphist.record(System.nanoTime() - start);
+          high = Math.max(high, p);
+        } catch (Exception e) {
+          throw new DukeException("Comparison of values '" + vs1[ix1] +
+                                  "' and '" + vs2[ix2] + "' with " +
+                                  prop.getComparator() + " failed", e);
+        }
+      }
     }
-    return prob;
+    return high;
+  }
+
+  /**
+   * Does the same as compareValues, but for prepared values.
+   */
+  private double comparePrepared(Property prop, PreparedValues pv1,
+                                 PreparedValues pv2, Histogram comphist) {
+    PreparedComparator comparator = pv1.getComparator();
+    double high = 0.0;
+    for (int ix1 = 0; ix1 < pv1.size(); ix1++) {
+      for (int ix2 = 0; ix2 < pv2.size(); ix2++) {
+        try {
+          long start = comphist == null ? 0 : System.nanoTime();
+          double sim = comparator.compare(pv1.getValue(ix1),
+                                          pv1.getPrepared(ix1),
+                                          pv2.getValue(ix2),
+                                          pv2.getPrepared(ix2));
+          if (comphist != null)
+            comphist.record(System.nanoTime() - start);
+          high = Math.max(high, prop.computeProbability(sim));
+        } catch (Exception e) {
+          throw new DukeException("Comparison of values '" +
+                                  pv1.getValue(ix1) + "' and '" +
+                                  pv2.getValue(ix2) + "' with " +
+                                  comparator + " failed", e);
+        }
+      }
+    }
+    return high;
+  }
+
+  /**
+   * Returns the values of the property in the record, prepared by the
+   * property's comparator. The prepared values are cached on the
+   * record, if it supports that.
+   * @param index The index of the property, if r is an IndexedRecord,
+   *              and -1 otherwise.
+   */
+  private static PreparedValues getPreparedValues(Record r, Property prop,
+                                                  int index) {
+    PreparedComparator comparator = (PreparedComparator) prop.getComparator();
+    PreparedValues pv = null;
+    if (index != -1)
+      pv = ((IndexedRecord) r).getPreparedValues(index);
+    else if (r instanceof CachingRecord)
+      pv = ((CachingRecord) r).getPreparedValues(prop.getName());
+
+    // the comparator may have been changed since the values were
+    // prepared (the genetic algorithm does this)
+    if (pv == null || pv.getComparator() != comparator) {
+      pv = new PreparedValues(prop.getName(), comparator,
+                              r.getValues(prop.getName()));
+      if (r instanceof CachingRecord)
+        ((CachingRecord) r).setPreparedValues(pv);
+    }
+    return pv;
   }
 
   /**
    * Commits all state to disk and frees up resources.
    */
   public void close() {
+    shutdownMatchPool();
     database1.close();
     if (hasTwoDatabases())
       database2.close();
@@ -710,7 +1130,40 @@ public class Processor {
       throw new DukeException("Unknown database " + no);
   }
 
+  /**
+   * Returns the lowest probability a pair must exceed in order to be
+   * reported to listeners at all.
+   */
+  private double getLowestThreshold() {
+    if (config.getMaybeThreshold() != 0.0)
+      return Math.min(config.getThreshold(), config.getMaybeThreshold());
+    return config.getThreshold();
+  }
+
+  /**
+   * Returns the highest probability comparing values of this property
+   * can possibly produce. Ignored properties never affect the result.
+   */
+  private static double getMaximumProbability(Property prop) {
+    if (prop.isIgnoreProperty())
+      return 0.5;
+    return Math.max(0.5, Math.max(prop.getHighProbability(),
+                                  prop.getLowProbability()));
+  }
+
   private boolean isSameAs(Record r1, Record r2) {
+    if (isIndexed(r1, r2)) {
+      for (int ix = 0; ix < idindex.length; ix++) {
+        String[] vs1 = ((IndexedRecord) r1).getValues(idindex[ix]);
+        String[] vs2 = ((IndexedRecord) r2).getValues(idindex[ix]);
+        for (int ix1 = 0; ix1 < vs1.length; ix1++)
+          for (int ix2 = 0; ix2 < vs2.length; ix2++)
+            if (vs1[ix1].equals(vs2[ix2]))
+              return true;
+      }
+      return false;
+    }
+
     for (Property idp : config.getIdentityProperties()) {
       Collection<String> vs2 = r2.getValues(idp.getName());
       Collection<String> vs1 = r1.getValues(idp.getName());
@@ -723,65 +1176,104 @@ public class Processor {
     return false;
   }
 
+  /**
+   * Returns true iff both records are IndexedRecords made with our
+   * configuration, so that values can be looked up by index.
+   */
+  private boolean isIndexed(Record r1, Record r2) {
+    return r1 instanceof IndexedRecord && r2 instanceof IndexedRecord &&
+      ((IndexedRecord) r1).getConfiguration() == config &&
+      ((IndexedRecord) r2).getConfiguration() == config;
+  }
+
+  /**
+   * Copies the record into an IndexedRecord, if indexed records are
+   * turned on.
+   */
+  private Record toIndexed(Record record) {
+    if (!indexed || record instanceof IndexedRecord)
+      return record;
+    return IndexedRecord.copyOf(record, config);
+  }
+
+  private Collection<Record> toIndexed(Collection<Record> records) {
+    if (!indexed)
+      return records;
+    List<Record> copies = new ArrayList(records.size());
+    for (Record record : records)
+      copies.add(toIndexed(record));
+    return copies;
+  }
+
   private void startProcessing() {
     if (logger.isDebugEnabled())
       logger.debug("Start processing with " + database1 + " and " + database2);
 
-    long start = System.currentTimeMillis();
+    // the busy figures are relative to matchwall, so both start over.
+    // threads that have been retired by the pool can go now.
+    matchwall.reset();
+    for (MatchWorker worker : workers) {
+      if (worker.isAlive())
+        worker.busy.set(0);
+      else
+        workers.remove(worker);
+    }
+
+    long start = System.nanoTime();
     for (MatchListener listener : listeners)
       listener.startProcessing();
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.nanoTime() - start);
   }
 
   private void endProcessing() {
-    long start = System.currentTimeMillis();
+    long start = System.nanoTime();
     for (MatchListener listener : listeners)
       listener.endProcessing();
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.nanoTime() - start);
   }
 
   private void batchReady(int size) {
-    long start = System.currentTimeMillis();
+    long start = System.nanoTime();
     for (MatchListener listener : listeners)
       listener.batchReady(size);
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.nanoTime() - start);
   }
 
   private void batchDone() {
-    long start = System.currentTimeMillis();
+    long start = System.nanoTime();
     for (MatchListener listener : listeners)
       listener.batchDone();
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.nanoTime() - start);
   }
 
   /**
    * Records the statement that the two records match.
    */
   private void registerMatch(Record r1, Record r2, double confidence) {
-    long start = System.currentTimeMillis();
+    long start = System.nanoTime();
     for (MatchListener listener : listeners)
       listener.matches(r1, r2, confidence);
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.nanoTime() - start);
   }
 
   /**
    * Records the statement that the two records may match.
    */
   private void registerMatchPerhaps(Record r1, Record r2, double confidence) {
-    long start = System.currentTimeMillis();
+    long start = System.nanoTime();
     for (MatchListener listener : listeners)
       listener.matchesPerhaps(r1, r2, confidence);
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.nanoTime() - start);
   }
 
   /**
    * Notifies listeners that we found no matches for this record.
    */
   private void registerNoMatchFor(Record current) {
-    long start = System.currentTimeMillis();
+    long start = System.nanoTime();
     for (MatchListener listener : listeners)
       listener.noMatchFor(current);
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.nanoTime() - start);
   }
 
   /**
@@ -803,26 +1295,243 @@ public class Processor {
   // ===== THREADS
 
   /**
-   * The thread that actually runs parallell matching. It holds the
-   * thread's share of the current batch.
+   * Matches a slice of the current batch. Slices are split in half
+   * until they are small, so that idle match threads can steal work
+   * from busy ones, instead of waiting for stragglers to finish.
    */
-  class MatchThread extends Thread {
-    private Collection<Record> records;
+  class MatchTask extends RecursiveAction {
+    private List<Record> records;
+    private int from;
+    private int to;
     private boolean matchall;
 
-    public MatchThread(int threadno, int recordcount, boolean matchall) {
-      super("MatchThread " + threadno);
-      this.records = new ArrayList(recordcount);
+    public MatchTask(List<Record> records, int from, int to,
+                     boolean matchall) {
+      this.records = records;
+      this.from = from;
+      this.to = to;
       this.matchall = matchall;
     }
 
+    protected void compute() {
+      if (to - from > MATCH_CHUNK_SIZE) {
+        int middle = (from + to) / 2;
+        invokeAll(new MatchTask(records, from, middle, matchall),
+                  new MatchTask(records, middle, to, matchall));
+        return;
+      }
+
+      long start = System.nanoTime();
+      for (int ix = from; ix < to; ix++)
+        match(1, records.get(ix), matchall);
+      MatchWorker.addBusyTime(start);
+    }
+  }
+
+  /**
+   * Indexes a slice of the current batch, splitting it the same way
+   * as MatchTask.
+   */
+  class IndexTask extends RecursiveAction {
+    private Database db;
+    private List<Record> records;
+    private int from;
+    private int to;
+
+    public IndexTask(Database db, List<Record> records, int from, int to) {
+      this.db = db;
+      this.records = records;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from > INDEX_CHUNK_SIZE) {
+        int middle = (from + to) / 2;
+        invokeAll(new IndexTask(db, records, from, middle),
+                  new IndexTask(db, records, middle, to));
+        return;
+      }
+
+      long start = System.nanoTime();
+      for (int ix = from; ix < to; ix++)
+        index(db, records.get(ix));
+      MatchWorker.addBusyTime(start);
+    }
+  }
+
+  /**
+   * The threads that actually run parallell matching. They live as
+   * long as the processor, unless the pool retires them for being
+   * idle, in which case it starts new ones when needed.
+   */
+  static class MatchWorker extends ForkJoinWorkerThread {
+    private AtomicLong busy; // ns spent matching and indexing
+
+    public MatchWorker(ForkJoinPool pool) {
+      super(pool);
+      this.busy = new AtomicLong();
+      setDaemon(true);
+    }
+
+    // the task may have run in the thread that invoked the pool, in
+    // which case there is nothing to record
+    static void addBusyTime(long start) {
+      Thread current = Thread.currentThread();
+      if (current instanceof MatchWorker)
+        ((MatchWorker) current).busy.addAndGet(System.nanoTime() - start);
+    }
+
+    protected void onStart() {
+      super.onStart();
+      // the pool index isn't known until the thread is registered
+      // with the pool, which happens after the constructor has run
+      setName("MatchThread " + getPoolIndex());
+    }
+  }
+
+  static class MatchWorkerFactory
+    implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+    private List<MatchWorker> workers; // every thread created goes here
+
+    public MatchWorkerFactory() {
+      this(new CopyOnWriteArrayList());
+    }
+
+    public MatchWorkerFactory(List<MatchWorker> workers) {
+      this.workers = workers;
+    }
+
+    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+      MatchWorker worker = new MatchWorker(pool);
+      workers.add(worker);
+      return worker;
+    }
+  }
+
+  /**
+   * A batch of records on its way through the pipeline, together with
+   * the iterator it came from. The last batch has no records.
+   */
+  static class Batch {
+    private Collection<Record> records;
+    private RecordIterator iterator;
+
+    public Batch(Collection<Record> records, RecordIterator iterator) {
+      this.records = records;
+      this.iterator = iterator;
+    }
+  }
+
+  /**
+   * The thread that reads records from the data sources in pipelined
+   * mode. Batches are put on the queue, followed by an empty batch
+   * when there is nothing more to read, or when reading fails. The
+   * batches come back on the processed queue once they have been
+   * deduplicated, and the reader then calls batchProcessed() on the
+   * iterator, but only once it has no unprocessed records read
+   * ahead.
+   */
+  class SourceReader extends Thread {
+    private Collection<DataSource> sources;
+    private int batch_size;
+    private BlockingQueue<Batch> queue;
+    private BlockingQueue<Batch> processed;
+    private Throwable error;
+    private int outstanding; // batches handed over, but not processed
+    private boolean unacked; // processed, but batchProcessed() not called
+
+    public SourceReader(Collection<DataSource> sources, int batch_size,
+                        BlockingQueue<Batch> queue,
+                        BlockingQueue<Batch> processed) {
+      super("SourceReader");
+      this.sources = sources;
+      this.batch_size = batch_size;
+      this.queue = queue;
+      this.processed = processed;
+      setDaemon(true);
+    }
+
     public void run() {
-      for (Record record : records)
-        match(1, record, matchall);
+      try {
+        read();
+      } catch (InterruptedException e) {
+        return; // processing failed, so nobody is listening
+      } catch (Throwable e) {
+        error = e;
+      }
+
+      try {
+        queue.put(new Batch(null, null));
+      } catch (InterruptedException e) {
+        // processing failed, so nobody is listening
+      }
+    }
+
+    public Throwable getError() {
+      return error;
+    }
+
+    private void read() throws InterruptedException {
+      int count = 0;
+      for (DataSource source : sources) {
+        source.setLogger(logger);
+
+        RecordIterator it = source.getRecords();
+        try {
+          Collection<Record> batch = new ArrayList();
+          long start = System.nanoTime();
+          while (it.hasNext()) {
+            batch.add(it.next());
+            count++;
+            if (count % batch_size == 0) {
+              srcread.add(System.nanoTime() - start);
+              handOver(new Batch(batch, it));
+              batch = new ArrayList();
+              start = System.nanoTime();
+
+              // nothing from the next batch has been read yet, so
+              // this is a safe point to acknowledge what's done
+              collectProcessed(false);
+              acknowledge(it);
+            }
+          }
+
+          if (!batch.isEmpty()) {
+            srcread.add(System.nanoTime() - start);
+            handOver(new Batch(batch, it));
+          }
+
+          // wait for the rest of this source to be processed before
+          // we let go of the iterator
+          collectProcessed(true);
+          acknowledge(it);
+        } finally {
+          it.close();
+        }
+      }
+    }
+
+    private void handOver(Batch batch) throws InterruptedException {
+      queue.put(batch);
+      outstanding++;
+    }
+
+    private void collectProcessed(boolean wait) throws InterruptedException {
+      while (outstanding > 0) {
+        Batch batch = wait ? processed.take() : processed.poll();
+        if (batch == null)
+          return;
+        outstanding--;
+        unacked = true;
+      }
     }
 
-    public void addRecord(Record record) {
-      records.add(record);
+    private void acknowledge(RecordIterator it) {
+      if (outstanding == 0 && unacked) {
+        it.batchProcessed();
+        unacked = false;
+      }
     }
   }
 
@@ -848,7 +1557,7 @@ public class Processor {
     }
 
     public void startProcessing() {
-      processing_start = System.currentTimeMillis();
+      processing_start = System.nanoTime();
       System.out.println("Duke version " + Duke.getVersionString());
       System.out.println(getDatabase());
       if (hasTwoDatabases())
@@ -857,42 +1566,67 @@ public class Processor {
     }
 
     public void batchReady(int size) {
-      batch_start = System.currentTimeMillis();
+      batch_start = System.nanoTime();
       batch_size = size;
     }
 
     public void batchDone() {
       records += batch_size;
-      int rs = (int) ((1000.0 * batch_size) /
-                      (System.currentTimeMillis() - batch_start));
+      int rs = (int) ((1000000000.0 * batch_size) /
+                      (System.nanoTime() - batch_start));
       System.out.println("" + records + " processed, " + rs +
                          " records/second; comparisons: " +
                          getComparisonCount());
     }
 
     public void endProcessing() {
-      long end = System.currentTimeMillis();
-      double rs = (1000.0 * records) / (end - processing_start);
+      long end = System.nanoTime();
+      double rs = (1000000000.0 * records) / (end - processing_start);
       System.out.println("Run completed, " + (int) rs + " records/second");
       System.out.println("" + records + " records total in " +
-                         ((end - processing_start) / 1000) + " seconds");
+                         seconds(end - processing_start) + " seconds");
 
-      long total = srcread + indexing + searching + comparing + callbacks;
+      Statistics stats = getStatistics();
+      long total = stats.getSourceReadTime() + stats.getIndexingTime() +
+        stats.getSearchingTime() + stats.getComparingTime() +
+        stats.getCallbackTime();
       System.out.println("Reading from source: " +
-                         seconds(srcread) + " (" +
-                         percent(srcread, total) + "%)");
+                         seconds(stats.getSourceReadTime()) + " (" +
+                         percent(stats.getSourceReadTime(), total) + "%)");
       System.out.println("Indexing: " +
-                         seconds(indexing) + " (" +
-                         percent(indexing, total) + "%)");
+                         seconds(stats.getIndexingTime()) + " (" +
+                         percent(stats.getIndexingTime(), total) + "%)");
       System.out.println("Searching: " +
-                         seconds(searching) + " (" +
-                         percent(searching, total) + "%)");
+                         seconds(stats.getSearchingTime()) + " (" +
+                         percent(stats.getSearchingTime(), total) + "%)");
       System.out.println("Comparing: " +
-                         seconds(comparing) + " (" +
-                         percent(comparing, total) + "%)");
+                         seconds(stats.getComparingTime()) + " (" +
+                         percent(stats.getComparingTime(), total) + "%)");
       System.out.println("Callbacks: " +
-                         seconds(callbacks) + " (" +
-                         percent(callbacks, total) + "%)");
+                         seconds(stats.getCallbackTime()) + " (" +
+                         percent(stats.getCallbackTime(), total) + "%)");
+      if (stats.getThreadedMatchTime() > 0) {
+        long[] busy = stats.getWorkerBusyTimes();
+        for (int ix = 0; ix < busy.length; ix++)
+          System.out.println("MatchThread " + ix + ": " +
+                             percent(busy[ix],
+                                     stats.getThreadedMatchTime()) +
+                             "% busy");
+      }
+      Instrumentation instr = getInstrumentation();
+      if (instr != null) {
+        System.out.println();
+        System.out.println("Candidates per record: " +
+                           format(instr.getCandidateHistogram(), 1));
+        for (Map.Entry<String, Histogram> e :
+               instr.getPropertyHistograms().entrySet())
+          System.out.println("Property " + e.getKey() + " (us): " +
+                             format(e.getValue(), 1000));
+        for (Map.Entry<String, Histogram> e :
+               instr.getComparatorHistograms().entrySet())
+          System.out.println("Comparator " + e.getKey() + " (us): " +
+                             format(e.getValue(), 1000));
+      }
       System.out.println();
       Runtime r = Runtime.getRuntime();
       System.out.println("Total memory: " + r.totalMemory() + ", " +
@@ -900,12 +1634,179 @@ public class Processor {
                          "used memory: " + (r.totalMemory() - r.freeMemory()));
     }
 
-    private String seconds(long ms) {
-      return "" + (int) (ms / 1000);
+    private String seconds(long ns) {
+      return "" + (int) (ns / 1000000000L);
+    }
+
+    private String percent(long ns, long total) {
+      return "" + (int) ((double) (ns * 100) / (double) total);
+    }
+
+    private String format(Histogram h, int divisor) {
+      return h.getCount() + " calls, mean " +
+        (int) (h.getMean() / divisor) + ", median " +
+        (h.getPercentile(50) / divisor) + ", 99th percentile " +
+        (h.getPercentile(99) / divisor) + ", max " +
+        (h.getPercentile(100) / divisor);
+    }
+  }
+
+  /**
+   * Detailed performance statistics, recorded while comparing
+   * records. Times are in nanoseconds. Properties and comparators are
+   * identified by name.
+   * @since 1.4
+   */
+  public static class Instrumentation {
+    private Map<String, Histogram> properties;
+    private Map<String, Histogram> comparators;
+    private Histogram candidates;
+
+    public Instrumentation() {
+      this.properties = new ConcurrentSkipListMap();
+      this.comparators = new ConcurrentSkipListMap();
+      this.candidates = new Histogram();
+    }
+
+    /**
+     * Returns the time spent comparing the values of each property.
+     */
+    public Map<String, Histogram> getPropertyHistograms() {
+      return properties;
+    }
+
+    /**
+     * Returns the time spent in each comparator, per pair of values.
+     */
+    public Map<String, Histogram> getComparatorHistograms() {
+      return comparators;
+    }
+
+    /**
+     * Returns the number of candidates found for each record.
+     */
+    public Histogram getCandidateHistogram() {
+      return candidates;
+    }
+
+    private Histogram getPropertyHistogram(Property prop) {
+      return getHistogram(properties, prop.getName());
+    }
+
+    private Histogram getComparatorHistogram(Property prop) {
+      if (prop.getComparator() == null)
+        return null;
+      String name = prop.getComparator().getClass().getSimpleName();
+      return getHistogram(comparators, name);
+    }
+
+    private static Histogram getHistogram(Map<String, Histogram> map,
+                                          String name) {
+      Histogram h = map.get(name);
+      if (h == null) {
+        map.putIfAbsent(name, new Histogram());
+        h = map.get(name);
+      }
+      return h;
+    }
+  }
+
+  /**
+   * A snapshot of the performance statistics of the processor. All
+   * times are in nanoseconds. Note that the times are added up over
+   * all threads, so with more than one thread they may add up to more
+   * than the wall-clock time.
+   * @since 1.4
+   */
+  public static class Statistics {
+    private long comparisons;
+    private long srcread;
+    private long indexing;
+    private long searching;
+    private long comparing;
+    private long callbacks;
+    private long matchwall;
+    private long[] workerbusy;
+
+    public Statistics(long comparisons, long srcread, long indexing,
+                      long searching, long comparing, long callbacks,
+                      long matchwall, long[] workerbusy) {
+      this.comparisons = comparisons;
+      this.srcread = srcread;
+      this.indexing = indexing;
+      this.searching = searching;
+      this.comparing = comparing;
+      this.callbacks = callbacks;
+      this.matchwall = matchwall;
+      this.workerbusy = workerbusy;
+    }
+
+    /**
+     * Returns the number of records that have been compared.
+     */
+    public long getComparisons() {
+      return comparisons;
+    }
+
+    /**
+     * Returns the time spent reading records from data sources.
+     */
+    public long getSourceReadTime() {
+      return srcread;
+    }
+
+    /**
+     * Returns the time spent indexing records.
+     */
+    public long getIndexingTime() {
+      return indexing;
+    }
+
+    /**
+     * Returns the time spent searching for candidate records.
+     */
+    public long getSearchingTime() {
+      return searching;
+    }
+
+    /**
+     * Returns the time spent comparing records with candidates.
+     */
+    public long getComparingTime() {
+      return comparing;
+    }
+
+    /**
+     * Returns the time spent notifying listeners.
+     */
+    public long getCallbackTime() {
+      return callbacks;
+    }
+
+    /**
+     * Returns the wall-clock time spent waiting for the match threads
+     * to finish matching or indexing, since processing last started.
+     * Zero if running with a single thread.
+     */
+    public long getThreadedMatchTime() {
+      return matchwall;
+    }
+
+    /**
+     * Returns the time each match thread has spent matching and
+     * indexing since processing last started. Comparing these with
+     * getThreadedMatchTime() shows how well the threads are used.
+     * Empty if running with a single thread.
+     */
+    public long[] getWorkerBusyTimes() {
+      return workerbusy;
     }
 
-    private String percent(long ms, long total) {
-      return "" + (int) ((double) (ms * 100) / (double) total);
+    public String toString() {
+      return "[Statistics comparisons=" + comparisons +
+        " srcread=" + srcread + " indexing=" + indexing +
+        " searching=" + searching + " comparing=" + comparing +
+        " callbacks=" + callbacks + " matchwall=" + matchwall + "]";
     }
   }
 }
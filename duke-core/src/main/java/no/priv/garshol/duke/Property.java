@@ -70,6 +70,36 @@ public interface Property {
    */
   public double compare(String v1, String v2);
 
+  /**
+   * Returns the probability that two values represent the same
+   * entity, given the similarity of the values as computed by the
+   * comparator.
+   * @since 1.4
+   */
+  public default double computeProbability(double sim) {
+    // we have been configured with a high probability (for equal
+    // values) and a low probability (for different values). given
+    // sim, which is a measure of the similarity somewhere in between
+    // equal and different, we now compute our estimate of the
+    // probability.
+
+    // if sim = 1.0, we return high. if sim = 0.0, we return low. for
+    // values in between we need to compute a little.  the obvious
+    // formula to use would be (sim * (high - low)) + low, which
+    // spreads the values out equally spaced between high and low.
+
+    // however, if the similarity is higher than 0.5 we don't want to
+    // consider this negative evidence, and so there's a threshold
+    // there.  also, users felt Duke was too eager to merge records,
+    // and wanted probabilities to fall off faster with lower
+    // probabilities, and so we square sim in order to achieve this.
+
+    if (sim >= 0.5)
+      return ((getHighProbability() - 0.5) * (sim * sim)) + 0.5;
+    else
+      return getLowProbability();
+  }
+
   /**
    * Returns a copy of the property.
    */
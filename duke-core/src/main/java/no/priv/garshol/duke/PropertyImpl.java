@@ -129,29 +129,7 @@ public class PropertyImpl implements Property {
     // first, we call the comparator, to get a measure of how similar
     // these two values are. note that this is not the same as what we
     // are going to return, which is a probability.
-    double sim = comparator.compare(v1, v2);
-
-    // we have been configured with a high probability (for equal
-    // values) and a low probability (for different values). given
-    // sim, which is a measure of the similarity somewhere in between
-    // equal and different, we now compute our estimate of the
-    // probability.
-
-    // if sim = 1.0, we return high. if sim = 0.0, we return low. for
-    // values in between we need to compute a little.  the obvious
-    // formula to use would be (sim * (high - low)) + low, which
-    // spreads the values out equally spaced between high and low.
-
-    // however, if the similarity is higher than 0.5 we don't want to
-    // consider this negative evidence, and so there's a threshold
-    // there.  also, users felt Duke was too eager to merge records,
-    // and wanted probabilities to fall off faster with lower
-    // probabilities, and so we square sim in order to achieve this.
-
-    if (sim >= 0.5)
-      return ((high - 0.5) * (sim * sim)) + 0.5;
-    else
-      return low;
+    return computeProbability(comparator.compare(v1, v2));
   }
 
   public Property copy() {
@@ -1,7 +1,7 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PreparedComparator;
 import no.priv.garshol.duke.DukeException;
 
 // The formula is taken from here:
@@ -19,7 +19,7 @@ import no.priv.garshol.duke.DukeException;
  *
  * @since 1.0
  */
-public class GeopositionComparator implements Comparator {
+public class GeopositionComparator implements PreparedComparator {
   private static final double R = 6371000; // in meters
   private double maxdist; // we default to 100 meters as the max
   private boolean strict; // whether to fail on errors
@@ -33,27 +33,40 @@ public class GeopositionComparator implements Comparator {
   }
   
   public double compare(String v1, String v2) {
+    return compare(v1, prepare(v1), v2, prepare(v2));
+  }
+
+  /**
+   * Returns the position as a {latitude, longitude} array, or null if
+   * the position is invalid.
+   */
+  public Object prepare(String value) {
     try {
-      double lat1 = getLatitude(v1);
-      double lon1 = getLongitude(v1);
-      double lat2 = getLatitude(v2);
-      double lon2 = getLongitude(v2);
-
-      if (!valid(lat1, lon1) || !valid(lat2, lon2))
-        return 0.5;
-        
-      double dist = distance(lat1, lon1, lat2, lon2);
-      if (dist > maxdist)
-        return 0.0;
-
-      return ((1.0 - (dist / maxdist)) * 0.5 ) + 0.5;
+      double lat = getLatitude(value);
+      double lon = getLongitude(value);
+      if (!valid(lat, lon))
+        return null;
+      return new double[] { lat, lon };
     } catch (NumberFormatException e) {
       if (strict)
         throw new DukeException("Invalid number: " + e, e);
-      return 0.5;
+      return null;
     }
   }
 
+  public double compare(String v1, Object p1, String v2, Object p2) {
+    if (p1 == null || p2 == null)
+      return 0.5;
+
+    double[] pos1 = (double[]) p1;
+    double[] pos2 = (double[]) p2;
+    double dist = distance(pos1[0], pos1[1], pos2[0], pos2[1]);
+    if (dist > maxdist)
+      return 0.0;
+
+    return ((1.0 - (dist / maxdist)) * 0.5 ) + 0.5;
+  }
+
   public void setStrict(boolean strict) {
     this.strict = strict;
   }
@@ -5,7 +5,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Collections;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PreparedComparator;
 import no.priv.garshol.duke.utils.StringUtils;
 
 /**
@@ -17,7 +17,7 @@ import no.priv.garshol.duke.utils.StringUtils;
  * allowing same token to be matched twice is unique to this comparator.
  * Should we reuse in Dice, or just support more methods than just Dice?
  */
-public class JaroWinklerTokenized implements Comparator {
+public class JaroWinklerTokenized implements PreparedComparator {
 
   public boolean isTokenized() {
     return true;
@@ -27,10 +27,21 @@ public class JaroWinklerTokenized implements Comparator {
     if (s1.equals(s2))
       return 1.0;
 
-    // tokenize
-    String[] t1 = StringUtils.split(s1);
-    String[] t2 = StringUtils.split(s2);
+    return compare(StringUtils.split(s1), StringUtils.split(s2));
+  }
+
+  public Object prepare(String value) {
+    return StringUtils.split(value);
+  }
+
+  public double compare(String s1, Object p1, String s2, Object p2) {
+    if (s1.equals(s2))
+      return 1.0;
+
+    return compare((String[]) p1, (String[]) p2);
+  }
 
+  private double compare(String[] t1, String[] t2) {
     // ensure that t1 is shorter than or same length as t2
     if (t1.length > t2.length) {
       String[] tmp = t2;
@@ -49,13 +60,16 @@ public class JaroWinklerTokenized implements Comparator {
     Collections.sort(matches);
 
     // now pick the best matches, never allowing the same token to be
-    // included twice. we mark a token as used by nulling it in t1|t2.
+    // included twice. the token arrays may be prepared values shared
+    // with other threads, so we mark used tokens in separate arrays.
+    boolean[] used1 = new boolean[t1.length];
+    boolean[] used2 = new boolean[t2.length];
     double sum = 0.0;
     for (Match m : matches) {
-      if (t1[m.ix1] != null && t2[m.ix2] != null) {
+      if (!used1[m.ix1] && !used2[m.ix2]) {
         sum += m.score;
-        t1[m.ix1] = null;
-        t2[m.ix2] = null;
+        used1[m.ix1] = true;
+        used2[m.ix2] = true;
       }
     }
 
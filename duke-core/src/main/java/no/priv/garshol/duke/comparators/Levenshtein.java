@@ -18,6 +18,13 @@ import no.priv.garshol.duke.Comparator;
  * individual methods.
  */
 public class Levenshtein implements Comparator {
+  // maps each character of the pattern to its row in the match
+  // vectors in myersDistance. always all zeroes between calls.
+  private static final ThreadLocal<int[]> ROWS = new ThreadLocal<int[]>() {
+    protected int[] initialValue() {
+      return new int[Character.MAX_VALUE + 1];
+    }
+  };
 
   public double compare(String s1, String s2) {   
     int len = Math.min(s1.length(), s2.length());
@@ -35,9 +42,10 @@ public class Levenshtein implements Comparator {
     if (len == maxlen && s1.equals(s2))
       return 1.0;
     
-    // we couldn't shortcut, so now we go ahead and compute the full
-    // metric
-    int dist = Math.min(compactDistance(s1, s2), len);
+    // we couldn't shortcut, so now we go ahead and compute the
+    // metric, stopping if the distance goes over half the length,
+    // since then we're at 0.5 or lower again
+    int dist = Math.min(myersDistance(s1, s2, len / 2), len);
     return 1.0 - (((double) dist) / ((double) len));
   }
 
@@ -57,12 +65,13 @@ public class Levenshtein implements Comparator {
       return s1.length();
 
     int s1len = s1.length();
+    int width = s1len + 1;
     // we use a flat array for better performance. we address it by
-    // s1ix + s1len * s2ix. this modification improves performance
+    // s1ix + width * s2ix. this modification improves performance
     // by about 30%, which is definitely worth the extra complexity.
-    int[] matrix = new int[(s1len + 1) * (s2.length() + 1)];
+    int[] matrix = new int[width * (s2.length() + 1)];
     for (int col = 0; col <= s2.length(); col++)
-      matrix[col * s1len] = col;
+      matrix[col * width] = col;
     for (int row = 0; row <= s1len; row++)
       matrix[row] = row;
 
@@ -75,22 +84,22 @@ public class Levenshtein implements Comparator {
         else
           cost = 1;
 
-        int left = matrix[ix1 + ((ix2 + 1) * s1len)] + 1;
-        int above = matrix[ix1 + 1 + (ix2 * s1len)] + 1;
-        int aboveleft = matrix[ix1 + (ix2 * s1len)] + cost;
-        matrix[ix1 + 1 + ((ix2 + 1) * s1len)] =
+        int left = matrix[ix1 + ((ix2 + 1) * width)] + 1;
+        int above = matrix[ix1 + 1 + (ix2 * width)] + 1;
+        int aboveleft = matrix[ix1 + (ix2 * width)] + cost;
+        matrix[ix1 + 1 + ((ix2 + 1) * width)] =
           Math.min(left, Math.min(above, aboveleft));
       }
     }
 
     // for (int ix1 = 0; ix1 <= s1len; ix1++) {
     //   for (int ix2 = 0; ix2 <= s2.length(); ix2++) {
-    //     System.out.print(matrix[ix1 + (ix2 * s1len)] + " ");
+    //     System.out.print(matrix[ix1 + (ix2 * width)] + " ");
     //   }
     //   System.out.println();
     // }
     
-    return matrix[s1len + (s2.length() * s1len)];
+    return matrix[s1len + (s2.length() * width)];
   }
   
   // /**
@@ -285,5 +294,142 @@ public class Levenshtein implements Comparator {
 
     // ok, we're done
     return above;
-  }  
+  }
+
+  /**
+   * Computes the distance with the bit-parallel algorithm of Myers
+   * (1999), in the formulation of Hyyr&ouml; (2001). Each column of
+   * the matrix is represented as bit vectors of the differences
+   * between adjacent cells, so that strings of up to 64 characters
+   * are handled with a handful of operations per character. Longer
+   * strings use Myers' blocked variant, with one 64-bit word per 64
+   * characters.
+   */
+  public static int myersDistance(String s1, String s2) {
+    return myersDistance(s1, s2, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Does the same as myersDistance(s1, s2), but stops as soon as it
+   * is clear that the distance is greater than maxdist. In that case
+   * the value returned is greater than maxdist, but not necessarily
+   * the actual distance.
+   */
+  public static int myersDistance(String s1, String s2, int maxdist) {
+    // the shorter string is the pattern, so that it is more likely to
+    // fit into a single word
+    String pattern = s1.length() <= s2.length() ? s1 : s2;
+    String text = s1.length() <= s2.length() ? s2 : s1;
+    int m = pattern.length();
+    int n = text.length();
+    if (m == 0 || n - m > maxdist)
+      return n;
+
+    int blocks = (m + 63) / 64;
+    int[] rows = ROWS.get();
+    try {
+      // build the match vectors: bit ix in the vector for a character
+      // is set if pattern[ix] is that character. row 0 is for
+      // characters which aren't in the pattern at all.
+      int free = 1;
+      for (int ix = 0; ix < m; ix++) {
+        char ch = pattern.charAt(ix);
+        if (rows[ch] == 0)
+          rows[ch] = free++;
+      }
+      long[] peq = new long[free * blocks];
+      for (int ix = 0; ix < m; ix++)
+        peq[rows[pattern.charAt(ix)] * blocks + (ix >>> 6)] |= 1L << ix;
+
+      if (blocks == 1)
+        return myersSingle(peq, rows, m, text, maxdist);
+      else
+        return myersBlocked(peq, rows, m, blocks, text, maxdist);
+    } finally {
+      for (int ix = 0; ix < m; ix++)
+        rows[pattern.charAt(ix)] = 0;
+    }
+  }
+
+  // the pattern fits in a single word
+  private static int myersSingle(long[] peq, int[] rows, int m, String text,
+                                 int maxdist) {
+    long last = 1L << (m - 1);
+    long pv = -1L; // vertical positive deltas: all +1 initially
+    long mv = 0L;  // vertical negative deltas
+    int score = m;
+    int n = text.length();
+    for (int ix = 0; ix < n; ix++) {
+      long eq = peq[rows[text.charAt(ix)]];
+      long xv = eq | mv;
+      long xh = (((eq & pv) + pv) ^ pv) | eq;
+      long ph = mv | ~(xh | pv);
+      long mh = pv & xh;
+      if ((ph & last) != 0)
+        score++;
+      else if ((mh & last) != 0)
+        score--;
+
+      // each remaining character can lower the score by at most one
+      if (score - (n - ix - 1) > maxdist)
+        return score - (n - ix - 1);
+
+      ph = (ph << 1) | 1; // first row is 0, 1, 2, ...
+      mh = mh << 1;
+      pv = mh | ~(xv | ph);
+      mv = ph & xv;
+    }
+    return score;
+  }
+
+  // the pattern needs more than one word. the horizontal delta at the
+  // bottom of each block is carried into the block below.
+  private static int myersBlocked(long[] peq, int[] rows, int m, int blocks,
+                                  String text, int maxdist) {
+    long[] pvs = new long[blocks];
+    long[] mvs = new long[blocks];
+    for (int ix = 0; ix < blocks; ix++)
+      pvs[ix] = -1L;
+    long last = 1L << ((m - 1) & 63);
+    int score = m;
+    int n = text.length();
+    for (int ix = 0; ix < n; ix++) {
+      int row = rows[text.charAt(ix)] * blocks;
+      int hin = 1; // first row is 0, 1, 2, ...
+      for (int block = 0; block < blocks; block++) {
+        long eq = peq[row + block];
+        long pv = pvs[block];
+        long mv = mvs[block];
+
+        long xv = eq | mv;
+        if (hin < 0)
+          eq |= 1L;
+        long xh = (((eq & pv) + pv) ^ pv) | eq;
+        long ph = mv | ~(xh | pv);
+        long mh = pv & xh;
+
+        long high = block == blocks - 1 ? last : 1L << 63;
+        int hout = 0;
+        if ((ph & high) != 0)
+          hout = 1;
+        else if ((mh & high) != 0)
+          hout = -1;
+
+        ph <<= 1;
+        mh <<= 1;
+        if (hin < 0)
+          mh |= 1L;
+        else if (hin > 0)
+          ph |= 1L;
+        pvs[block] = mh | ~(xv | ph);
+        mvs[block] = ph & xv;
+        hin = hout;
+      }
+      score += hin;
+
+      if (score - (n - ix - 1) > maxdist)
+        return score - (n - ix - 1);
+    }
+    return score;
+  }
 }
\ No newline at end of file
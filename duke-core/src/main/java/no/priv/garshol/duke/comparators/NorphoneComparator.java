@@ -47,13 +47,13 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PreparedComparator;
 
 /**
  * My own algorithm for phonetic matching of Norwegian names, inspired
  * by Metaphone.
  */
-public class NorphoneComparator implements Comparator {
+public class NorphoneComparator implements PreparedComparator {
   
   public double compare(String s1, String s2) {
     if (s1.equals(s2))
@@ -65,6 +65,20 @@ public class NorphoneComparator implements Comparator {
     return 0.0;
   }
 
+  public Object prepare(String value) {
+    return norphone(value);
+  }
+
+  public double compare(String s1, Object p1, String s2, Object p2) {
+    if (s1.equals(s2))
+      return 1.0;
+
+    if (p1.equals(p2))
+      return 0.9;
+
+    return 0.0;
+  }
+
   public boolean isTokenized() {
     return false;
   }
@@ -3,7 +3,7 @@ package no.priv.garshol.duke.comparators;
 
 import java.util.Set;
 import java.util.HashSet;
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PreparedComparator;
 import no.priv.garshol.duke.utils.ObjectUtils;
 
 import no.priv.garshol.duke.DukeConfigException;
@@ -15,7 +15,7 @@ import no.priv.garshol.duke.DukeConfigException;
  * overlap.
  * @since 1.0
  */
-public class QGramComparator implements Comparator {
+public class QGramComparator implements PreparedComparator {
   private Formula formula;
   private Tokenizer tokenizer;
   private int q;
@@ -34,9 +34,21 @@ public class QGramComparator implements Comparator {
     if (s1.equals(s2))
       return 1.0;
 
-    Set<String> q1 = tokenizer.qgrams(s1, q);
-    Set<String> q2 = tokenizer.qgrams(s2, q);
+    return compare(tokenizer.qgrams(s1, q), tokenizer.qgrams(s2, q));
+  }
+
+  public Object prepare(String value) {
+    return tokenizer.qgrams(value, q);
+  }
+
+  public double compare(String s1, Object p1, String s2, Object p2) {
+    if (s1.equals(s2))
+      return 1.0;
+
+    return compare((Set<String>) p1, (Set<String>) p2);
+  }
 
+  private double compare(Set<String> q1, Set<String> q2) {
     if (q1.isEmpty() || q2.isEmpty())
       return 0.0; // division will fail
 
@@ -18,6 +18,18 @@ import no.priv.garshol.duke.Record;
  * An abstract database using blocking to find candidate records. It
  * has different concrete implementations depending on where the
  * actual data is stored.
+ *
+ * <p>Candidates are found with the sorted neighbourhood method: the
+ * blocks of each key function are kept sorted by key, and records are
+ * taken from the block with the record's key and the blocks next to
+ * it. By default a fixed number of records is taken on each side. In
+ * adaptive mode the window instead keeps growing as long as the keys
+ * of neighbouring blocks are similar, and stops as soon as they
+ * aren't.
+ *
+ * <p>If a secondary key function is set, each block is also split
+ * into sub-blocks by the secondary key. When a block is too big to
+ * search, the sub-blocks are searched instead.
  * @since 1.2
  */
 public abstract class AbstractBlockingDatabase implements Database {
@@ -25,14 +37,23 @@ public abstract class AbstractBlockingDatabase implements Database {
   protected Collection<KeyFunction> functions;
   protected Map<String, Record> idmap;
   protected Map<KeyFunction, NavigableMap> func_to_map;
+  // key function -> key function for its sub-blocks
+  protected Map<KeyFunction, KeyFunction> subfunctions;
 
   // config
   protected int window_size;
+  protected boolean adaptive;
+  protected int max_window_size;
+  protected double key_similarity;
+  protected KeyFunction secondary;
 
   public AbstractBlockingDatabase() {
     this.functions = new ArrayList();
     this.func_to_map = new HashMap();
+    this.subfunctions = new HashMap();
     this.window_size = 5;
+    this.max_window_size = 50;
+    this.key_similarity = 0.5;
   }
 
   public void setConfiguration(Configuration config) {
@@ -58,11 +79,62 @@ public abstract class AbstractBlockingDatabase implements Database {
    */
   public void setKeyFunctions(Collection<KeyFunction> functions) {
     this.functions = functions;
+    makeSubFunctions();
   }
 
   public Collection<KeyFunction> getKeyFunctions() {
     return functions;
   }
+
+  /**
+   * Turns the adaptive window on or off. In adaptive mode the window
+   * on each side of the start block extends over the neighbouring
+   * blocks for as long as the key of each block is at least
+   * key_similarity similar to the key of the block before it, but
+   * never beyond max_window_size records.
+   * @since 1.4
+   */
+  public void setAdaptiveWindow(boolean adaptive) {
+    this.adaptive = adaptive;
+  }
+
+  /**
+   * Sets the maximum number of records to gather on each side of the
+   * start block in adaptive mode. If the start block has more records
+   * than twice this no neighbouring blocks are searched. Default 50.
+   * @since 1.4
+   */
+  public void setMaxWindowSize(int max_window_size) {
+    this.max_window_size = max_window_size;
+  }
+
+  /**
+   * Sets how similar (from 0.0 to 1.0) the keys of neighbouring
+   * blocks must be for the adaptive window to extend over them.
+   * Similarity is the length of the common prefix divided by the
+   * length of the longer key. Default 0.5.
+   * @since 1.4
+   */
+  public void setKeySimilarity(double key_similarity) {
+    this.key_similarity = key_similarity;
+  }
+
+  /**
+   * Sets the key function used to split blocks into sub-blocks. If
+   * the block for a record is too big to search (more than twice the
+   * window size), only the sub-blocks near the record's secondary key
+   * are searched, instead of the whole block. Records must be indexed
+   * after this is set.
+   * @since 1.4
+   */
+  public void setSecondaryKeyFunction(KeyFunction secondary) {
+    this.secondary = secondary;
+    makeSubFunctions();
+  }
+
+  public KeyFunction getSecondaryKeyFunction() {
+    return secondary;
+  }
   
   protected void indexById(Record record) {
     for (Property idprop : config.getIdentityProperties())
@@ -84,38 +156,19 @@ public abstract class AbstractBlockingDatabase implements Database {
 
       // look up the first block
       Map.Entry<String, Object> start = blocks.ceilingEntry(key);
-      Map.Entry<String, Object> entry = start;
       if (start == null)
         continue;
-      
-      // add all records from this block
-      int added = addBlock(candidates, start);
-      // System.out.println("entry '" + entry.getKey() + "' " + added);
-      // System.out.println("start: " + start.getValue() + " " + added);
-      if (added > window_size * 2)
-        continue; // we can't add more candidates from this key function
-
-      // then we navigate downwards from the key
-      int added_this_way = added / 2;
-      entry = blocks.lowerEntry(entry.getKey());
-      while (entry != null && added_this_way < window_size) {
-        // System.out.println("entry low: " + entry.getValue() + " " + added_this_way);
-        added_this_way += addBlock(candidates, entry);
-        // System.out.println("entry '" + entry.getKey() + "' " + entry.getValue().size());
-
-        entry = blocks.lowerEntry(entry.getKey());
-      }
 
-      // then we navigate upwards from the key
-      added_this_way = added / 2;
-      entry = blocks.higherEntry(start.getKey());
-      while (entry != null && added_this_way < window_size) {
-        // System.out.println("entry high: " + entry.getValue() + " " + added_this_way);
-        added_this_way += addBlock(candidates, entry);
-        // System.out.println("entry '" + entry.getKey() + "' " + entry.getValue().size());
-
-        entry = blocks.higherEntry(entry.getKey());
-      }
+      KeyFunction subfunc = subfunctions.get(keyfunc);
+      if (subfunc != null && getBlockSize(start) > getWindowLimit() * 2) {
+        // the block is too big, so we search its sub-blocks instead
+        NavigableMap<String, Object> subblocks = getBlocks(subfunc);
+        String subkey = subfunc.makeKey(record);
+        Map.Entry<String, Object> substart = subblocks.ceilingEntry(subkey);
+        if (substart != null)
+          searchNeighbourhood(candidates, subblocks, subkey, substart);
+      } else
+        searchNeighbourhood(candidates, blocks, key, start);
     }
 
     return candidates;
@@ -127,6 +180,30 @@ public abstract class AbstractBlockingDatabase implements Database {
   public void close() {
   }
   
+  /**
+   * Returns all the key functions records must be indexed with,
+   * including those for the sub-blocks.
+   */
+  protected Collection<KeyFunction> getIndexFunctions() {
+    if (subfunctions.isEmpty())
+      return functions;
+    Collection<KeyFunction> all = new ArrayList(functions);
+    all.addAll(subfunctions.values());
+    return all;
+  }
+
+  /**
+   * Returns a name for the key function which is the same every time
+   * the database is used, so that stored blocks can be found again.
+   */
+  protected String getName(KeyFunction keyfunc) {
+    if (keyfunc instanceof SubBlockKeyFunction) {
+      SubBlockKeyFunction subfunc = (SubBlockKeyFunction) keyfunc;
+      return getName(subfunc.primary) + "+" + getName(subfunc.secondary);
+    }
+    return keyfunc.getName();
+  }
+
   public NavigableMap getBlocks(KeyFunction keyfunc) {
     NavigableMap map = func_to_map.get(keyfunc);
     if (map == null) {
@@ -136,6 +213,75 @@ public abstract class AbstractBlockingDatabase implements Database {
     return map;
   }
 
+  /**
+   * Adds the start block and its neighbourhood to the candidates.
+   */
+  private void searchNeighbourhood(Collection<Record> candidates,
+                                   NavigableMap<String, Object> blocks,
+                                   String key,
+                                   Map.Entry<String, Object> start) {
+    // add all records from this block
+    int added = addBlock(candidates, start);
+    if (added > getWindowLimit() * 2)
+      return; // we can't add more candidates from this key function
+
+    // then we navigate downwards from the key. the start block may
+    // be above the key, so the first block below is compared to that
+    Map.Entry<String, Object> entry = blocks.lowerEntry(start.getKey());
+    walk(candidates, blocks, entry, key, added / 2, false);
+
+    // then we navigate upwards from the key
+    entry = blocks.higherEntry(start.getKey());
+    walk(candidates, blocks, entry, start.getKey(), added / 2, true);
+  }
+
+  private void walk(Collection<Record> candidates,
+                    NavigableMap<String, Object> blocks,
+                    Map.Entry<String, Object> entry,
+                    String previous,
+                    int added_this_way,
+                    boolean upwards) {
+    int limit = getWindowLimit();
+    while (entry != null && added_this_way < limit) {
+      if (adaptive && keySimilarity(previous, entry.getKey()) < key_similarity)
+        break; // the keys are drifting apart, so the window ends here
+      added_this_way += addBlock(candidates, entry);
+      previous = entry.getKey();
+
+      if (upwards)
+        entry = blocks.higherEntry(entry.getKey());
+      else
+        entry = blocks.lowerEntry(entry.getKey());
+    }
+  }
+
+  private int getWindowLimit() {
+    return adaptive ? max_window_size : window_size;
+  }
+
+  /**
+   * Returns the length of the common prefix of the keys divided by
+   * the length of the longer key.
+   */
+  static double keySimilarity(String key1, String key2) {
+    int max = Math.max(key1.length(), key2.length());
+    if (max == 0)
+      return 1.0;
+    int min = Math.min(key1.length(), key2.length());
+    int common = 0;
+    while (common < min && key1.charAt(common) == key2.charAt(common))
+      common++;
+    return common / (double) max;
+  }
+
+  private void makeSubFunctions() {
+    subfunctions = new HashMap();
+    if (secondary == null)
+      return;
+    for (KeyFunction keyfunc : functions)
+      subfunctions.put(keyfunc, new SubBlockKeyFunction(keyfunc, secondary));
+  }
+
   // --- extension points
 
   // must also implement index(Record)
@@ -143,9 +289,38 @@ public abstract class AbstractBlockingDatabase implements Database {
   // returns number of records added
   protected abstract int addBlock(Collection<Record> candidates,
                                   Map.Entry block);
+
+  // returns number of records in the block
+  protected abstract int getBlockSize(Map.Entry block);
   
   protected abstract NavigableMap makeMap(KeyFunction keyfunc);
 
+  // --- SUB-BLOCK KEYS
+
+  /**
+   * Makes keys for the sub-blocks from the primary key followed by
+   * the secondary key, so that the sub-blocks of a block sort
+   * together, directly before any key which has the primary key as a
+   * prefix.
+   */
+  static class SubBlockKeyFunction implements KeyFunction {
+    private KeyFunction primary;
+    private KeyFunction secondary;
+
+    public SubBlockKeyFunction(KeyFunction primary, KeyFunction secondary) {
+      this.primary = primary;
+      this.secondary = secondary;
+    }
+
+    public String makeKey(Record record) {
+      return primary.makeKey(record) + '\u0001' + secondary.makeKey(record);
+    }
+
+    public String toString() {
+      return primary + "+" + secondary;
+    }
+  }
+
 
   // --- BLOCK CONTAINER
 
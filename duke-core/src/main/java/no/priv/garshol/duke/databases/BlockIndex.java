@@ -0,0 +1,367 @@
+
+package no.priv.garshol.duke.databases;
+
+import no.priv.garshol.duke.DukeException;
+
+/**
+ * An immutable, sorted list of blocking keys, each with the numbers
+ * of the records in its block. The keys are prefix-compressed into a
+ * single char array: each key is stored as the number of chars it
+ * shares with the key before it, the number of chars that follow,
+ * and those chars. Every RESTART_INTERVAL keys a key is stored in
+ * full, so that lookups can do a binary search over those keys, and
+ * then scan forward from there. The record numbers of all blocks are
+ * kept in one int array.
+ * @since 1.4
+ */
+class BlockIndex {
+  static final int RESTART_INTERVAL = 16;
+  private char[] chars;     // the encoded keys
+  private int[] restarts;   // offset in chars of every 16th key
+  private int[] starts;     // key no -> offset in records of its block
+  private int[] records;
+  private int size;         // number of keys
+
+  private BlockIndex(char[] chars, int[] restarts, int[] starts,
+                     int[] records, int size) {
+    this.chars = chars;
+    this.restarts = restarts;
+    this.starts = starts;
+    this.records = records;
+    this.size = size;
+  }
+
+  /**
+   * Returns the number of keys.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of records in all the blocks together.
+   */
+  public int getRecordCount() {
+    return starts[size];
+  }
+
+  /**
+   * Returns the key at the given position.
+   */
+  public String getKey(int pos) {
+    Cursor cursor = new Cursor(pos / RESTART_INTERVAL);
+    while (cursor.pos < pos)
+      cursor.next();
+    return cursor.getKey();
+  }
+
+  /**
+   * Returns the number of records in the block at the given position.
+   */
+  public int getBlockSize(int pos) {
+    return starts[pos + 1] - starts[pos];
+  }
+
+  /**
+   * Copies the record numbers of the block at the given position into
+   * the array, starting at offset. Returns the new offset.
+   */
+  public int getRecords(int pos, int[] into, int offset) {
+    int length = getBlockSize(pos);
+    System.arraycopy(records, starts[pos], into, offset, length);
+    return offset + length;
+  }
+
+  /**
+   * Returns the position of the first key that is equal to or greater
+   * than the key, or size() if there is none.
+   */
+  public int ceiling(String key) {
+    if (size == 0)
+      return 0;
+
+    // find the last restart key which is not greater than the key
+    int low = 0;
+    int high = restarts.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (compareRestart(mid, key) <= 0)
+        low = mid;
+      else
+        high = mid - 1;
+    }
+
+    // then scan forward from there
+    Cursor cursor = new Cursor(low);
+    while (cursor.compareTo(key) < 0) {
+      if (!cursor.next())
+        return size;
+    }
+    return cursor.pos;
+  }
+
+  /**
+   * Returns the position of the first key greater than the key, or
+   * size() if there is none.
+   */
+  public int higher(String key) {
+    int pos = ceiling(key);
+    if (pos < size && getKey(pos).equals(key))
+      pos++;
+    return pos;
+  }
+
+  /**
+   * Returns the position of the last key less than the key, or -1 if
+   * there is none.
+   */
+  public int lower(String key) {
+    return ceiling(key) - 1;
+  }
+
+  /**
+   * Returns the position of the key, or -1 if it's not there.
+   */
+  public int find(String key) {
+    int pos = ceiling(key);
+    if (pos < size && getKey(pos).equals(key))
+      return pos;
+    return -1;
+  }
+
+  /**
+   * Returns a cursor positioned on the first key.
+   */
+  public Cursor cursor() {
+    return new Cursor(0);
+  }
+
+  /**
+   * Merges two indexes into one. The records of a key in the first
+   * index go before the records of the same key in the second.
+   */
+  public static BlockIndex merge(BlockIndex index1, BlockIndex index2) {
+    Builder builder = new Builder();
+    Cursor cursor1 = index1.cursor();
+    Cursor cursor2 = index2.cursor();
+    boolean more1 = index1.size > 0;
+    boolean more2 = index2.size > 0;
+    while (more1 || more2) {
+      int cmp;
+      if (!more1)
+        cmp = 1;
+      else if (!more2)
+        cmp = -1;
+      else
+        cmp = cursor1.compareTo(cursor2);
+
+      String key = (cmp <= 0 ? cursor1 : cursor2).getKey();
+      if (cmp <= 0) {
+        cursor1.addRecords(builder, key);
+        more1 = cursor1.next();
+      }
+      if (cmp >= 0) {
+        cursor2.addRecords(builder, key);
+        more2 = cursor2.next();
+      }
+    }
+    return builder.build();
+  }
+
+  // compares the restart key with the key
+  private int compareRestart(int restart, String key) {
+    int offset = restarts[restart];
+    int length = chars[offset + 1]; // no shared chars in restart keys
+    offset += 2;
+    int min = Math.min(length, key.length());
+    for (int ix = 0; ix < min; ix++) {
+      int diff = chars[offset + ix] - key.charAt(ix);
+      if (diff != 0)
+        return diff;
+    }
+    return length - key.length();
+  }
+
+  // --- CURSOR
+
+  /**
+   * Decodes the keys one by one, from a restart point and onwards.
+   */
+  class Cursor {
+    private int pos;      // position of the current key
+    private int offset;   // offset in chars of the current key
+    private int next;     // offset in chars of the next key
+    private char[] key;
+    private int length;
+
+    private Cursor(int restart) {
+      this.pos = restart * RESTART_INTERVAL;
+      this.offset = restarts.length == 0 ? 0 : restarts[restart];
+      this.key = new char[32];
+      if (pos < size)
+        decode();
+    }
+
+    public int getPosition() {
+      return pos;
+    }
+
+    public String getKey() {
+      return new String(key, 0, length);
+    }
+
+    /**
+     * Moves to the next key, returning false if there is none.
+     */
+    public boolean next() {
+      pos++;
+      offset = next;
+      if (pos >= size)
+        return false;
+      decode();
+      return true;
+    }
+
+    public int compareTo(String other) {
+      int min = Math.min(length, other.length());
+      for (int ix = 0; ix < min; ix++) {
+        int diff = key[ix] - other.charAt(ix);
+        if (diff != 0)
+          return diff;
+      }
+      return length - other.length();
+    }
+
+    public int compareTo(Cursor other) {
+      int min = Math.min(length, other.length);
+      for (int ix = 0; ix < min; ix++) {
+        int diff = key[ix] - other.key[ix];
+        if (diff != 0)
+          return diff;
+      }
+      return length - other.length;
+    }
+
+    private void addRecords(Builder builder, String thekey) {
+      for (int ix = starts[pos]; ix < starts[pos + 1]; ix++)
+        builder.add(thekey, records[ix]);
+    }
+
+    private void decode() {
+      int shared = chars[offset];
+      int suffix = chars[offset + 1];
+      length = shared + suffix;
+      if (length > key.length) {
+        char[] newkey = new char[Math.max(length, key.length * 2)];
+        System.arraycopy(key, 0, newkey, 0, shared);
+        key = newkey;
+      }
+      System.arraycopy(chars, offset + 2, key, shared, suffix);
+      next = offset + 2 + suffix;
+    }
+  }
+
+  // --- BUILDER
+
+  /**
+   * Builds an index from keys added in sorted order.
+   */
+  static class Builder {
+    private char[] chars;
+    private int charcount;
+    private int[] restarts;
+    private int[] starts;
+    private int[] records;
+    private int recordcount;
+    private int size;
+    private String previous;
+
+    public Builder() {
+      this.chars = new char[256];
+      this.restarts = new int[16];
+      this.starts = new int[64];
+      this.records = new int[64];
+    }
+
+    /**
+     * Adds a record to the block for the key. Keys must be added in
+     * sorted order.
+     */
+    public void add(String key, int record) {
+      if (previous == null || !previous.equals(key)) {
+        if (previous != null && previous.compareTo(key) > 0)
+          throw new DukeException("Key '" + key + "' added after '" +
+                                  previous + "'");
+        addKey(key);
+      }
+
+      if (recordcount >= records.length)
+        records = grow(records);
+      records[recordcount++] = record;
+    }
+
+    public BlockIndex build() {
+      if (size >= starts.length)
+        starts = grow(starts);
+      starts[size] = recordcount;
+
+      int restartcount = (size + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+      return new BlockIndex(trim(chars, charcount),
+                            trim(restarts, restartcount),
+                            trim(starts, size + 1),
+                            trim(records, recordcount),
+                            size);
+    }
+
+    private void addKey(String key) {
+      if (key.length() > Character.MAX_VALUE)
+        throw new DukeException("Blocking key longer than " +
+                                (int) Character.MAX_VALUE + " chars");
+
+      int shared = 0;
+      if (size % RESTART_INTERVAL == 0) {
+        if (size / RESTART_INTERVAL >= restarts.length)
+          restarts = grow(restarts);
+        restarts[size / RESTART_INTERVAL] = charcount;
+      } else {
+        int max = Math.min(previous.length(), key.length());
+        while (shared < max && previous.charAt(shared) == key.charAt(shared))
+          shared++;
+      }
+
+      int suffix = key.length() - shared;
+      while (charcount + 2 + suffix > chars.length) {
+        char[] newchars = new char[chars.length * 2];
+        System.arraycopy(chars, 0, newchars, 0, charcount);
+        chars = newchars;
+      }
+      chars[charcount++] = (char) shared;
+      chars[charcount++] = (char) suffix;
+      key.getChars(shared, key.length(), chars, charcount);
+      charcount += suffix;
+
+      if (size >= starts.length)
+        starts = grow(starts);
+      starts[size++] = recordcount;
+      previous = key;
+    }
+
+    private static int[] grow(int[] array) {
+      int[] newarray = new int[array.length * 2];
+      System.arraycopy(array, 0, newarray, 0, array.length);
+      return newarray;
+    }
+
+    private static int[] trim(int[] array, int length) {
+      int[] newarray = new int[length];
+      System.arraycopy(array, 0, newarray, 0, length);
+      return newarray;
+    }
+
+    private static char[] trim(char[] array, int length) {
+      char[] newarray = new char[length];
+      System.arraycopy(array, 0, newarray, 0, length);
+      return newarray;
+    }
+  }
+}
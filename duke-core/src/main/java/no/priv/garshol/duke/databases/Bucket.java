@@ -3,61 +3,233 @@ package no.priv.garshol.duke.databases;
 
 import java.util.Arrays;
 
+/**
+ * The IDs of the records containing a token, in ascending order. The
+ * IDs are stored as the differences between consecutive IDs, encoded
+ * as variable-length integers, which usually takes one or two bytes
+ * per ID. Every SKIP_INTERVAL IDs a skip entry is recorded, so that
+ * advancing to a given ID doesn't mean decoding everything before it.
+ *
+ * <p>IDs are expected to be added in ascending order. IDs which
+ * arrive out of order are held separately until the next sort().
+ * The same ID may be added more than once.
+ */
 public class Bucket implements Comparable<Bucket> {
-  // the index of the next free cell in the array (== size())
-  public int nextfree;
-  // if the bucket has gone over size, this is 'null'
-  public long[] records;
-  // true iff new records have been added to the bucket since last sorting
-  private boolean dirty;
-  // if buckets go over this size, discard contents
-  private static final int MAX_BUCKET_SIZE = 1000000;
+  private static final int SKIP_INTERVAL = 64;
+  // number of IDs in the bucket, including unsorted ones
+  private int size;
+  // the encoded IDs
+  private byte[] data;
+  private int datasize; // bytes used in data
+  private int last;     // the last ID in data
+  private int encoded;  // number of IDs in data
+  // every SKIP_INTERVAL IDs we record the ID and where the next starts
+  private int[] skipids;
+  private int[] skipoffsets;
+  // IDs added out of order since the last sort(), or null
+  private int[] unsorted;
+  private int unsortedsize;
 
   public Bucket() {
-    this.records = new long[10];
-  }
-    
-  public void add(long id) {
-    if (records == null)
-      return; // bucket went over size, now discarding all records
-    
-    if (nextfree >= records.length) {
-      if (nextfree >= MAX_BUCKET_SIZE) {
-        // this bucket is now oversized
-        records = null;
-        dirty = false;
-        return;
-      }
-        
-      long[] newbuf = new long[Math.min(records.length * 2, MAX_BUCKET_SIZE)];
-      System.arraycopy(records, 0, newbuf, 0, records.length);
-      records = newbuf;
+    this.data = new byte[8];
+  }
+
+  /**
+   * Adds the ID to the bucket.
+   * @return true iff the ID arrived out of order, so that the bucket
+   *         needs to be sorted before it can be found
+   */
+  public boolean add(int id) {
+    size++;
+    if (encoded > 0 && id < last) {
+      if (unsorted == null)
+        unsorted = new int[4];
+      else if (unsortedsize == unsorted.length)
+        unsorted = Arrays.copyOf(unsorted, unsortedsize * 2);
+      unsorted[unsortedsize++] = id;
+      return true;
     }
-    records[nextfree++] = id;
-    dirty = true;
+    append(id);
+    return false;
+  }
+
+  /**
+   * Returns the number of IDs in the bucket.
+   */
+  public int size() {
+    return size;
   }
 
   public int compareTo(Bucket other) {
-    return nextfree - other.nextfree;
+    return size() - other.size();
+  }
+
+  /**
+   * Returns true iff all IDs are in sorted order, that is, there are
+   * no IDs which arrived out of order and haven't been sorted yet.
+   */
+  public boolean isSorted() {
+    return unsorted == null;
   }
 
+  /**
+   * Makes IDs added out of order part of the sorted sequence.
+   */
   public void sort() {
-    if (!dirty)
+    if (unsorted == null)
       return;
 
-    Arrays.sort(records, 0, nextfree);
-    dirty = false;
+    int[] ids = new int[size];
+    Reader reader = reader();
+    int count = 0;
+    for (int id = reader.next(); id != -1; id = reader.next())
+      ids[count++] = id;
+    System.arraycopy(unsorted, 0, ids, count, unsortedsize);
+    Arrays.sort(ids);
+
+    data = new byte[Math.max(8, datasize)];
+    datasize = 0;
+    encoded = 0;
+    last = 0;
+    skipids = null;
+    skipoffsets = null;
+    unsorted = null;
+    unsortedsize = 0;
+    for (int ix = 0; ix < ids.length; ix++)
+      append(ids[ix]);
   }
 
   public double getScore() {
-    //return 1.0 / (double) nextfree;
-    if (nextfree == 0)
+    //return 1.0 / (double) size;
+    int size = size();
+    if (size == 0)
       return 1.0;
     else
-      return 1.0 / Math.log((double) (nextfree + 1));
+      return 1.0 / Math.log((double) (size + 1));
   }
 
-  public boolean contains(long record) {
-    return Arrays.binarySearch(records, 0, nextfree, record) >= 0;
+  /**
+   * Returns true iff the bucket contains the ID. Only IDs that have
+   * been sorted are found.
+   */
+  public boolean contains(int id) {
+    return reader().advance(id) == id;
+  }
+
+  /**
+   * Returns a reader which returns the sorted IDs one by one.
+   */
+  public Reader reader() {
+    return new Reader();
+  }
+
+  private void append(int id) {
+    if (encoded > 0 && encoded % SKIP_INTERVAL == 0) {
+      int skip = encoded / SKIP_INTERVAL - 1;
+      if (skipids == null) {
+        skipids = new int[4];
+        skipoffsets = new int[4];
+      } else if (skip == skipids.length) {
+        skipids = Arrays.copyOf(skipids, skip * 2);
+        skipoffsets = Arrays.copyOf(skipoffsets, skip * 2);
+      }
+      skipids[skip] = last;
+      skipoffsets[skip] = datasize;
+    }
+
+    if (datasize + 5 > data.length)
+      data = Arrays.copyOf(data, data.length * 2);
+
+    int delta = id - last;
+    while ((delta & ~0x7F) != 0) {
+      data[datasize++] = (byte) ((delta & 0x7F) | 0x80);
+      delta >>>= 7;
+    }
+    data[datasize++] = (byte) delta;
+    last = id;
+    encoded++;
+  }
+
+  private int skips() {
+    return encoded == 0 ? 0 : (encoded - 1) / SKIP_INTERVAL;
+  }
+
+  /**
+   * Decodes the IDs of the bucket in order. Not thread-safe, but
+   * there can be any number of readers of the same bucket.
+   */
+  public class Reader {
+    private int pos;      // byte offset of the next ID
+    private int index;    // number of IDs decoded so far
+    private int current;  // the last ID decoded
+    private int skip;     // the next skip entry to consider
+
+    /**
+     * Returns the next ID, or -1 if there are no more.
+     */
+    public int next() {
+      if (index == encoded)
+        return -1;
+
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = data[pos++];
+        delta |= (b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0);
+      current += delta;
+      index++;
+      return current;
+    }
+
+    /**
+     * Returns the first ID which is equal to or greater than the
+     * target, or -1 if there is none. The target must not be smaller
+     * than the last target. Uses galloping search over the skip
+     * entries to jump near the target before decoding.
+     */
+    public int advance(int target) {
+      if (index > 0 && current >= target)
+        return current;
+
+      int skips = skips();
+      if (skip < skips && skipids[skip] < target) {
+        // gallop: find a range of skip entries with the target in it
+        int low = skip;
+        int step = 1;
+        int high = skip + step;
+        while (high < skips && skipids[high] < target) {
+          low = high;
+          step *= 2;
+          high = skip + step;
+        }
+        high = Math.min(high, skips);
+
+        // binary search for the last skip entry below the target
+        while (low + 1 < high) {
+          int middle = (low + high) >>> 1;
+          if (skipids[middle] < target)
+            low = middle;
+          else
+            high = middle;
+        }
+
+        int index = (low + 1) * SKIP_INTERVAL;
+        if (index > this.index) {
+          this.index = index;
+          this.pos = skipoffsets[low];
+          this.current = skipids[low];
+        }
+        skip = low + 1;
+      }
+
+      int id;
+      do {
+        id = next();
+      } while (id != -1 && id < target);
+      return id;
+    }
   }
-}
\ No newline at end of file
+}
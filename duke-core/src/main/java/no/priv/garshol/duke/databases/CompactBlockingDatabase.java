@@ -0,0 +1,489 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.util.Set;
+import java.util.Map;
+import java.util.List;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.AbstractSet;
+import java.util.AbstractMap;
+import java.util.SortedMap;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.CompactRecord;
+
+/**
+ * A blocking database which keeps everything in memory, like
+ * InMemoryBlockingDatabase, but which uses far less of it. Records
+ * are stored once, serialized, in a RecordArena, which can be kept
+ * off the Java heap. The blocks of each key function are kept as
+ * sorted runs of prefix-compressed keys, with the records of each
+ * block as an array of record numbers, so that there is no TreeMap
+ * entry, list, or record object per block. Candidates are found the
+ * same way as in InMemoryBlockingDatabase.
+ *
+ * <p>Newly indexed records are sorted into a new run on commit, and
+ * runs are merged whenever the newest is at least half the size of
+ * the one before it, so that there are only ever a few runs.
+ * @since 1.4
+ */
+public class CompactBlockingDatabase extends AbstractBlockingDatabase {
+  private boolean offheap;
+  private RecordArena arena;
+  private StringIntMap ids; // id -> record no
+
+  public CompactBlockingDatabase() {
+    super();
+  }
+
+  /**
+   * If set to true, the serialized records are kept outside the Java
+   * heap, in direct buffers. Remember to set -XX:MaxDirectMemorySize
+   * high enough. Must be set before any records are indexed. Default
+   * false.
+   */
+  public void setOffHeap(boolean offheap) {
+    this.offheap = offheap;
+  }
+
+  public boolean isOffHeap() {
+    return offheap;
+  }
+
+  public void index(Record record) {
+    int number = getArena().add(record);
+    for (Property idprop : config.getIdentityProperties())
+      for (String id : record.getValues(idprop.getName()))
+        ids.put(id, number);
+
+    for (KeyFunction keyfunc : getIndexFunctions())
+      ((BlockMap) super.getBlocks(keyfunc)).add(keyfunc.makeKey(record),
+                                                  number);
+  }
+
+  public Record findRecordById(String id) {
+    if (arena == null)
+      return null;
+    int number = ids.get(id);
+    if (number == -1)
+      return null;
+    return getRecord(number);
+  }
+
+  public NavigableMap getBlocks(KeyFunction keyfunc) {
+    BlockMap blocks = (BlockMap) super.getBlocks(keyfunc);
+    blocks.flush(); // so that uncommitted records are found, too
+    return blocks;
+  }
+
+  public void commit() {
+    for (KeyFunction keyfunc : getIndexFunctions())
+      getBlocks(keyfunc);
+  }
+
+  public boolean isInMemory() {
+    return true;
+  }
+
+  public String toString() {
+    return "CompactBlockingDatabase window_size=" + window_size +
+      (adaptive ? ", adaptive, max_window_size=" + max_window_size : "") +
+      (offheap ? ", off-heap" : "") +
+      "\n  " + functions;
+  }
+
+  private RecordArena getArena() {
+    if (arena == null) {
+      arena = new RecordArena(offheap);
+      ids = new StringIntMap();
+    }
+    return arena;
+  }
+
+  private Record getRecord(int number) {
+    String[] s = arena.read(number);
+    return new StoredRecord(number, s);
+  }
+
+  // --- plug in extensions
+
+  protected int addBlock(Collection<Record> candidates,
+                         Map.Entry block) {
+    int[] records = ((BlockEntry) block).getValue();
+    for (int ix = 0; ix < records.length; ix++)
+      candidates.add(getRecord(records[ix]));
+    return records.length;
+  }
+
+  protected int getBlockSize(Map.Entry block) {
+    return ((BlockEntry) block).getBlockSize();
+  }
+
+  protected NavigableMap makeMap(KeyFunction keyfunc) {
+    return new BlockMap();
+  }
+
+  // --- STORED RECORD
+
+  /**
+   * The records are deserialized every time they are read, so the
+   * same record may turn up several times in the candidates, as
+   * different objects. Since the candidates are collected in a set,
+   * records with the same number must be equal.
+   */
+  static class StoredRecord extends CompactRecord {
+    private int number;
+
+    public StoredRecord(int number, String[] s) {
+      super(s.length, s);
+      this.number = number;
+    }
+
+    public boolean equals(Object other) {
+      return other instanceof StoredRecord &&
+        ((StoredRecord) other).number == number;
+    }
+
+    public int hashCode() {
+      return number;
+    }
+  }
+
+  // --- BLOCK MAP
+
+  /**
+   * A read-only sorted map view of the blocks of one key function,
+   * spread across a few runs. Only the lookup methods used to search
+   * the neighbourhood of a key are supported, plus iteration.
+   */
+  static class BlockMap extends AbstractMap<String, int[]>
+    implements NavigableMap<String, int[]> {
+    private volatile BlockIndex[] runs;
+    private List<Posting> pending;
+    private volatile boolean dirty; // true if there is anything pending
+
+    public BlockMap() {
+      this.runs = new BlockIndex[0];
+      this.pending = new ArrayList();
+    }
+
+    /**
+     * Adds a record to a block. It doesn't show up in lookups until
+     * the map has been flushed.
+     */
+    public synchronized void add(String key, int record) {
+      pending.add(new Posting(key, record));
+      dirty = true;
+    }
+
+    /**
+     * Sorts the pending records into a new run, and merges runs as
+     * necessary.
+     */
+    public void flush() {
+      if (dirty) // avoids locking when there is nothing to do
+        doFlush();
+    }
+
+    private synchronized void doFlush() {
+      if (!dirty)
+        return;
+
+      // the sort is stable, so records stay in order within blocks
+      Posting[] postings = pending.toArray(new Posting[pending.size()]);
+      Arrays.sort(postings);
+      pending = new ArrayList();
+      BlockIndex.Builder builder = new BlockIndex.Builder();
+      for (int ix = 0; ix < postings.length; ix++)
+        builder.add(postings[ix].key, postings[ix].record);
+
+      List<BlockIndex> newruns = new ArrayList(Arrays.asList(runs));
+      newruns.add(builder.build());
+      int last = newruns.size() - 1;
+      while (last > 0 && newruns.get(last).getRecordCount() * 2 >=
+                         newruns.get(last - 1).getRecordCount()) {
+        BlockIndex merged = BlockIndex.merge(newruns.get(last - 1),
+                                             newruns.get(last));
+        newruns.remove(last--);
+        newruns.set(last, merged);
+      }
+      runs = newruns.toArray(new BlockIndex[newruns.size()]);
+      dirty = false;
+    }
+
+    public int getRunCount() {
+      return runs.length;
+    }
+
+    // --- lookups
+
+    public BlockEntry ceilingEntry(String key) {
+      return makeEntry(ceilingKey(key));
+    }
+
+    public String ceilingKey(String key) {
+      String best = null;
+      for (BlockIndex run : runs) {
+        int pos = run.ceiling(key);
+        if (pos < run.size())
+          best = min(best, run.getKey(pos));
+      }
+      return best;
+    }
+
+    public BlockEntry higherEntry(String key) {
+      return makeEntry(higherKey(key));
+    }
+
+    public String higherKey(String key) {
+      String best = null;
+      for (BlockIndex run : runs) {
+        int pos = run.higher(key);
+        if (pos < run.size())
+          best = min(best, run.getKey(pos));
+      }
+      return best;
+    }
+
+    public BlockEntry lowerEntry(String key) {
+      return makeEntry(lowerKey(key));
+    }
+
+    public String lowerKey(String key) {
+      String best = null;
+      for (BlockIndex run : runs) {
+        int pos = run.lower(key);
+        if (pos >= 0)
+          best = max(best, run.getKey(pos));
+      }
+      return best;
+    }
+
+    public BlockEntry floorEntry(String key) {
+      return makeEntry(floorKey(key));
+    }
+
+    public String floorKey(String key) {
+      if (containsKey(key))
+        return key;
+      return lowerKey(key);
+    }
+
+    public BlockEntry firstEntry() {
+      return makeEntry(firstKey());
+    }
+
+    public String firstKey() {
+      return ceilingKey("");
+    }
+
+    public BlockEntry lastEntry() {
+      return makeEntry(lastKey());
+    }
+
+    public String lastKey() {
+      String best = null;
+      for (BlockIndex run : runs)
+        if (run.size() > 0)
+          best = max(best, run.getKey(run.size() - 1));
+      return best;
+    }
+
+    public int[] get(Object key) {
+      BlockEntry entry = makeEntry((String) key);
+      return entry == null ? null : entry.getValue();
+    }
+
+    public boolean containsKey(Object key) {
+      return makeEntry((String) key) != null;
+    }
+
+    public Comparator<? super String> comparator() {
+      return null; // natural ordering
+    }
+
+    public Set<Map.Entry<String, int[]>> entrySet() {
+      return new AbstractSet<Map.Entry<String, int[]>>() {
+        public Iterator<Map.Entry<String, int[]>> iterator() {
+          return new EntryIterator(BlockMap.this);
+        }
+        public int size() {
+          int size = 0;
+          for (Iterator it = iterator(); it.hasNext(); it.next())
+            size++;
+          return size;
+        }
+      };
+    }
+
+    // --- not supported
+
+    public Map.Entry<String, int[]> pollFirstEntry() {
+      throw new UnsupportedOperationException();
+    }
+
+    public Map.Entry<String, int[]> pollLastEntry() {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableMap<String, int[]> descendingMap() {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableSet<String> navigableKeySet() {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableSet<String> descendingKeySet() {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableMap<String, int[]> subMap(String from, boolean frominc,
+                                              String to, boolean toinc) {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableMap<String, int[]> headMap(String to, boolean inclusive) {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableMap<String, int[]> tailMap(String from,
+                                               boolean inclusive) {
+      throw new UnsupportedOperationException();
+    }
+
+    public SortedMap<String, int[]> subMap(String from, String to) {
+      throw new UnsupportedOperationException();
+    }
+
+    public SortedMap<String, int[]> headMap(String to) {
+      throw new UnsupportedOperationException();
+    }
+
+    public SortedMap<String, int[]> tailMap(String from) {
+      throw new UnsupportedOperationException();
+    }
+
+    // --- internals
+
+    // returns the entry for the key, or null if no run has it
+    private BlockEntry makeEntry(String key) {
+      if (key == null)
+        return null;
+
+      BlockIndex[] runs = this.runs;
+      int[] positions = new int[runs.length];
+      boolean found = false;
+      for (int ix = 0; ix < runs.length; ix++) {
+        positions[ix] = runs[ix].find(key);
+        found = found || positions[ix] != -1;
+      }
+      if (!found)
+        return null;
+      return new BlockEntry(key, runs, positions);
+    }
+
+    private static String min(String best, String key) {
+      if (best == null || key.compareTo(best) < 0)
+        return key;
+      return best;
+    }
+
+    private static String max(String best, String key) {
+      if (best == null || key.compareTo(best) > 0)
+        return key;
+      return best;
+    }
+  }
+
+  /**
+   * A block, made from the blocks with the same key in each run.
+   */
+  static class BlockEntry implements Map.Entry<String, int[]> {
+    private String key;
+    private BlockIndex[] runs;
+    private int[] positions; // position of the key in each run, or -1
+
+    public BlockEntry(String key, BlockIndex[] runs, int[] positions) {
+      this.key = key;
+      this.runs = runs;
+      this.positions = positions;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Returns the numbers of the records in the block.
+     */
+    public int[] getValue() {
+      int[] records = new int[getBlockSize()];
+      int offset = 0;
+      for (int ix = 0; ix < runs.length; ix++)
+        if (positions[ix] != -1)
+          offset = runs[ix].getRecords(positions[ix], records, offset);
+      return records;
+    }
+
+    public int[] setValue(int[] value) {
+      throw new UnsupportedOperationException();
+    }
+
+    public int getBlockSize() {
+      int size = 0;
+      for (int ix = 0; ix < runs.length; ix++)
+        if (positions[ix] != -1)
+          size += runs[ix].getBlockSize(positions[ix]);
+      return size;
+    }
+  }
+
+  static class EntryIterator implements Iterator<Map.Entry<String, int[]>> {
+    private BlockMap map;
+    private BlockEntry next;
+
+    public EntryIterator(BlockMap map) {
+      this.map = map;
+      this.next = map.firstEntry();
+    }
+
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    public Map.Entry<String, int[]> next() {
+      if (next == null)
+        throw new NoSuchElementException();
+      BlockEntry current = next;
+      next = map.higherEntry(current.getKey());
+      return current;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  static class Posting implements Comparable<Posting> {
+    private String key;
+    private int record;
+
+    public Posting(String key, int record) {
+      this.key = key;
+      this.record = record;
+    }
+
+    public int compareTo(Posting other) {
+      return key.compareTo(other.key);
+    }
+  }
+}
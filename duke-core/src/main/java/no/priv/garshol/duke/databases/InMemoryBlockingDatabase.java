@@ -31,7 +31,7 @@ public class InMemoryBlockingDatabase extends AbstractBlockingDatabase {
     indexById(record);
 
     // index by key
-    for (KeyFunction keyfunc : functions) {
+    for (KeyFunction keyfunc : getIndexFunctions()) {
       NavigableMap<String, Collection<Record>> blocks = getBlocks(keyfunc);
       String key = keyfunc.makeKey(record);
       Collection<Record> block = blocks.get(key);
@@ -48,8 +48,9 @@ public class InMemoryBlockingDatabase extends AbstractBlockingDatabase {
   }
 
   public String toString() {
-    return "InMemoryBlockingDatabase window_size=" + window_size + "\n  " +
-      functions;
+    return "InMemoryBlockingDatabase window_size=" + window_size +
+      (adaptive ? ", adaptive, max_window_size=" + max_window_size : "") +
+      "\n  " + functions;
   }
 
   // --- plug in extensions
@@ -60,6 +61,10 @@ public class InMemoryBlockingDatabase extends AbstractBlockingDatabase {
     candidates.addAll(recs);
     return recs.size();
   }
+
+  protected int getBlockSize(Map.Entry block) {
+    return ((Collection<Record>) block.getValue()).size();
+  }
   
   protected NavigableMap makeMap(KeyFunction keyfunc) {
     return new TreeMap();
@@ -7,31 +7,37 @@ import java.util.HashMap;
 import no.priv.garshol.duke.Record;
 
 /**
- * A simple key value store that keeps all data in memory.
+ * A simple key value store that keeps all data in memory. Each
+ * property has its own token dictionary, which maps tokens to int
+ * IDs, and the buckets are kept in an array indexed by token ID, so
+ * there is no need to build a key string for every lookup.
+ *
+ * <p>Since record IDs only ever increase, the buckets normally stay
+ * sorted as IDs are added. The few buckets that get IDs out of order
+ * are remembered, so that commit() only has to sort those.
  * @since 1.0
  */
 public class InMemoryKeyValueStore implements KeyValueStore {
-  private long nextid;                // next available id
-  private Record[] records;           // key into this array is the internal id
-  private Map<String, Bucket> tokens; // lookup token -> internal ids
-  private Map<String, Long> byid;     // lookup extid -> internal id
+  private int nextid;                     // next available id
+  private Record[] records;               // key is the internal id
+  private Map<String, TokenIndex> tokens; // property name -> token index
+  private StringIntMap byid;              // lookup extid -> internal id
 
   public InMemoryKeyValueStore() {
     this.records = new Record[1000];
     this.tokens = new HashMap();
-    this.byid = new HashMap();
+    this.byid = new StringIntMap();
   }
-  
+
   public boolean isInMemory() {
     return true;
   }
 
   public void commit() {
-    //System.out.println("Buckets: " + tokens.size());
-    for (Bucket b : tokens.values())
-      b.sort();
+    for (TokenIndex index : tokens.values())
+      index.sort();
   }
-  
+
   public void close() {
   }
 
@@ -50,26 +56,25 @@ public class InMemoryKeyValueStore implements KeyValueStore {
     // register
     records[(int) id] = record;
   }
-  
+
   public void registerId(long id, String extid) {
-    byid.put(extid, id);
+    byid.put(extid, (int) id);
   }
-  
+
   public void registerToken(long id, String propname, String token) {
-    String key = propname + '|' + token;
-    Bucket bucket = tokens.get(key);
-    if (bucket == null) {
-      bucket = new Bucket();
-      tokens.put(key, bucket);
+    TokenIndex index = tokens.get(propname);
+    if (index == null) {
+      index = new TokenIndex();
+      tokens.put(propname, index);
     }
-    bucket.add(id);
+    index.add(token, (int) id);
   }
 
   public Record findRecordById(String extid) {
-    Long id = byid.get(extid);
-    if (id == null)
+    int id = byid.get(extid);
+    if (id == -1)
       return null;
-    return records[id.intValue()];
+    return records[id];
   }
 
   public Record findRecordById(long id) {
@@ -77,10 +82,72 @@ public class InMemoryKeyValueStore implements KeyValueStore {
   }
 
   public Bucket lookupToken(String propname, String token) {
-    return tokens.get(propname + '|' + token);
+    TokenIndex index = tokens.get(propname);
+    if (index == null)
+      return null;
+    return index.lookup(token);
   }
 
   public String toString() {
     return "InMemoryKeyValueStore";
   }
+
+  /**
+   * The tokens of a single property.
+   */
+  static class TokenIndex {
+    private StringIntMap dictionary; // token -> token ID
+    private Bucket[] buckets;        // token ID -> bucket
+    private Bucket[] unsorted;       // buckets which need sorting
+    private int unsortedcount;
+
+    public TokenIndex() {
+      this.dictionary = new StringIntMap();
+      this.buckets = new Bucket[16];
+      this.unsorted = new Bucket[16];
+    }
+
+    public void add(String token, int id) {
+      int tokenid = dictionary.get(token);
+      if (tokenid == -1) {
+        tokenid = dictionary.size();
+        dictionary.put(token, tokenid);
+        if (tokenid == buckets.length) {
+          Bucket[] newbuf = new Bucket[buckets.length * 2];
+          System.arraycopy(buckets, 0, newbuf, 0, buckets.length);
+          buckets = newbuf;
+        }
+        buckets[tokenid] = new Bucket();
+      }
+      Bucket bucket = buckets[tokenid];
+      boolean wassorted = bucket.isSorted();
+      if (bucket.add(id) && wassorted) {
+        if (unsortedcount == unsorted.length) {
+          Bucket[] newbuf = new Bucket[unsorted.length * 2];
+          System.arraycopy(unsorted, 0, newbuf, 0, unsorted.length);
+          unsorted = newbuf;
+        }
+        unsorted[unsortedcount++] = bucket;
+      }
+    }
+
+    public Bucket lookup(String token) {
+      int tokenid = dictionary.get(token);
+      if (tokenid == -1)
+        return null;
+      return buckets[tokenid];
+    }
+
+    /**
+     * Sorts the buckets which got IDs out of order since the last
+     * call.
+     */
+    public void sort() {
+      for (int ix = 0; ix < unsortedcount; ix++) {
+        unsorted[ix].sort();
+        unsorted[ix] = null;
+      }
+      unsortedcount = 0;
+    }
+  }
 }
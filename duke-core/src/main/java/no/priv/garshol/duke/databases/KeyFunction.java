@@ -11,4 +11,16 @@ public interface KeyFunction {
 
   public String makeKey(Record record);
 
+  /**
+   * Returns a name for the key function which is the same every time
+   * it's configured the same way, and different from the names of
+   * other key functions. Persistent databases use it to name the
+   * stored blocks. The default is the name of the class, so key
+   * functions that can be configured must override this.
+   * @since 1.4
+   */
+  public default String getName() {
+    return getClass().getName();
+  }
+
 }
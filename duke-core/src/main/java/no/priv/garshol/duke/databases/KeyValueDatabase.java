@@ -1,8 +1,7 @@
 
 package no.priv.garshol.duke.databases;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.io.File;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -18,12 +17,15 @@ import no.priv.garshol.duke.utils.StringUtils;
 /**
  * A database that uses a key-value store to index and find records.
  * Faster than Lucene, but relevance ranking is not as good, and has
- * no fuzzy or geospatial support.
+ * no fuzzy or geospatial support. If a path is set the data is kept
+ * on disk in an MMapKeyValueStore, otherwise it's kept in memory.
  * @since 1.0
  */
 public class KeyValueDatabase implements Database {
   private Configuration config;
   private KeyValueStore store;
+  private String path;
+  private boolean overwrite;
   private int max_search_hits;
   private float min_relevance;
   private static final boolean DEBUG = false;
@@ -35,7 +37,6 @@ public class KeyValueDatabase implements Database {
   private static final int CUTOFF_FACTOR_2 = 50;
   
   public KeyValueDatabase() {
-    this.store = new InMemoryKeyValueStore();
     this.max_search_hits = 1000000;
   }
 
@@ -44,6 +45,24 @@ public class KeyValueDatabase implements Database {
   }
 
   public void setOverwrite(boolean overwrite) {
+    this.overwrite = overwrite;
+  }
+
+  /**
+   * Returns the path to the directory the data is kept in. If null,
+   * the data is kept in memory.
+   * @since 1.4
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Sets the directory to keep the data in.
+   * @since 1.4
+   */
+  public void setPath(String path) {
+    this.path = path;
   }
 
   public void setMaxSearchHits(int max_search_hits) {
@@ -59,13 +78,15 @@ public class KeyValueDatabase implements Database {
    * thus is not persistent.
    */
   public boolean isInMemory() {
-    return store.isInMemory();
+    return path == null;
   }
 
   /**
    * Add the record to the index.
    */
   public void index(Record record) {
+    if (store == null)
+      init();
     // FIXME: check if record is already indexed
 
     // allocate an ID for this record
@@ -92,6 +113,8 @@ public class KeyValueDatabase implements Database {
    * Look up record by identity.
    */
   public Record findRecordById(String id) {
+    if (store == null)
+      init();
     return store.findRecordById(id);
   }
 
@@ -99,6 +122,8 @@ public class KeyValueDatabase implements Database {
    * Look up potentially matching records.
    */
   public Collection<Record> findCandidateMatches(Record record) {
+    if (store == null)
+      init();
     if (DEBUG)
       System.out.println("---------------------------------------------------------------------------");
     
@@ -128,7 +153,7 @@ public class KeyValueDatabase implements Database {
       System.out.println("Threshold: " + threshold);
     
     // the collection of candidates
-    Map<Long, Score> candidates = new HashMap();
+    ScoreMap candidates = new ScoreMap();
 
     // go through the buckets that we're going to collect candidates from
     int next_bucket = collectCandidates(candidates, buckets, threshold);
@@ -145,8 +170,13 @@ public class KeyValueDatabase implements Database {
     // FIXME: it's possible to make this a lot cleaner
     if (max_search_hits > candidates.size() && min_relevance == 0.0) {
       Collection<Record> cands = new ArrayList(candidates.size());
-      for (Long id : candidates.keySet())
-        cands.add(store.findRecordById(id));
+      for (int slot = 0; slot < candidates.capacity(); slot++) {
+        if (!candidates.isUsed(slot))
+          continue;
+        Record r = store.findRecordById(candidates.getId(slot));
+        if (r != null) // null means it's been replaced
+          cands.add(r);
+      }
       if (DEBUG)
         System.out.println("final: " + cands.size());
       return cands;
@@ -156,12 +186,14 @@ public class KeyValueDatabase implements Database {
     int ix = 0;
     Score[] scores = new Score[candidates.size()];
     double max_score = 0.0;
-    for (Score s : candidates.values()) {
+    for (int slot = 0; slot < candidates.capacity(); slot++) {
+      if (!candidates.isUsed(slot))
+        continue;
+      Score s = new Score(candidates.getId(slot));
+      s.score = candidates.getScore(slot);
       scores[ix++] = s;
       if (s.score > max_score)
         max_score = s.score;
-      if (DEBUG && false)
-        System.out.println("" + s.id + ": " + s.score);
     }
 
     // allow map to be GC-ed
@@ -176,8 +208,11 @@ public class KeyValueDatabase implements Database {
     Collection<Record> records = new ArrayList(count);
     for (ix = 0; ix < count; ix++) {
       Score s = pq.next();
-      if (s.score >= min_relevance)
-        records.add(store.findRecordById(s.id));
+      if (s.score < min_relevance)
+        continue;
+      Record r = store.findRecordById(s.id);
+      if (r != null)
+        records.add(r);
     }
 
     if (DEBUG)
@@ -190,65 +225,92 @@ public class KeyValueDatabase implements Database {
    * no-op.
    */
   public void commit() {
-    store.commit();
+    if (store != null)
+      store.commit();
   }
   
   /**
    * Stores state to disk and closes all open resources.
    */
   public void close() {
-    store.close();
+    if (store != null)
+      store.close();
   }
 
   public String toString() {
-    return "KeyValueDatabase(" + store + "), max_search_hits=" +
+    return "KeyValueDatabase(" + (path == null ? "in-memory" : path) +
+      "), max_search_hits=" +
       max_search_hits + ", min_relevance=" + min_relevance;
   }
 
+  private void init() {
+    if (path == null)
+      store = new InMemoryKeyValueStore();
+    else
+      store = new MMapKeyValueStore(new File(path), overwrite);
+  }
+
   /**
    * Goes through the buckets from ix and out, checking for each
    * candidate if it's in one of the buckets, and if so, increasing
-   * its score accordingly. No new candidates are added.
-   */ 
-  private void bumpScores(Map<Long, Score> candidates,
+   * its score accordingly. No new candidates are added. The
+   * candidates are sorted by ID, so that each bucket can be merged
+   * with them in a single pass, skipping over the parts of the bucket
+   * between candidates.
+   */
+  private void bumpScores(ScoreMap candidates,
                           List<Bucket> buckets,
                           int ix) {
+    long[] sorted = null; // ID in the upper half, slot in the lower
     for (; ix < buckets.size(); ix++) {
       Bucket b = buckets.get(ix);
-      if (b.nextfree > CUTOFF_FACTOR_2 * candidates.size())
+      if (b.size() > CUTOFF_FACTOR_2 * candidates.size())
         return;
+      if (sorted == null)
+        sorted = sortCandidates(candidates);
+
       double score = b.getScore();
-      for (Score s : candidates.values())
-        if (b.contains(s.id))
-          s.score += score;
+      Bucket.Reader reader = b.reader();
+      for (int pos = 0; pos < sorted.length; pos++) {
+        int id = (int) (sorted[pos] >>> 32);
+        int found = reader.advance(id);
+        if (found == -1)
+          break; // no more IDs in this bucket
+        if (found == id)
+          candidates.addScore((int) sorted[pos], score);
+      }
     }
-  }  
+  }
+
+  private static long[] sortCandidates(ScoreMap candidates) {
+    long[] sorted = new long[candidates.size()];
+    int ix = 0;
+    for (int slot = 0; slot < candidates.capacity(); slot++)
+      if (candidates.isUsed(slot))
+        sorted[ix++] = (candidates.getId(slot) << 32) | slot;
+    Arrays.sort(sorted);
+    return sorted;
+  }
   
   /**
    * Goes through the first buckets, picking out candidate records and
    * tallying up their scores.
    * @return the index of the first bucket we did not process
    */
-  private int collectCandidates(Map<Long, Score> candidates,
+  private int collectCandidates(ScoreMap candidates,
                                 List<Bucket> buckets,
                                 int threshold) {
     int ix;
     for (ix = 0; ix < threshold &&
            candidates.size() < (CUTOFF_FACTOR_1 * max_search_hits); ix++) {
       Bucket b = buckets.get(ix);
-      long[] ids = b.records;
       double score = b.getScore();
-      
-      for (int ix2 = 0; ix2 < b.nextfree; ix2++) {
-        Score s = candidates.get(ids[ix2]);
-        if (s == null) {
-          s = new Score(ids[ix2]);
-          candidates.put(ids[ix2], s);
-        }
-        s.score += score;
-      }
+
+      Bucket.Reader reader = b.reader();
+      for (int id = reader.next(); id != -1; id = reader.next())
+        candidates.add(id, score);
       if (DEBUG)
-        System.out.println("Bucket " + b.nextfree + " -> " + candidates.size());
+        System.out.println("Bucket " + b.size() + " -> " + candidates.size());
     }
     return ix;
   }
@@ -269,11 +331,10 @@ public class KeyValueDatabase implements Database {
         String[] tokens = StringUtils.split(value);
         for (int ix = 0; ix < tokens.length; ix++) {
           Bucket b = store.lookupToken(propname, tokens[ix]);
-          if (b == null || b.records == null)
+          if (b == null)
             continue;
-          long[] ids = b.records;
           if (DEBUG)
-            System.out.println(propname + ", " + tokens[ix] + ": " + b.nextfree + " (" + b.getScore() + ")");
+            System.out.println(propname + ", " + tokens[ix] + ": " + b.size() + " (" + b.getScore() + ")");
           buckets.add(b);
         }
       }
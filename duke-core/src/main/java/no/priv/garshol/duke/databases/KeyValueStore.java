@@ -59,8 +59,9 @@ public interface KeyValueStore {
   public Record findRecordById(String extid);
 
   /**
-   * Returns the record with the given internal ID. This method must
-   * be thread-safe.
+   * Returns the record with the given internal ID, or null if the
+   * record has been replaced by another with the same external ID.
+   * This method must be thread-safe.
    */
   public Record findRecordById(long id);
 
@@ -0,0 +1,692 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.List;
+import java.util.BitSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.ArrayList;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.CompactRecord;
+import no.priv.garshol.duke.DukeException;
+
+/**
+ * A key value store that keeps its data in files in a directory, and
+ * reads them through memory mappings, so that the data doesn't have
+ * to fit on the heap, and survives restarts. All files are
+ * append-only, apart from compaction of the postings:
+ *
+ * <ul>
+ *   <li>records: the records themselves, one after the other,</li>
+ *   <li>offsets: the offset in records of each record, by internal ID,</li>
+ *   <li>ids: pairs of external ID and internal ID,</li>
+ *   <li>tokens: the token dictionary, with a token ID for each token,</li>
+ *   <li>postings: chunks of record IDs for a single token.</li>
+ * </ul>
+ *
+ * <p>On commit() all files are forced to disk, and then the file
+ * 'commit' is atomically replaced with one recording the size of
+ * each file. When the store is opened, anything beyond those sizes
+ * is cut away, so a crash during a commit loses only the changes
+ * made since the previous commit.
+ *
+ * <p>Each commit writes one chunk of new record IDs per changed
+ * token, pointing back to the previous chunk for the same token.
+ * When a token has MAX_CHUNKS chunks they are merged into one, so
+ * that lookups stay fast. Lookups decode the IDs straight from the
+ * mapped chunks, without copying them. The token dictionary, the
+ * external IDs, and the offset of the newest chunk for each token
+ * are kept in memory, and rebuilt by reading the files sequentially
+ * on open.
+ *
+ * <p>Merging leaves the old chunks behind as dead space, so for a
+ * token that keeps getting new records the postings file grows much
+ * faster than the IDs in it. When more than half of it is dead, and
+ * the dead part is bigger than MIN_DEAD, commit() therefore
+ * compacts it, by writing each token as a single chunk into a new
+ * file which then replaces the old one. compact() does the same on
+ * request. Buckets looked up before a compaction must not be used
+ * after it.
+ *
+ * <p>If a record is indexed again with the same external ID, the old
+ * version is no longer returned.
+ * @since 1.4
+ */
+public class MMapKeyValueStore implements KeyValueStore {
+  private static final int VERSION = 1;
+  private static final int MAX_CHUNKS = 16;
+  private static final int CHUNK_HEADER = 20; // token ID, count, length, prev
+  private static final long MIN_DEAD = 1024 * 1024; // bytes before compacting
+  private File dir;
+  private MappedLog records;  // [int length][record]
+  private MappedLog offsets;  // [long offset in records], by internal ID
+  private MappedLog ids;      // [extid][int internal ID]
+  private MappedLog tokens;   // [property][token][int token ID]
+  private MappedLog postings; // chunks, see writeChunk
+  private int nextid;         // next available internal ID
+  private int committed;      // number of committed records
+  private StringIntMap byid;  // extid -> internal ID
+  private BitSet replaced;    // internal IDs of replaced records
+  private Map<String, StringIntMap> dictionaries; // property -> token IDs
+  private int tokencount;
+  private long[] heads;       // token ID -> offset of newest chunk, or -1
+  private int[] chunks;       // token ID -> number of chunks
+  private long dead;          // bytes in postings in no token's chain
+
+  // changes since the last commit
+  private List<Record> pending; // records from committed and up
+  private Bucket[] added;       // token ID -> new record IDs, or null
+  private int[] dirty;          // IDs of tokens with new record IDs
+  private int dirtycount;
+
+  /**
+   * Opens the store in the given directory, creating it if necessary.
+   * @param overwrite if true, existing data is thrown away
+   */
+  public MMapKeyValueStore(File dir, boolean overwrite) {
+    this.dir = dir;
+    this.byid = new StringIntMap();
+    this.replaced = new BitSet();
+    this.dictionaries = new HashMap();
+    this.heads = new long[1024];
+    this.chunks = new int[1024];
+    this.added = new Bucket[1024];
+    this.dirty = new int[1024];
+    this.pending = new ArrayList();
+
+    try {
+      open(overwrite);
+    } catch (IOException e) {
+      throw new DukeException("Couldn't open key value store in " + dir, e);
+    }
+  }
+
+  public boolean isInMemory() {
+    return false;
+  }
+
+  public void commit() {
+    try {
+      // new chunks for changed tokens
+      for (int ix = 0; ix < dirtycount; ix++) {
+        int tokenid = dirty[ix];
+        if (chunks[tokenid] + 1 >= MAX_CHUNKS) {
+          Bucket merged = mergeChunks(tokenid);
+          dead += getChainLength(tokenid);
+          writeChunk(postings, tokenid, merged, -1L);
+        } else
+          writeChunk(postings, tokenid, added[tokenid], heads[tokenid]);
+        added[tokenid] = null;
+      }
+      dirtycount = 0;
+
+      // make sure everything is on disk before we record it as committed
+      records.force();
+      offsets.force();
+      ids.force();
+      tokens.force();
+      postings.force();
+      writeCommitFile();
+
+      records.remap();
+      offsets.remap();
+      ids.remap();
+      tokens.remap();
+      postings.remap();
+      committed = nextid;
+      pending.clear();
+
+      if (dead > MIN_DEAD && dead * 2 > postings.size())
+        compactPostings();
+    } catch (IOException e) {
+      throw new DukeException("Couldn't commit key value store", e);
+    }
+  }
+
+  /**
+   * Commits, and then rewrites the postings file without the chunks
+   * that have been merged away, so that each token has a single
+   * chunk. commit() does this automatically once enough of the file
+   * is dead, so calling this is only necessary to reclaim the space
+   * earlier.
+   */
+  public void compact() {
+    commit();
+    try {
+      if (dead > 0)
+        compactPostings();
+    } catch (IOException e) {
+      throw new DukeException("Couldn't compact key value store", e);
+    }
+  }
+
+  public void close() {
+    if (records == null)
+      return; // already closed
+
+    commit();
+    try {
+      records.close();
+      offsets.close();
+      ids.close();
+      tokens.close();
+      postings.close();
+      records = null;
+    } catch (IOException e) {
+      throw new DukeException("Couldn't close key value store", e);
+    }
+  }
+
+  public long makeNewRecordId() {
+    return nextid++;
+  }
+
+  public void registerRecord(long id, Record record) {
+    if (id != committed + pending.size())
+      throw new DukeException("Records must be registered in ID order");
+
+    try {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(buf);
+      out.writeInt(0); // length, filled in below
+      int count = 0;
+      for (String prop : record.getProperties())
+        count += record.getValues(prop).size();
+      out.writeInt(count);
+      for (String prop : record.getProperties()) {
+        for (String value : record.getValues(prop)) {
+          writeString(out, prop);
+          writeString(out, value);
+        }
+      }
+
+      byte[] bytes = buf.toByteArray();
+      int length = bytes.length - 4;
+      bytes[0] = (byte) (length >>> 24);
+      bytes[1] = (byte) (length >>> 16);
+      bytes[2] = (byte) (length >>> 8);
+      bytes[3] = (byte) length;
+      offsets.appendLong(records.append(bytes, bytes.length));
+    } catch (IOException e) {
+      throw new DukeException("Couldn't store record", e);
+    }
+    pending.add(record);
+  }
+
+  public void registerId(long id, String extid) {
+    int old = byid.get(extid);
+    if (old != -1 && old != id)
+      replaced.set(old);
+    byid.put(extid, (int) id);
+
+    try {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(buf);
+      writeString(out, extid);
+      out.writeInt((int) id);
+      ids.append(buf.toByteArray(), buf.size());
+    } catch (IOException e) {
+      throw new DukeException("Couldn't store ID", e);
+    }
+  }
+
+  public void registerToken(long id, String propname, String token) {
+    StringIntMap dictionary = getDictionary(propname);
+    int tokenid = dictionary.get(token);
+    if (tokenid == -1) {
+      tokenid = addToken();
+      dictionary.put(token, tokenid);
+
+      try {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        writeString(out, propname);
+        writeString(out, token);
+        out.writeInt(tokenid);
+        tokens.append(buf.toByteArray(), buf.size());
+      } catch (IOException e) {
+        throw new DukeException("Couldn't store token", e);
+      }
+    }
+
+    if (added[tokenid] == null) {
+      added[tokenid] = new Bucket();
+      if (dirtycount == dirty.length)
+        dirty = Arrays.copyOf(dirty, dirtycount * 2);
+      dirty[dirtycount++] = tokenid;
+    }
+    added[tokenid].add((int) id);
+  }
+
+  public Record findRecordById(String extid) {
+    int id = byid.get(extid);
+    if (id == -1)
+      return null;
+    return findRecordById(id);
+  }
+
+  public Record findRecordById(long id) {
+    if (replaced.get((int) id))
+      return null;
+    if (id >= committed)
+      return pending.get((int) (id - committed));
+
+    long offset = offsets.readLong(id * 8);
+    byte[] bytes = new byte[records.readInt(offset)];
+    records.read(offset + 4, bytes, bytes.length);
+    try {
+      DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(bytes));
+      int count = in.readInt();
+      String[] s = new String[count * 2];
+      for (int ix = 0; ix < s.length; ix++)
+        s[ix] = readString(in);
+      return new CompactRecord(s.length, s);
+    } catch (IOException e) {
+      throw new DukeException("Couldn't read record " + id, e);
+    }
+  }
+
+  public Bucket lookupToken(String propname, String token) {
+    StringIntMap dictionary = dictionaries.get(propname);
+    if (dictionary == null)
+      return null;
+    int tokenid = dictionary.get(token);
+    if (tokenid == -1)
+      return null;
+    return new ChunkBucket(tokenid);
+  }
+
+  public String toString() {
+    return "MMapKeyValueStore(" + dir + ")";
+  }
+
+  // ----- INTERNALS
+
+  private void open(boolean overwrite) throws IOException {
+    if (!dir.exists() && !dir.mkdirs())
+      throw new DukeException("Couldn't create directory " + dir);
+
+    String[] names = { "records", "offsets", "ids", "tokens", "postings" };
+    File commitfile = new File(dir, "commit");
+    new File(dir, "postings.tmp").delete(); // left by a failed compaction
+    if (overwrite) {
+      commitfile.delete();
+      for (String name : names)
+        new File(dir, name).delete();
+    }
+
+    // find out how much of each file was committed
+    long[] sizes = new long[names.length];
+    if (commitfile.exists()) {
+      DataInputStream in =
+        new DataInputStream(new FileInputStream(commitfile));
+      try {
+        int version = in.readInt();
+        if (version != VERSION)
+          throw new DukeException("Unsupported key value store version " +
+                                  version + " in " + dir);
+        for (int ix = 0; ix < sizes.length; ix++)
+          sizes[ix] = in.readLong();
+      } finally {
+        in.close();
+      }
+    }
+
+    // throw away anything left over from a failed commit
+    MappedLog[] logs = new MappedLog[names.length];
+    for (int ix = 0; ix < names.length; ix++) {
+      logs[ix] = new MappedLog(new File(dir, names[ix]));
+      if (ix == 4 && logs[ix].size() < sizes[ix])
+        // a compaction got as far as moving the new postings into
+        // place, but not writing the commit file. the new file holds
+        // exactly the committed postings, so it's all good.
+        sizes[ix] = logs[ix].size();
+      logs[ix].truncate(sizes[ix]);
+      logs[ix].remap();
+    }
+    records = logs[0];
+    offsets = logs[1];
+    ids = logs[2];
+    tokens = logs[3];
+    postings = logs[4];
+
+    committed = (int) (offsets.size() / 8);
+    nextid = committed;
+    loadIds();
+    loadTokens();
+    loadPostings();
+  }
+
+  private void loadIds() {
+    Cursor cursor = new Cursor(ids);
+    while (cursor.hasMore()) {
+      String extid = cursor.readString();
+      int id = cursor.readInt();
+      int old = byid.get(extid);
+      if (old != -1 && old != id)
+        replaced.set(old);
+      byid.put(extid, id);
+    }
+  }
+
+  private void loadTokens() {
+    Cursor cursor = new Cursor(tokens);
+    while (cursor.hasMore()) {
+      String propname = cursor.readString();
+      String token = cursor.readString();
+      int tokenid = cursor.readInt();
+      if (tokenid != addToken())
+        throw new DukeException("Token dictionary in " + dir + " is corrupt");
+      getDictionary(propname).put(token, tokenid);
+    }
+  }
+
+  private void loadPostings() {
+    long offset = 0;
+    while (offset < postings.size()) {
+      int tokenid = postings.readInt(offset);
+      int length = postings.readInt(offset + 8);
+      long prev = postings.readLong(offset + 12);
+      if (prev == -1 && heads[tokenid] != -1)
+        dead += getChainLength(tokenid); // the chain was merged
+      chunks[tokenid] = prev == -1 ? 1 : chunks[tokenid] + 1;
+      heads[tokenid] = offset;
+      offset += CHUNK_HEADER + length;
+    }
+  }
+
+  private StringIntMap getDictionary(String propname) {
+    StringIntMap dictionary = dictionaries.get(propname);
+    if (dictionary == null) {
+      dictionary = new StringIntMap();
+      dictionaries.put(propname, dictionary);
+    }
+    return dictionary;
+  }
+
+  // allocates the next token ID
+  private int addToken() {
+    int tokenid = tokencount++;
+    if (tokenid == heads.length) {
+      heads = Arrays.copyOf(heads, tokenid * 2);
+      chunks = Arrays.copyOf(chunks, tokenid * 2);
+      added = Arrays.copyOf(added, tokenid * 2);
+    }
+    heads[tokenid] = -1;
+    return tokenid;
+  }
+
+  /**
+   * Writes a single chunk for each token into a new file, which then
+   * replaces the postings file. The new file is moved into place
+   * before the commit file is updated, so if we crash in between the
+   * commit file records a postings size bigger than the file, which
+   * open() takes as a sign that the new file is complete.
+   */
+  private void compactPostings() throws IOException {
+    File file = new File(dir, "postings");
+    File tmp = new File(dir, "postings.tmp");
+    MappedLog compacted = new MappedLog(tmp);
+    compacted.truncate(0);
+    for (int tokenid = 0; tokenid < tokencount; tokenid++) {
+      if (heads[tokenid] != -1)
+        writeChunk(compacted, tokenid, mergeChunks(tokenid), -1L);
+    }
+    compacted.force();
+    compacted.close();
+    postings.close();
+
+    Files.move(tmp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+    postings = new MappedLog(file);
+    postings.remap();
+    dead = 0;
+    writeCommitFile();
+  }
+
+  /**
+   * Writes a chunk with the IDs in the bucket. The chunk consists of
+   * the token ID, the number of IDs, the length of the encoded IDs,
+   * the offset of the previous chunk (or -1), then the encoded IDs,
+   * as differences from the previous ID, as variable-length ints.
+   */
+  private void writeChunk(MappedLog log, int tokenid, Bucket bucket,
+                          long prev) throws IOException {
+    bucket.sort();
+    byte[] bytes = new byte[CHUNK_HEADER + bucket.size() * 5];
+    int pos = CHUNK_HEADER;
+    int last = 0;
+    Bucket.Reader reader = bucket.reader();
+    for (int id = reader.next(); id != -1; id = reader.next()) {
+      int delta = id - last;
+      while ((delta & ~0x7F) != 0) {
+        bytes[pos++] = (byte) ((delta & 0x7F) | 0x80);
+        delta >>>= 7;
+      }
+      bytes[pos++] = (byte) delta;
+      last = id;
+    }
+
+    putInt(bytes, 0, tokenid);
+    putInt(bytes, 4, bucket.size());
+    putInt(bytes, 8, pos - CHUNK_HEADER);
+    putInt(bytes, 12, (int) (prev >>> 32));
+    putInt(bytes, 16, (int) prev);
+    heads[tokenid] = log.append(bytes, pos);
+    chunks[tokenid] = prev == -1 ? 1 : chunks[tokenid] + 1;
+  }
+
+  /**
+   * Returns a bucket with all the IDs of the token, including
+   * uncommitted ones, so they can be written as a single chunk.
+   */
+  private Bucket mergeChunks(int tokenid) {
+    Bucket bucket = new Bucket();
+    Bucket.Reader reader = new ChunkBucket(tokenid).reader();
+    for (int id = reader.next(); id != -1; id = reader.next())
+      bucket.add(id);
+    return bucket;
+  }
+
+  // returns the offsets of the chunks for the token, oldest first
+  private long[] getChain(int tokenid) {
+    long[] chain = new long[chunks[tokenid]];
+    long offset = heads[tokenid];
+    for (int ix = chain.length - 1; ix >= 0; ix--) {
+      chain[ix] = offset;
+      offset = postings.readLong(offset + 12);
+    }
+    return chain;
+  }
+
+  // returns the number of bytes in the chunks for the token
+  private long getChainLength(int tokenid) {
+    long length = 0;
+    long[] chain = getChain(tokenid);
+    for (int ix = 0; ix < chain.length; ix++)
+      length += CHUNK_HEADER + postings.readInt(chain[ix] + 8);
+    return length;
+  }
+
+  private void writeCommitFile() throws IOException {
+    File tmp = new File(dir, "commit.tmp");
+    FileOutputStream stream = new FileOutputStream(tmp);
+    try {
+      DataOutputStream out = new DataOutputStream(stream);
+      out.writeInt(VERSION);
+      out.writeLong(records.size());
+      out.writeLong(offsets.size());
+      out.writeLong(ids.size());
+      out.writeLong(tokens.size());
+      out.writeLong(postings.size());
+      out.flush();
+      stream.getFD().sync();
+    } finally {
+      stream.close();
+    }
+
+    Files.move(tmp.toPath(), new File(dir, "commit").toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void putInt(byte[] bytes, int pos, int value) {
+    bytes[pos] = (byte) (value >>> 24);
+    bytes[pos + 1] = (byte) (value >>> 16);
+    bytes[pos + 2] = (byte) (value >>> 8);
+    bytes[pos + 3] = (byte) value;
+  }
+
+  // DataOutput.writeUTF can't handle strings longer than 64k
+  private static void writeString(DataOutputStream out, String str)
+    throws IOException {
+    byte[] bytes = str.getBytes("utf-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "utf-8");
+  }
+
+  /**
+   * The IDs of a token, decoded straight from the mapped chunks,
+   * rather than copied onto the heap. Each chunk only has IDs higher
+   * than those in older chunks, since new records always get higher
+   * IDs than committed ones, so the chunks can be read one after the
+   * other, followed by the uncommitted IDs. Read-only.
+   */
+  class ChunkBucket extends Bucket {
+    private long[] chain;       // offsets of the chunks, oldest first
+    private Bucket uncommitted; // IDs added since the last commit, or null
+    private int size;
+
+    public ChunkBucket(int tokenid) {
+      this.chain = getChain(tokenid);
+      for (int ix = 0; ix < chain.length; ix++)
+        size += postings.readInt(chain[ix] + 4);
+      this.uncommitted = added[tokenid];
+      if (uncommitted != null)
+        size += uncommitted.size();
+    }
+
+    public boolean add(int id) {
+      throw new UnsupportedOperationException("Bucket is read-only");
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public Reader reader() {
+      return new ChunkReader();
+    }
+
+    /**
+     * Decodes the IDs from the mapping. The chunks have no skip
+     * entries, so advance() decodes its way to the target.
+     */
+    class ChunkReader extends Reader {
+      private int chunk = -1; // index in chain of the current chunk
+      private long pos;       // offset in postings of the next ID
+      private int left;       // IDs left in the current chunk
+      private int current;    // the last ID decoded from the chunks
+      private int last = -1;  // the last ID returned
+      private Reader tail;    // reads the uncommitted IDs
+
+      public int next() {
+        while (left == 0) {
+          if (chunk + 1 == chain.length) {
+            // no more chunks, so on to the uncommitted IDs, if any
+            if (uncommitted == null)
+              return -1;
+            if (tail == null)
+              tail = uncommitted.reader();
+            int id = tail.next();
+            if (id != -1)
+              last = id;
+            return id;
+          }
+
+          chunk++;
+          left = postings.readInt(chain[chunk] + 4);
+          pos = chain[chunk] + CHUNK_HEADER;
+          current = 0;
+        }
+
+        int delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = postings.readByte(pos++);
+          delta |= (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+        current += delta;
+        left--;
+        last = current;
+        return current;
+      }
+
+      public int advance(int target) {
+        if (last >= target)
+          return last;
+
+        int id;
+        do {
+          id = next();
+        } while (id != -1 && id < target);
+        return id;
+      }
+    }
+  }
+
+  /**
+   * Reads through one of the files from the start.
+   */
+  static class Cursor {
+    private MappedLog log;
+    private long offset;
+
+    public Cursor(MappedLog log) {
+      this.log = log;
+    }
+
+    public boolean hasMore() {
+      return offset < log.size();
+    }
+
+    public int readInt() {
+      int value = log.readInt(offset);
+      offset += 4;
+      return value;
+    }
+
+    public String readString() {
+      byte[] bytes = new byte[readInt()];
+      log.read(offset, bytes, bytes.length);
+      offset += bytes.length;
+      try {
+        return new String(bytes, "utf-8");
+      } catch (IOException e) {
+        throw new DukeException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,178 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only file which is read through memory mappings. Since a
+ * single mapping can be at most 2GB the file is mapped in segments.
+ * Only the part of the file that was there at the last call to
+ * remap() can be read. Reads are thread-safe, but appends must come
+ * from a single thread.
+ * @since 1.4
+ */
+class MappedLog {
+  private static final int SEGMENT_SIZE = 1 << 28; // 256MB
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private long size;  // bytes in the file, including unforced ones
+  private volatile ByteBuffer[] segments;
+  private byte[] buffer; // appends not yet written to the file
+  private int buffered;
+
+  public MappedLog(File file) throws IOException {
+    this.file = new RandomAccessFile(file, "rw");
+    this.channel = this.file.getChannel();
+    this.size = channel.size();
+    this.segments = new ByteBuffer[0];
+    this.buffer = new byte[65536];
+  }
+
+  /**
+   * Returns the size of the file, including appended data not yet
+   * written to disk.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Cuts the file down to the given size, throwing away anything
+   * after that.
+   */
+  public void truncate(long size) throws IOException {
+    flush();
+    if (size < channel.size())
+      channel.truncate(size);
+    this.size = size;
+    this.segments = new ByteBuffer[0];
+  }
+
+  /**
+   * Appends the bytes to the file.
+   * @return the offset where the bytes were written
+   */
+  public long append(byte[] data, int length) throws IOException {
+    long offset = size;
+    if (buffered + length > buffer.length) {
+      flush();
+      if (length > buffer.length) {
+        write(ByteBuffer.wrap(data, 0, length), offset);
+        size += length;
+        return offset;
+      }
+    }
+    System.arraycopy(data, 0, buffer, buffered, length);
+    buffered += length;
+    size += length;
+    return offset;
+  }
+
+  public long appendLong(long value) throws IOException {
+    byte[] bytes = new byte[8];
+    for (int ix = 7; ix >= 0; ix--) {
+      bytes[ix] = (byte) value;
+      value >>>= 8;
+    }
+    return append(bytes, 8);
+  }
+
+  /**
+   * Writes everything appended so far to disk, and waits until it's
+   * really there.
+   */
+  public void force() throws IOException {
+    flush();
+    channel.force(false);
+  }
+
+  /**
+   * Maps everything appended so far, so that it can be read.
+   */
+  public void remap() throws IOException {
+    flush();
+    ByteBuffer[] old = segments;
+    int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    ByteBuffer[] segments = new ByteBuffer[count];
+    for (int ix = 0; ix < count; ix++) {
+      long start = (long) ix * SEGMENT_SIZE;
+      long length = Math.min(SEGMENT_SIZE, size - start);
+      if (ix < old.length && old[ix].capacity() == length)
+        segments[ix] = old[ix]; // segment is unchanged
+      else
+        segments[ix] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                   start, length);
+    }
+    this.segments = segments;
+  }
+
+  /**
+   * Reads length bytes from the offset into buf.
+   */
+  public void read(long offset, byte[] buf, int length) {
+    ByteBuffer[] segments = this.segments;
+    int pos = 0;
+    while (pos < length) {
+      int segment = (int) (offset / SEGMENT_SIZE);
+      int start = (int) (offset % SEGMENT_SIZE);
+      ByteBuffer view = segments[segment].duplicate();
+      view.position(start);
+      int count = Math.min(length - pos, view.remaining());
+      view.get(buf, pos, count);
+      pos += count;
+      offset += count;
+    }
+  }
+
+  public byte readByte(long offset) {
+    ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+    return segment.get((int) (offset % SEGMENT_SIZE));
+  }
+
+  public int readInt(long offset) {
+    ByteBuffer[] segments = this.segments;
+    int start = (int) (offset % SEGMENT_SIZE);
+    ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+    if (start + 4 <= segment.capacity())
+      return segment.getInt(start);
+
+    byte[] bytes = new byte[4];
+    read(offset, bytes, 4);
+    return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) |
+           ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+  }
+
+  public long readLong(long offset) {
+    ByteBuffer[] segments = this.segments;
+    int start = (int) (offset % SEGMENT_SIZE);
+    ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+    if (start + 8 <= segment.capacity())
+      return segment.getLong(start);
+
+    return ((long) readInt(offset) << 32) |
+           (readInt(offset + 4) & 0xFFFFFFFFL);
+  }
+
+  public void close() throws IOException {
+    flush();
+    segments = new ByteBuffer[0];
+    channel.close();
+    file.close();
+  }
+
+  private void flush() throws IOException {
+    if (buffered == 0)
+      return;
+    write(ByteBuffer.wrap(buffer, 0, buffered), size - buffered);
+    buffered = 0;
+  }
+
+  private void write(ByteBuffer data, long offset) throws IOException {
+    while (data.hasRemaining())
+      offset += channel.write(data, offset);
+  }
+}
@@ -0,0 +1,108 @@
+
+package no.priv.garshol.duke.databases;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.DukeConfigException;
+
+/**
+ * A configurable key function which makes the key from the value of a
+ * single property. The key can be the whole value, the first or last
+ * token, or just the digits, optionally cut down to the first few
+ * characters. Keys are lowercased.
+ * @since 1.4
+ */
+public class PropertyKeyFunction extends AbstractKeyFunction {
+  private String property;
+  private Part part;
+  private int length; // 0 means the whole thing
+
+  public PropertyKeyFunction() {
+    this.part = Part.VALUE;
+  }
+
+  public PropertyKeyFunction(String property, Part part, int length) {
+    this.property = property;
+    this.part = part;
+    this.length = length;
+  }
+
+  public String getProperty() {
+    return property;
+  }
+
+  /**
+   * Sets the property to make the key from.
+   */
+  public void setProperty(String property) {
+    this.property = property;
+  }
+
+  public Part getPart() {
+    return part;
+  }
+
+  /**
+   * Sets which part of the value to use. The default is the whole
+   * value.
+   */
+  public void setPart(Part part) {
+    this.part = part;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Sets the maximum number of characters in the key. 0, the default,
+   * means there is no maximum.
+   */
+  public void setLength(int length) {
+    this.length = length;
+  }
+
+  public String makeKey(Record record) {
+    if (property == null)
+      throw new DukeConfigException("PropertyKeyFunction has no property");
+
+    String value = record.getValue(property);
+    if (value == null || value.trim().equals(""))
+      return ""; // no tokens to pick from
+
+    String key;
+    if (part == Part.FIRST)
+      key = firstLongerThan(value, 0);
+    else if (part == Part.LAST)
+      key = lastLongerThan(value, 0);
+    else if (part == Part.DIGITS)
+      key = allDigits(value);
+    else
+      key = value;
+
+    key = key.toLowerCase();
+    if (length > 0 && key.length() > length)
+      key = key.substring(0, length);
+    return key;
+  }
+
+  /**
+   * Returns a name made from the settings, so that differently
+   * configured instances get different names.
+   */
+  public String getName() {
+    return getClass().getName() + "(" + property + "," + part + "," +
+      length + ")";
+  }
+
+  public String toString() {
+    return "PropertyKeyFunction(" + property + ", " + part +
+      (length > 0 ? ", " + length : "") + ")";
+  }
+
+  /**
+   * The parts of the value the key can be made from.
+   */
+  public enum Part {
+    VALUE, FIRST, LAST, DIGITS
+  }
+}
@@ -0,0 +1,218 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.nio.ByteBuffer;
+import java.io.UnsupportedEncodingException;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.DukeException;
+import no.priv.garshol.duke.CompactRecord;
+
+/**
+ * Stores records serialized in large byte buffers, so that each
+ * record costs a few bytes plus its values, instead of a graph of
+ * Java objects. The buffers can be on or off the Java heap. Records
+ * are numbered from 0 in the order they are added, and are
+ * deserialized every time they are read. Property names are stored
+ * once, in a table, and referred to by number.
+ *
+ * <p>Only one thread may add records, but any number of threads can
+ * read records at the same time.
+ * @since 1.4
+ */
+class RecordArena {
+  private static final int FIRST_CHUNK_SIZE = 64 * 1024;
+  private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+  private boolean offheap;
+  private volatile ByteBuffer[] chunks;
+  private int chunkcount;
+  private volatile long[] offsets; // record no -> chunk << 32 | position
+  private int size;
+  private StringIntMap propnums;
+  private volatile String[] propnames;
+  private byte[] buffer; // reused for serializing records
+
+  public RecordArena(boolean offheap) {
+    this.offheap = offheap;
+    this.chunks = new ByteBuffer[16];
+    this.offsets = new long[1024];
+    this.propnums = new StringIntMap();
+    this.propnames = new String[16];
+    this.buffer = new byte[1024];
+  }
+
+  /**
+   * Stores the record, and returns its number.
+   */
+  public int add(Record record) {
+    int length = serialize(record);
+    ByteBuffer chunk = getChunk(length);
+    int position = chunk.position();
+    chunk.put(buffer, 0, length);
+
+    if (size >= offsets.length) {
+      long[] newoffsets = new long[offsets.length * 2];
+      System.arraycopy(offsets, 0, newoffsets, 0, size);
+      offsets = newoffsets;
+    }
+    offsets[size] = ((long) (chunkcount - 1) << 32) | position;
+    return size++;
+  }
+
+  /**
+   * Returns a copy of the record with the given number.
+   */
+  public Record get(int number) {
+    String[] s = read(number);
+    return new CompactRecord(s.length, s);
+  }
+
+  /**
+   * Returns the properties and values of the record in the format
+   * CompactRecord uses: property name, value, property name, ...
+   */
+  public String[] read(int number) {
+    long offset = offsets[number];
+    ByteBuffer chunk = chunks[(int) (offset >>> 32)];
+    int[] pos = new int[] { (int) offset };
+
+    String[] names = propnames;
+    int count = readVarInt(chunk, pos);
+    String[] s = new String[count * 2];
+    byte[] bytes = new byte[64];
+    try {
+      for (int ix = 0; ix < s.length; ix += 2) {
+        s[ix] = names[readVarInt(chunk, pos)];
+        int length = readVarInt(chunk, pos);
+        if (length > bytes.length)
+          bytes = new byte[length];
+        // absolute gets don't touch the position, so they are safe
+        // to do from many threads at once
+        for (int i = 0; i < length; i++)
+          bytes[i] = chunk.get(pos[0]++);
+        s[ix + 1] = new String(bytes, 0, length, "utf-8");
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new DukeException(e);
+    }
+    return s;
+  }
+
+  /**
+   * Returns the number of records stored.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes allocated for the records.
+   */
+  public long getCapacity() {
+    long capacity = offsets.length * 8;
+    for (int ix = 0; ix < chunkcount; ix++)
+      capacity += chunks[ix].capacity();
+    return capacity;
+  }
+
+  // --- serialization
+
+  // format: number of values, then for each value the property
+  // number, the length of the value in bytes, and the value in utf-8.
+  // numbers are varints.
+  private int serialize(Record record) {
+    int count = 0;
+    for (String prop : record.getProperties())
+      count += record.getValues(prop).size();
+
+    int pos = writeVarInt(0, count);
+    try {
+      for (String prop : record.getProperties()) {
+        int propnum = getPropertyNumber(prop);
+        for (String value : record.getValues(prop)) {
+          byte[] bytes = value.getBytes("utf-8");
+          ensureCapacity(pos + 10 + bytes.length);
+          pos = writeVarInt(pos, propnum);
+          pos = writeVarInt(pos, bytes.length);
+          System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+          pos += bytes.length;
+        }
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new DukeException(e);
+    }
+    return pos;
+  }
+
+  private int getPropertyNumber(String prop) {
+    int propnum = propnums.get(prop);
+    if (propnum == -1) {
+      propnum = propnums.size();
+      if (propnum >= propnames.length) {
+        String[] newnames = new String[propnames.length * 2];
+        System.arraycopy(propnames, 0, newnames, 0, propnum);
+        propnames = newnames;
+      }
+      propnames[propnum] = prop;
+      propnums.put(prop, propnum);
+    }
+    return propnum;
+  }
+
+  private int writeVarInt(int pos, int value) {
+    ensureCapacity(pos + 5);
+    while ((value & ~0x7F) != 0) {
+      buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[pos++] = (byte) value;
+    return pos;
+  }
+
+  private static int readVarInt(ByteBuffer chunk, int[] pos) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = chunk.get(pos[0]++);
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private void ensureCapacity(int length) {
+    if (length <= buffer.length)
+      return;
+    byte[] newbuffer = new byte[Math.max(length, buffer.length * 2)];
+    System.arraycopy(buffer, 0, newbuffer, 0, buffer.length);
+    buffer = newbuffer;
+  }
+
+  // --- chunk handling
+
+  // returns a chunk with room for a record of this length
+  private ByteBuffer getChunk(int length) {
+    if (chunkcount > 0 && chunks[chunkcount - 1].remaining() >= length)
+      return chunks[chunkcount - 1];
+
+    int chunksize = FIRST_CHUNK_SIZE;
+    if (chunkcount > 0)
+      chunksize = Math.min(chunks[chunkcount - 1].capacity() * 2,
+                           MAX_CHUNK_SIZE);
+    chunksize = Math.max(chunksize, length); // huge records get their own
+
+    if (chunkcount >= chunks.length) {
+      ByteBuffer[] newchunks = new ByteBuffer[chunks.length * 2];
+      System.arraycopy(chunks, 0, newchunks, 0, chunkcount);
+      chunks = newchunks;
+    }
+    ByteBuffer chunk;
+    if (offheap)
+      chunk = ByteBuffer.allocateDirect(chunksize);
+    else
+      chunk = ByteBuffer.allocate(chunksize);
+    chunks[chunkcount++] = chunk;
+    return chunk;
+  }
+}
@@ -0,0 +1,101 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates scores for candidate record IDs, using open addressing
+ * with linear probing over primitive arrays. Entries are never
+ * removed. Slots can be walked with capacity(), isUsed(), getId(),
+ * and getScore(), in no particular order.
+ * @since 1.4
+ */
+class ScoreMap {
+  private static final long FREE = -1; // record IDs are never negative
+  private long[] ids;
+  private double[] scores;
+  private int size;
+
+  public ScoreMap() {
+    this.ids = new long[64];
+    this.scores = new double[64];
+    Arrays.fill(ids, FREE);
+  }
+
+  /**
+   * Adds the score to the score of the ID, adding the ID if it's not
+   * already there.
+   */
+  public void add(long id, double score) {
+    if (size * 2 >= ids.length)
+      rehash();
+
+    int ix = find(id);
+    if (ids[ix] == FREE) {
+      ids[ix] = id;
+      size++;
+    }
+    scores[ix] += score;
+  }
+
+  /**
+   * Returns the score of the ID, or -1.0 if the ID isn't there.
+   */
+  public double get(long id) {
+    int ix = find(id);
+    return ids[ix] == FREE ? -1.0 : scores[ix];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return ids.length;
+  }
+
+  public boolean isUsed(int slot) {
+    return ids[slot] != FREE;
+  }
+
+  public long getId(int slot) {
+    return ids[slot];
+  }
+
+  public double getScore(int slot) {
+    return scores[slot];
+  }
+
+  public void addScore(int slot, double score) {
+    scores[slot] += score;
+  }
+
+  // returns the slot of the ID, or the free slot where it belongs
+  private int find(long id) {
+    int mask = ids.length - 1;
+    int ix = hash(id) & mask;
+    while (ids[ix] != FREE && ids[ix] != id)
+      ix = (ix + 1) & mask;
+    return ix;
+  }
+
+  private void rehash() {
+    long[] oldids = ids;
+    double[] oldscores = scores;
+    ids = new long[oldids.length * 2];
+    scores = new double[oldids.length * 2];
+    Arrays.fill(ids, FREE);
+    for (int ix = 0; ix < oldids.length; ix++) {
+      if (oldids[ix] == FREE)
+        continue;
+      int pos = find(oldids[ix]);
+      ids[pos] = oldids[ix];
+      scores[pos] = oldscores[ix];
+    }
+  }
+
+  private static int hash(long id) {
+    long h = id * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,89 @@
+
+package no.priv.garshol.duke.databases;
+
+/**
+ * A hash map from strings to non-negative ints, using open addressing
+ * with linear probing, so that there are no entry objects and no
+ * boxed values. Safe for concurrent reads, as long as nobody writes.
+ * @since 1.4
+ */
+class StringIntMap {
+  private String[] keys;
+  private int[] values;
+  private int size;
+
+  public StringIntMap() {
+    this(16);
+  }
+
+  public StringIntMap(int capacity) {
+    int size = 16;
+    while (size < capacity * 2)
+      size *= 2;
+    this.keys = new String[size];
+    this.values = new int[size];
+  }
+
+  /**
+   * Returns the value for the key, or -1 if there is none.
+   */
+  public int get(String key) {
+    int mask = keys.length - 1;
+    int ix = hash(key) & mask;
+    while (keys[ix] != null) {
+      if (keys[ix].equals(key))
+        return values[ix];
+      ix = (ix + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Sets the value for the key, replacing any previous value.
+   */
+  public void put(String key, int value) {
+    if (size * 2 >= keys.length)
+      rehash();
+
+    int mask = keys.length - 1;
+    int ix = hash(key) & mask;
+    while (keys[ix] != null) {
+      if (keys[ix].equals(key)) {
+        values[ix] = value;
+        return;
+      }
+      ix = (ix + 1) & mask;
+    }
+    keys[ix] = key;
+    values[ix] = value;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private void rehash() {
+    String[] oldkeys = keys;
+    int[] oldvalues = values;
+    keys = new String[oldkeys.length * 2];
+    values = new int[oldkeys.length * 2];
+    int mask = keys.length - 1;
+    for (int ix = 0; ix < oldkeys.length; ix++) {
+      if (oldkeys[ix] == null)
+        continue;
+      int pos = hash(oldkeys[ix]) & mask;
+      while (keys[pos] != null)
+        pos = (pos + 1) & mask;
+      keys[pos] = oldkeys[ix];
+      values[pos] = oldvalues[ix];
+    }
+  }
+
+  // spreads the bits, since String.hashCode is weak in the low bits
+  // for similar strings, and we use the low bits
+  private static int hash(String key) {
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,90 @@
+
+package no.priv.garshol.duke.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of non-negative values, such as latencies
+ * or sizes. Values are counted in buckets whose upper bounds are
+ * powers of two, so recording a value is cheap, and percentiles are
+ * accurate to within a factor of two.
+ * @since 1.4
+ */
+public class Histogram {
+  private LongAdder[] buckets; // bucket n holds values < 2^n
+  private LongAdder count;
+  private LongAdder total;
+
+  public Histogram() {
+    this.buckets = new LongAdder[64];
+    for (int ix = 0; ix < buckets.length; ix++)
+      buckets[ix] = new LongAdder();
+    this.count = new LongAdder();
+    this.total = new LongAdder();
+  }
+
+  /**
+   * Adds a value to the histogram. Negative values count as zero.
+   */
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+    buckets[Math.min(64 - Long.numberOfLeadingZeros(value), 63)].increment();
+    count.increment();
+    total.add(value);
+  }
+
+  /**
+   * Returns the number of values recorded.
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Returns the sum of all values recorded.
+   */
+  public long getTotal() {
+    return total.sum();
+  }
+
+  /**
+   * Returns the mean of all values recorded, or 0 if there are none.
+   */
+  public double getMean() {
+    long count = getCount();
+    if (count == 0)
+      return 0.0;
+    return getTotal() / (double) count;
+  }
+
+  /**
+   * Returns an upper bound on the given percentile of the recorded
+   * values. The bound is never more than twice the real value.
+   * @param percentile A number between 0 and 100.
+   */
+  public long getPercentile(double percentile) {
+    long[] counts = new long[buckets.length];
+    long count = 0;
+    for (int ix = 0; ix < buckets.length; ix++) {
+      counts[ix] = buckets[ix].sum();
+      count += counts[ix];
+    }
+    if (count == 0)
+      return 0;
+
+    long wanted = (long) Math.ceil((count * percentile) / 100.0);
+    long seen = 0;
+    for (int ix = 0; ix < counts.length; ix++) {
+      seen += counts[ix];
+      if (seen >= wanted && seen > 0)
+        return ix == 0 ? 0 : (1L << ix) - 1;
+    }
+    return Long.MAX_VALUE;
+  }
+
+  public String toString() {
+    return "[Histogram count=" + getCount() + " mean=" + getMean() +
+      " p50=" + getPercentile(50) + " p99=" + getPercentile(99) + "]";
+  }
+}
@@ -5,6 +5,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import no.priv.garshol.duke.comparators.QGramComparator;
+
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 
@@ -33,4 +35,39 @@ public class CompactRecordTest {
     assertTrue(r.getValues("foo").iterator().next().equals("bar"));
     assertTrue(r.getValue("foo").equals("bar"));
   }
+
+  @Test
+  public void testPreparedValues() {
+    CompactRecord r = new CompactRecord();
+    r.addValue("foo", "bar");
+    r.addValue("baz", "quux");
+    assertTrue(r.getPreparedValues("foo") == null);
+
+    QGramComparator comp = new QGramComparator();
+    PreparedValues foo = new PreparedValues("foo", comp, r.getValues("foo"));
+    PreparedValues baz = new PreparedValues("baz", comp, r.getValues("baz"));
+    r.setPreparedValues(foo);
+    r.setPreparedValues(baz);
+    assertTrue(r.getPreparedValues("foo") == foo);
+    assertTrue(r.getPreparedValues("baz") == baz);
+
+    // replacing values
+    PreparedValues foo2 = new PreparedValues("foo", comp, r.getValues("foo"));
+    r.setPreparedValues(foo2);
+    assertTrue(r.getPreparedValues("foo") == foo2);
+    assertTrue(r.getPreparedValues("baz") == baz);
+  }
+
+  @Test
+  public void testAddValueClearsPreparedValues() {
+    CompactRecord r = new CompactRecord();
+    r.addValue("foo", "bar");
+
+    QGramComparator comp = new QGramComparator();
+    r.setPreparedValues(new PreparedValues("foo", comp, r.getValues("foo")));
+    assertTrue(r.getPreparedValues("foo") != null);
+
+    r.addValue("foo", "baz");
+    assertTrue(r.getPreparedValues("foo") == null);
+  }
 }
@@ -0,0 +1,116 @@
+
+package no.priv.garshol.duke;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import no.priv.garshol.duke.comparators.QGramComparator;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class IndexedRecordTest {
+  private ConfigurationImpl config;
+
+  @Before
+  public void setup() {
+    List<Property> props = new ArrayList();
+    props.add(new PropertyImpl("ID"));
+    props.add(new PropertyImpl("NAME", new QGramComparator(), 0.3, 0.8));
+    config = new ConfigurationImpl();
+    config.setProperties(props);
+  }
+
+  @Test
+  public void testEmpty() {
+    IndexedRecord r = new IndexedRecord(config);
+    r.toString();
+
+    assertTrue(r.isEmpty());
+    assertTrue(r.getProperties().isEmpty());
+    assertTrue(r.getValues("NAME").isEmpty());
+    assertTrue(r.getValues("foo").isEmpty());
+    assertTrue(r.getValue("NAME") == null);
+    assertEquals(0, r.getValues(1).length);
+  }
+
+  @Test
+  public void testValues() {
+    IndexedRecord r = new IndexedRecord(config);
+    r.addValue("NAME", "foo");
+    r.addValue("NAME", "bar");
+    r.addValue("NAME", "");
+    r.toString();
+
+    assertTrue(!r.isEmpty());
+    assertEquals(1, r.getProperties().size());
+    assertEquals("NAME", r.getProperties().iterator().next());
+    assertEquals(2, r.getValues("NAME").size());
+    assertEquals("foo", r.getValue("NAME"));
+
+    String[] values = r.getValues(config.getPropertyIndex("NAME"));
+    assertEquals(2, values.length);
+    assertEquals("foo", values[0]);
+    assertEquals("bar", values[1]);
+  }
+
+  @Test
+  public void testUnknownProperty() {
+    IndexedRecord r = new IndexedRecord(config);
+    r.addValue("foo", "bar");
+
+    assertTrue(!r.isEmpty());
+    assertEquals(1, r.getProperties().size());
+    assertEquals("bar", r.getValue("foo"));
+    assertEquals(-1, config.getPropertyIndex("foo"));
+  }
+
+  @Test
+  public void testCopyOf() {
+    CompactRecord original = new CompactRecord();
+    original.addValue("ID", "1");
+    original.addValue("NAME", "foo");
+    original.addValue("foo", "bar");
+
+    IndexedRecord r = IndexedRecord.copyOf(original, config);
+    assertEquals(3, r.getProperties().size());
+    assertEquals("1", r.getValue("ID"));
+    assertEquals("foo", r.getValue("NAME"));
+    assertEquals("bar", r.getValue("foo"));
+  }
+
+  @Test
+  public void testPreparedValues() {
+    IndexedRecord r = new IndexedRecord(config);
+    r.addValue("NAME", "foo");
+    assertTrue(r.getPreparedValues("NAME") == null);
+
+    QGramComparator comp = new QGramComparator();
+    PreparedValues pv = new PreparedValues("NAME", comp, r.getValues("NAME"));
+    r.setPreparedValues(pv);
+    assertTrue(r.getPreparedValues("NAME") == pv);
+    assertTrue(r.getPreparedValues(config.getPropertyIndex("NAME")) == pv);
+  }
+
+  @Test
+  public void testAddValueAfterCompare() {
+    config.setThreshold(0.85);
+    Processor processor = new Processor(config, true);
+    IndexedRecord r1 = new IndexedRecord(config);
+    r1.addValue("ID", "1");
+    r1.addValue("NAME", "abcdefgh");
+    IndexedRecord r2 = new IndexedRecord(config);
+    r2.addValue("ID", "2");
+    r2.addValue("NAME", "zyxwvuts");
+
+    double before = processor.compare(r1, r2); // values are prepared
+    r2.addValue("NAME", "abcdefgh");
+    double after = processor.compare(r1, r2);
+    assertTrue("new value wasn't used: " + before + " " + after,
+               after > before);
+    processor.close();
+  }
+}
@@ -0,0 +1,42 @@
+package no.priv.garshol.duke;
+
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class MatchWorkerTest {
+
+  @Test
+  public void testThreadNames() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(3, new Processor.MatchWorkerFactory(),
+                                         null, false);
+    final Set<String> names = Collections.synchronizedSet(new HashSet());
+    // makes sure three different threads run the tasks
+    final CyclicBarrier barrier = new CyclicBarrier(3);
+    for (int ix = 0; ix < 3; ix++)
+      pool.execute(new Runnable() {
+          public void run() {
+            names.add(Thread.currentThread().getName());
+            try {
+              barrier.await(10, TimeUnit.SECONDS);
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(3, names.size());
+    for (String name : names)
+      assertTrue(name, name.startsWith("MatchThread "));
+  }
+}
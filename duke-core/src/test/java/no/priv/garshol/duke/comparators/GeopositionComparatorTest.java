@@ -79,4 +79,20 @@ public class GeopositionComparatorTest {
     comp.setMaxDistance(2000 * 1000); // WolframAlpha gives distance as 1632km
     assertEquals(comp.compare(oslo, kiev), comp.compare(kiev, oslo));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testPrepared() {
+    String oslo = "59.913869,10.752245";
+    String kiev = "50.45,30.5234";
+    comp.setMaxDistance(2000 * 1000);
+    assertEquals(comp.compare(oslo, kiev),
+                 comp.compare(oslo, comp.prepare(oslo),
+                              kiev, comp.prepare(kiev)));
+  }
+
+  @Test
+  public void testPreparedInvalid() {
+    assertEquals(0.5, comp.compare("foo", comp.prepare("foo"),
+                                   "1,1", comp.prepare("1,1")));
+  }
+}
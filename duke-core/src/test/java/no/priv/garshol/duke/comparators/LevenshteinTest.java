@@ -112,4 +112,102 @@ public class LevenshteinTest {
     // the edit distance is 4, but we will return only 3, because of the cutoff
     assertEquals(3, Levenshtein.compactDistance("abcd", "efgh"));
   }
-}
\ No newline at end of file
+
+  // tests for the bit-parallel version
+
+  @Test
+  public void testMEmpty() {
+    assertEquals(0, Levenshtein.myersDistance("", ""));
+    assertEquals(1, Levenshtein.myersDistance("", "1"));
+    assertEquals(1, Levenshtein.myersDistance("1", ""));
+  }
+
+  @Test
+  public void testMKitten() {
+    assertEquals(3, Levenshtein.myersDistance("kitten", "sitting"));
+    assertEquals(3, Levenshtein.myersDistance("sitting", "kitten"));
+  }
+
+  @Test
+  public void testMDays() {
+    assertEquals(3, Levenshtein.myersDistance("saturday", "sunday"));
+    assertEquals(3, Levenshtein.myersDistance("sunday", "saturday"));
+  }
+
+  @Test
+  public void testMGambol() {
+    assertEquals(2, Levenshtein.myersDistance("gambol", "gumbo"));
+    assertEquals(2, Levenshtein.myersDistance("gumbo", "gambol"));
+  }
+
+  @Test
+  public void testMTotallyUnlike() {
+    assertEquals(4, Levenshtein.myersDistance("abcd", "efgh"));
+  }
+
+  @Test
+  public void testMCutoff() {
+    // the real distance is 4, so with a cutoff all we know is that
+    // we get something above the cutoff
+    assertTrue(Levenshtein.myersDistance("abcd", "efgh", 2) > 2);
+    assertEquals(3, Levenshtein.myersDistance("kitten", "sitting", 3));
+    assertTrue(Levenshtein.myersDistance("kitten", "sitting", 2) > 2);
+  }
+
+  @Test
+  public void testMLong() {
+    // the pattern needs two words
+    String s1 = "aaaaaaaaaabbbbbbbbbbccccccccccddddddddddeeeeeeeeeeffffffffffgggggggggg";
+    String s2 = "aaaaaaaaaabbbbbbbbbbccccccccccxxddddddddeeeeeeeeeeffffffffffggggggggg";
+    assertEquals(Levenshtein.distance(s1, s2), Levenshtein.myersDistance(s1, s2));
+  }
+
+  @Test
+  public void testMNonAscii() {
+    assertEquals(1, Levenshtein.myersDistance("gr\u00f8nn", "gronn"));
+    assertEquals(0, Levenshtein.myersDistance("\u00e6\u00f8\u00e5", "\u00e6\u00f8\u00e5"));
+  }
+
+  @Test
+  public void testMRandom() {
+    // compare with the original algorithm, for lengths on both sides
+    // of the word size
+    java.util.Random random = new java.util.Random(0);
+    for (int ix = 0; ix < 2000; ix++) {
+      String s1 = makeString(random, random.nextInt(150));
+      String s2 = random.nextBoolean() ?
+        makeString(random, random.nextInt(150)) : mutate(random, s1);
+      int dist = Levenshtein.distance(s1, s2);
+      assertEquals(s1 + " / " + s2, dist, Levenshtein.myersDistance(s1, s2));
+
+      // with a cutoff we get the right answer if it's below the
+      // cutoff, and something above it otherwise
+      int max = random.nextInt(20);
+      int cutdist = Levenshtein.myersDistance(s1, s2, max);
+      if (dist <= max)
+        assertEquals(dist, cutdist);
+      else
+        assertTrue(cutdist > max);
+    }
+  }
+
+  private static String makeString(java.util.Random random, int length) {
+    char[] chars = new char[length];
+    for (int ix = 0; ix < length; ix++)
+      chars[ix] = (char) ('a' + random.nextInt(4));
+    return new String(chars);
+  }
+
+  private static String mutate(java.util.Random random, String s) {
+    StringBuilder buf = new StringBuilder(s);
+    int edits = random.nextInt(6);
+    for (int ix = 0; ix < edits && buf.length() > 0; ix++) {
+      int pos = random.nextInt(buf.length());
+      if (random.nextBoolean())
+        buf.deleteCharAt(pos);
+      else
+        buf.insert(pos, 'x');
+    }
+    return buf.toString();
+  }
+}
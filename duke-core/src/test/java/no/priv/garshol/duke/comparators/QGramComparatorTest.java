@@ -80,4 +80,12 @@ public class QGramComparatorTest {
     comp.setTokenizer(QGramComparator.Tokenizer.ENDS);
     assertEquals((2.0 / 5.0), comp.compare("gail", "gayle"));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testPrepared() {
+    String s1 = "abc def";
+    String s2 = "cab def";
+    assertEquals(comp.compare(s1, s2),
+                 comp.compare(s1, comp.prepare(s1), s2, comp.prepare(s2)));
+  }
+}
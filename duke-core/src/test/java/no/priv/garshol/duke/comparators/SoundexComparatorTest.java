@@ -75,4 +75,12 @@ public class SoundexComparatorTest {
     assertEquals("wrong score for values with different codes", 0.0,
                  comp.compare("Garshol", "Sue"));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testPrepared() {
+    assertEquals(0.9, comp.compare("Garshol", comp.prepare("Garshol"),
+                                   "Garsxol", comp.prepare("Garsxol")));
+    assertEquals(0.0, comp.compare("Garshol", comp.prepare("Garshol"),
+                                   "Sue", comp.prepare("Sue")));
+  }
+}
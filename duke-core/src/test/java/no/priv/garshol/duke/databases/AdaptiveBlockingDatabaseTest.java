@@ -0,0 +1,105 @@
+package no.priv.garshol.duke.databases;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.junit.Test;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.utils.TestUtils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class AdaptiveBlockingDatabaseTest extends DatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    InMemoryBlockingDatabase db = new InMemoryBlockingDatabase();
+    db.setConfiguration(config);
+    db.setAdaptiveWindow(true);
+
+    Collection<KeyFunction> functions = new ArrayList();
+    functions.add(new PropertyKeyFunction("NAME"));
+    db.setKeyFunctions(functions);
+    db.setSecondaryKeyFunction(new PropertyKeyFunction("EMAIL"));
+    return db;
+  }
+
+  @Test
+  public void testWindowGrows() {
+    // a fixed window of 5 would miss most of these
+    for (int ix = 0; ix < 20; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "NAME", "smith" + ix,
+                                    "EMAIL", "smith" + ix + "@example.com"));
+    db.commit();
+
+    Record record = TestUtils.makeRecord("NAME", "smith10");
+    assertEquals(20, db.findCandidateMatches(record).size());
+  }
+
+  @Test
+  public void testWindowShrinks() {
+    db.index(TestUtils.makeRecord("ID", "1", "NAME", "jones",
+                                  "EMAIL", "jones@example.com"));
+    db.index(TestUtils.makeRecord("ID", "2", "NAME", "smith",
+                                  "EMAIL", "smith@example.com"));
+    db.index(TestUtils.makeRecord("ID", "3", "NAME", "smithe",
+                                  "EMAIL", "smithe@example.com"));
+    db.index(TestUtils.makeRecord("ID", "4", "NAME", "taylor",
+                                  "EMAIL", "taylor@example.com"));
+    db.commit();
+
+    // a fixed window would take all of these, but only the smiths are
+    // similar enough
+    Record record = TestUtils.makeRecord("NAME", "smith");
+    Collection<Record> candidates = db.findCandidateMatches(record);
+    assertEquals(2, candidates.size());
+    for (Record candidate : candidates)
+      assertTrue(candidate.getValue("NAME").startsWith("smith"));
+  }
+
+  @Test
+  public void testSubBlocks() {
+    AbstractBlockingDatabase blocking = (AbstractBlockingDatabase) db;
+    blocking.setMaxWindowSize(2);
+    blocking.setKeySimilarity(0.3); // the emails differ in the first letter
+    for (char ch = 'a'; ch <= 'j'; ch++)
+      db.index(TestUtils.makeRecord("ID", "" + ch, "NAME", "smith",
+                                    "EMAIL", ch + "@example.com"));
+    db.commit();
+
+    // the smith block is too big, so only the sub-blocks near the
+    // email are searched
+    Record record = TestUtils.makeRecord("NAME", "smith",
+                                         "EMAIL", "e@example.com");
+    Collection<Record> candidates = db.findCandidateMatches(record);
+    assertEquals(5, candidates.size());
+    boolean found = false;
+    for (Record candidate : candidates)
+      found = found || candidate.getValue("ID").equals("e");
+    assertTrue("record with same email not found", found);
+  }
+
+  @Test
+  public void testKeySimilarity() {
+    assertEquals(1.0, AbstractBlockingDatabase.keySimilarity("", ""));
+    assertEquals(1.0, AbstractBlockingDatabase.keySimilarity("abc", "abc"));
+    assertEquals(0.0, AbstractBlockingDatabase.keySimilarity("abc", "xbc"));
+    assertEquals(0.5, AbstractBlockingDatabase.keySimilarity("ab", "abcd"));
+  }
+
+  private static class PropertyKeyFunction implements KeyFunction {
+    private String property;
+
+    public PropertyKeyFunction(String property) {
+      this.property = property;
+    }
+
+    public String makeKey(Record record) {
+      String value = record.getValue(property);
+      return value == null ? "" : value;
+    }
+  }
+}
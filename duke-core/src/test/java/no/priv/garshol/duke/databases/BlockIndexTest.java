@@ -0,0 +1,154 @@
+package no.priv.garshol.duke.databases;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import no.priv.garshol.duke.DukeException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class BlockIndexTest {
+
+  @Test
+  public void testEmpty() {
+    BlockIndex index = new BlockIndex.Builder().build();
+    assertEquals(0, index.size());
+    assertEquals(0, index.ceiling("abc"));
+    assertEquals(-1, index.lower("abc"));
+    assertEquals(-1, index.find("abc"));
+  }
+
+  @Test
+  public void testSimple() {
+    BlockIndex.Builder builder = new BlockIndex.Builder();
+    builder.add("abc", 1);
+    builder.add("abc", 0);
+    builder.add("abd", 2);
+    BlockIndex index = builder.build();
+
+    assertEquals(2, index.size());
+    assertEquals(3, index.getRecordCount());
+    assertEquals("abd", index.getKey(1));
+    assertEquals(0, index.find("abc"));
+    assertEquals(-1, index.find("ab"));
+    assertEquals(0, index.ceiling("ab"));
+    assertEquals(1, index.higher("abc"));
+    assertEquals(2, index.higher("abd"));
+    assertEquals(0, index.lower("abd"));
+
+    int[] records = new int[2];
+    assertEquals(2, index.getRecords(0, records, 0));
+    assertEquals(1, records[0]);
+    assertEquals(0, records[1]);
+  }
+
+  @Test
+  public void testOutOfOrder() {
+    BlockIndex.Builder builder = new BlockIndex.Builder();
+    builder.add("b", 0);
+    try {
+      builder.add("a", 1);
+      fail("accepted key out of order");
+    } catch (DukeException e) {
+      // this is what we expect
+    }
+  }
+
+  @Test
+  public void testRandom() {
+    // check lookups against a TreeMap, across many restart points
+    Random random = new Random(42);
+    TreeMap<String, List<Integer>> expected = makeRandom(random, 1000, 0);
+    BlockIndex index = build(expected);
+    assertEquals(expected.size(), index.size());
+
+    for (int ix = 0; ix < 1000; ix++) {
+      String key = makeKey(random);
+      check(expected.ceilingKey(key), index, index.ceiling(key));
+      check(expected.higherKey(key), index, index.higher(key));
+      check(expected.lowerKey(key), index, index.lower(key));
+      assertEquals(expected.containsKey(key), index.find(key) != -1);
+    }
+
+    int pos = 0;
+    for (Map.Entry<String, List<Integer>> entry : expected.entrySet()) {
+      assertEquals(pos, index.find(entry.getKey()));
+      assertEquals(entry.getValue().size(), index.getBlockSize(pos++));
+    }
+  }
+
+  @Test
+  public void testMerge() {
+    Random random = new Random(17);
+    TreeMap<String, List<Integer>> expected1 = makeRandom(random, 500, 0);
+    TreeMap<String, List<Integer>> expected2 = makeRandom(random, 300, 500);
+    BlockIndex merged = BlockIndex.merge(build(expected1), build(expected2));
+
+    TreeMap<String, List<Integer>> expected = expected1;
+    for (Map.Entry<String, List<Integer>> entry : expected2.entrySet()) {
+      List<Integer> block = expected.get(entry.getKey());
+      if (block == null)
+        expected.put(entry.getKey(), entry.getValue());
+      else
+        block.addAll(entry.getValue());
+    }
+
+    assertEquals(expected.size(), merged.size());
+    assertEquals(800, merged.getRecordCount());
+    int pos = 0;
+    for (Map.Entry<String, List<Integer>> entry : expected.entrySet()) {
+      assertEquals(entry.getKey(), merged.getKey(pos));
+      int[] records = new int[merged.getBlockSize(pos)];
+      merged.getRecords(pos++, records, 0);
+      assertEquals(entry.getValue().size(), records.length);
+      for (int ix = 0; ix < records.length; ix++)
+        assertEquals((int) entry.getValue().get(ix), records[ix]);
+    }
+  }
+
+  private void check(String expected, BlockIndex index, int pos) {
+    if (expected == null)
+      assertTrue(pos == -1 || pos == index.size());
+    else
+      assertEquals(expected, index.getKey(pos));
+  }
+
+  private TreeMap<String, List<Integer>> makeRandom(Random random,
+                                                    int records,
+                                                    int first) {
+    TreeMap<String, List<Integer>> map = new TreeMap();
+    for (int ix = 0; ix < records; ix++) {
+      String key = makeKey(random);
+      List<Integer> block = map.get(key);
+      if (block == null) {
+        block = new ArrayList();
+        map.put(key, block);
+      }
+      block.add(first + ix);
+    }
+    return map;
+  }
+
+  private BlockIndex build(TreeMap<String, List<Integer>> map) {
+    BlockIndex.Builder builder = new BlockIndex.Builder();
+    for (Map.Entry<String, List<Integer>> entry : map.entrySet())
+      for (int record : entry.getValue())
+        builder.add(entry.getKey(), record);
+    return builder.build();
+  }
+
+  // keys with lots of shared prefixes
+  private String makeKey(Random random) {
+    char[] chars = new char[random.nextInt(6)];
+    for (int ix = 0; ix < chars.length; ix++)
+      chars[ix] = (char) ('a' + random.nextInt(4));
+    return new String(chars);
+  }
+}
@@ -0,0 +1,136 @@
+package no.priv.garshol.duke.databases;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class BucketTest {
+
+  @Test
+  public void testEmpty() {
+    Bucket b = new Bucket();
+    assertEquals(0, b.size());
+    assertEquals(-1, b.reader().next());
+    assertTrue(!b.contains(0));
+  }
+
+  @Test
+  public void testAdd() {
+    Bucket b = new Bucket();
+    b.add(3);
+    b.add(200);
+    b.add(100000);
+
+    assertEquals(3, b.size());
+    assertTrue(b.contains(3));
+    assertTrue(b.contains(200));
+    assertTrue(b.contains(100000));
+    assertTrue(!b.contains(4));
+
+    Bucket.Reader reader = b.reader();
+    assertEquals(3, reader.next());
+    assertEquals(200, reader.next());
+    assertEquals(100000, reader.next());
+    assertEquals(-1, reader.next());
+  }
+
+  @Test
+  public void testDuplicates() {
+    Bucket b = new Bucket();
+    b.add(5);
+    b.add(5);
+    assertEquals(2, b.size());
+
+    Bucket.Reader reader = b.reader();
+    assertEquals(5, reader.next());
+    assertEquals(5, reader.next());
+    assertEquals(-1, reader.next());
+  }
+
+  @Test
+  public void testOutOfOrder() {
+    Bucket b = new Bucket();
+    b.add(10);
+    b.add(2);
+    b.add(20);
+    b.add(1);
+    assertEquals(4, b.size());
+    b.sort();
+
+    int[] ids = readAll(b);
+    assertTrue(Arrays.equals(new int[] {1, 2, 10, 20}, ids));
+    b.add(30);
+    assertTrue(Arrays.equals(new int[] {1, 2, 10, 20, 30}, readAll(b)));
+  }
+
+  @Test
+  public void testIsSorted() {
+    Bucket b = new Bucket();
+    assertTrue(!b.add(5));
+    assertTrue(!b.add(7));
+    assertTrue(b.isSorted());
+    assertTrue(b.add(6));
+    assertTrue(!b.isSorted());
+    b.sort();
+    assertTrue(b.isSorted());
+    assertTrue(Arrays.equals(new int[] {5, 6, 7}, readAll(b)));
+  }
+
+  @Test
+  public void testAdvance() {
+    Random random = new Random(0);
+    int[] ids = new int[10000];
+    Bucket b = new Bucket();
+    int id = 0;
+    for (int ix = 0; ix < ids.length; ix++) {
+      id += 1 + random.nextInt(ix % 1000 == 0 ? 100000 : 10);
+      ids[ix] = id;
+      b.add(id);
+    }
+
+    for (int round = 0; round < 100; round++) {
+      Bucket.Reader reader = b.reader();
+      int target = 0;
+      while (true) {
+        target += 1 + random.nextInt(round * 100 + 1);
+        int expected = firstAtLeast(ids, target);
+        assertEquals("wrong result for " + target, expected,
+                     reader.advance(target));
+        if (expected == -1)
+          break;
+      }
+    }
+  }
+
+  @Test
+  public void testLarge() {
+    // there used to be a size limit, above which buckets were emptied
+    Bucket b = new Bucket();
+    for (int ix = 0; ix < 2000000; ix++)
+      b.add(ix * 2);
+    assertEquals(2000000, b.size());
+    assertTrue(b.contains(0));
+    assertTrue(b.contains(3999998));
+    assertTrue(!b.contains(3999999));
+  }
+
+  private int[] readAll(Bucket b) {
+    int[] ids = new int[b.size()];
+    Bucket.Reader reader = b.reader();
+    for (int ix = 0; ix < ids.length; ix++)
+      ids[ix] = reader.next();
+    assertEquals(-1, reader.next());
+    return ids;
+  }
+
+  private int firstAtLeast(int[] ids, int target) {
+    int ix = Arrays.binarySearch(ids, target);
+    if (ix < 0)
+      ix = -(ix + 1);
+    return ix < ids.length ? ids[ix] : -1;
+  }
+}
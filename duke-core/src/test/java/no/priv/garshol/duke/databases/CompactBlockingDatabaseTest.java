@@ -0,0 +1,131 @@
+package no.priv.garshol.duke.databases;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.utils.TestUtils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class CompactBlockingDatabaseTest extends DatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    CompactBlockingDatabase db = new CompactBlockingDatabase();
+    setup(db, config);
+    return db;
+  }
+
+  @Test
+  public void testOffHeap() {
+    CompactBlockingDatabase db = new CompactBlockingDatabase();
+    db.setOffHeap(true);
+    setup(db, config);
+    for (int ix = 0; ix < 10000; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "NAME", "name" + ix,
+                                    "EMAIL", "næme" + ix + "@example.com"));
+    db.commit();
+
+    for (int ix = 0; ix < 10000; ix += 99) {
+      Record record = db.findRecordById("" + ix);
+      assertEquals("name" + ix, record.getValue("NAME"));
+      assertEquals("næme" + ix + "@example.com", record.getValue("EMAIL"));
+    }
+  }
+
+  @Test
+  public void testUncommitted() {
+    db.index(TestUtils.makeRecord("ID", "1", "NAME", "smith"));
+    Record record = TestUtils.makeRecord("NAME", "smith");
+    assertEquals(1, db.findCandidateMatches(record).size());
+  }
+
+  @Test
+  public void testSameRecordTwice() {
+    // both key functions find the same record, but it's only one
+    // candidate
+    Collection<KeyFunction> functions = new ArrayList();
+    functions.add(new PropertyKeyFunction("NAME",
+                                          PropertyKeyFunction.Part.VALUE, 0));
+    functions.add(new PropertyKeyFunction("EMAIL",
+                                          PropertyKeyFunction.Part.VALUE, 0));
+    ((CompactBlockingDatabase) db).setKeyFunctions(functions);
+
+    db.index(TestUtils.makeRecord("ID", "1", "NAME", "smith",
+                                  "EMAIL", "smith@example.com"));
+    db.commit();
+    Record record = TestUtils.makeRecord("NAME", "smith",
+                                         "EMAIL", "smith@example.com");
+    assertEquals(1, db.findCandidateMatches(record).size());
+  }
+
+  @Test
+  public void testSameAsInMemory() {
+    checkSameAsInMemory(false);
+  }
+
+  @Test
+  public void testSameAsInMemoryAdaptive() {
+    checkSameAsInMemory(true);
+  }
+
+  private void checkSameAsInMemory(boolean adaptive) {
+    // index the same records in both databases, over many commits, so
+    // that the compact one has to merge its runs, and check that they
+    // find the same candidates
+    InMemoryBlockingDatabase reference = new InMemoryBlockingDatabase();
+    setup(reference, config);
+    reference.setAdaptiveWindow(adaptive);
+    ((CompactBlockingDatabase) db).setAdaptiveWindow(adaptive);
+
+    Random random = new Random(1234);
+    for (int ix = 0; ix < 2000; ix++) {
+      Record record = TestUtils.makeRecord("ID", "" + ix,
+                                           "NAME", makeName(random));
+      db.index(record);
+      reference.index(record);
+      if (random.nextInt(50) == 0) {
+        db.commit();
+        reference.commit();
+      }
+    }
+    db.commit();
+    reference.commit();
+
+    for (int ix = 0; ix < 200; ix++) {
+      Record record = TestUtils.makeRecord("NAME", makeName(random));
+      assertEquals(getIds(reference.findCandidateMatches(record)),
+                   getIds(db.findCandidateMatches(record)));
+    }
+  }
+
+  private void setup(AbstractBlockingDatabase db, Configuration config) {
+    db.setConfiguration(config);
+    Collection<KeyFunction> functions = new ArrayList();
+    functions.add(new PropertyKeyFunction("NAME",
+                                          PropertyKeyFunction.Part.VALUE, 0));
+    db.setKeyFunctions(functions);
+  }
+
+  private Set<String> getIds(Collection<Record> records) {
+    Set<String> ids = new HashSet();
+    for (Record record : records)
+      ids.add(record.getValue("ID"));
+    return ids;
+  }
+
+  private String makeName(Random random) {
+    char[] chars = new char[1 + random.nextInt(6)];
+    for (int ix = 0; ix < chars.length; ix++)
+      chars[ix] = (char) ('a' + random.nextInt(5));
+    return new String(chars);
+  }
+}
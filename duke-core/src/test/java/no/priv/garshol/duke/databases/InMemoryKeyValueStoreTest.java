@@ -0,0 +1,52 @@
+package no.priv.garshol.duke.databases;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import no.priv.garshol.duke.utils.TestUtils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class InMemoryKeyValueStoreTest {
+  private InMemoryKeyValueStore store;
+
+  @Before
+  public void setup() {
+    store = new InMemoryKeyValueStore();
+    for (int ix = 0; ix < 10; ix++)
+      store.registerRecord(store.makeNewRecordId(),
+                           TestUtils.makeRecord("ID", "" + ix));
+  }
+
+  @Test
+  public void testInOrder() {
+    store.registerToken(1, "NAME", "lars");
+    store.registerToken(5, "NAME", "lars");
+    // no commit, since the IDs are in order
+    Bucket b = store.lookupToken("NAME", "lars");
+    assertTrue(b.isSorted());
+    assertTrue(b.contains(1));
+    assertTrue(b.contains(5));
+  }
+
+  @Test
+  public void testOutOfOrder() {
+    store.registerToken(5, "NAME", "lars");
+    store.registerToken(1, "NAME", "lars");
+    store.registerToken(3, "NAME", "marius");
+    store.commit();
+
+    Bucket b = store.lookupToken("NAME", "lars");
+    assertTrue(b.isSorted());
+    assertEquals(2, b.size());
+    assertTrue(b.contains(1));
+    assertTrue(b.contains(5));
+
+    // a bucket that gets out of order again must be sorted again
+    store.registerToken(2, "NAME", "lars");
+    store.commit();
+    assertTrue(b.isSorted());
+    assertTrue(b.contains(2));
+  }
+}
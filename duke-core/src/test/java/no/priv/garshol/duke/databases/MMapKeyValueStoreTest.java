@@ -0,0 +1,207 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.utils.TestUtils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class MMapKeyValueStoreTest {
+  @Rule
+  public TemporaryFolder tmpdir = new TemporaryFolder();
+
+  @Test
+  public void testReopen() {
+    File dir = tmpdir.getRoot();
+    MMapKeyValueStore store = new MMapKeyValueStore(dir, false);
+    add(store, "1", "lars");
+    add(store, "2", "lars");
+    store.close();
+
+    store = new MMapKeyValueStore(dir, false);
+    assertEquals("lars", store.findRecordById("1").getValue("NAME"));
+    assertEquals("2", store.findRecordById(1).getValue("ID"));
+    Bucket bucket = store.lookupToken("NAME", "lars");
+    assertEquals(2, bucket.size());
+    assertTrue(bucket.contains(0));
+    assertTrue(bucket.contains(1));
+    assertEquals(2, store.makeNewRecordId());
+    store.close();
+  }
+
+  @Test
+  public void testUncommittedLost() throws Exception {
+    File dir = tmpdir.getRoot();
+    MMapKeyValueStore store = new MMapKeyValueStore(dir, false);
+    add(store, "1", "lars");
+    store.commit();
+    add(store, "2", "lars");
+    // the store is never closed, as if the process died here. to make
+    // things harder we add garbage to the files, like a commit that
+    // failed halfway through would.
+    for (String name : new String[] { "records", "offsets", "postings" }) {
+      FileOutputStream out =
+        new FileOutputStream(new File(dir, name), true);
+      out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 });
+      out.close();
+    }
+
+    store = new MMapKeyValueStore(dir, false);
+    assertTrue(store.findRecordById("1") != null);
+    assertTrue(store.findRecordById("2") == null);
+    assertEquals(1, store.lookupToken("NAME", "lars").size());
+    assertEquals(1, store.makeNewRecordId());
+    store.close();
+  }
+
+  @Test
+  public void testManyCommits() {
+    // each commit adds a chunk to the token, so this exercises merging
+    File dir = tmpdir.getRoot();
+    MMapKeyValueStore store = new MMapKeyValueStore(dir, false);
+    for (int ix = 0; ix < 100; ix++) {
+      add(store, "" + ix, "common name" + ix);
+      store.commit();
+      assertEquals(ix + 1, store.lookupToken("NAME", "common").size());
+    }
+    store.close();
+
+    store = new MMapKeyValueStore(dir, false);
+    Bucket bucket = store.lookupToken("NAME", "common");
+    assertEquals(100, bucket.size());
+    Bucket.Reader reader = bucket.reader();
+    for (int ix = 0; ix < 100; ix++)
+      assertEquals(ix, reader.next());
+    assertEquals(1, store.lookupToken("NAME", "name42").size());
+    store.close();
+  }
+
+  @Test
+  public void testChunksAndUncommitted() {
+    // IDs spread over several chunks, and some not committed yet
+    File dir = tmpdir.getRoot();
+    MMapKeyValueStore store = new MMapKeyValueStore(dir, false);
+    for (int ix = 0; ix < 10; ix++) {
+      add(store, "" + ix, "lars");
+      if (ix % 3 == 2)
+        store.commit();
+    }
+
+    Bucket bucket = store.lookupToken("NAME", "lars");
+    assertEquals(10, bucket.size());
+    Bucket.Reader reader = bucket.reader();
+    for (int ix = 0; ix < 10; ix++)
+      assertEquals(ix, reader.next());
+    assertEquals(-1, reader.next());
+
+    reader = bucket.reader();
+    assertEquals(4, reader.advance(4));
+    assertEquals(4, reader.advance(3)); // already past it
+    assertEquals(9, reader.advance(9)); // uncommitted
+    assertEquals(-1, reader.advance(10));
+    assertTrue(bucket.contains(7));
+    store.close();
+  }
+
+  @Test
+  public void testCompact() {
+    File dir = tmpdir.getRoot();
+    MMapKeyValueStore store = new MMapKeyValueStore(dir, false);
+    for (int ix = 0; ix < 100; ix++) {
+      add(store, "" + ix, "common name" + ix);
+      store.commit();
+    }
+    long before = new File(dir, "postings").length();
+    store.compact();
+    long after = new File(dir, "postings").length();
+    assertTrue("postings didn't shrink: " + before + " -> " + after,
+               after * 2 < before);
+    assertEquals(100, store.lookupToken("NAME", "common").size());
+
+    // the store still works after compacting
+    add(store, "100", "common name100");
+    store.close();
+
+    store = new MMapKeyValueStore(dir, false);
+    Bucket.Reader reader = store.lookupToken("NAME", "common").reader();
+    for (int ix = 0; ix <= 100; ix++)
+      assertEquals(ix, reader.next());
+    assertEquals(-1, reader.next());
+    assertEquals(1, store.lookupToken("NAME", "name42").size());
+    store.close();
+  }
+
+  @Test
+  public void testCompactInterrupted() throws Exception {
+    File dir = tmpdir.getRoot();
+    MMapKeyValueStore store = new MMapKeyValueStore(dir, false);
+    for (int ix = 0; ix < 40; ix++) {
+      add(store, "" + ix, "common");
+      store.commit();
+    }
+    File commitfile = new File(dir, "commit");
+    byte[] old = Files.readAllBytes(commitfile.toPath());
+    store.compact();
+    store.close();
+
+    // as if we died after the new postings were moved into place,
+    // but before the commit file was written
+    Files.write(commitfile.toPath(), old);
+    store = new MMapKeyValueStore(dir, false);
+    assertEquals(40, store.lookupToken("NAME", "common").size());
+    add(store, "40", "common");
+    store.close();
+
+    store = new MMapKeyValueStore(dir, false);
+    assertEquals(41, store.lookupToken("NAME", "common").size());
+    store.close();
+  }
+
+  @Test
+  public void testReplaced() {
+    File dir = tmpdir.getRoot();
+    MMapKeyValueStore store = new MMapKeyValueStore(dir, false);
+    add(store, "1", "lars");
+    add(store, "1", "marius");
+    assertTrue(store.findRecordById(0) == null);
+    assertEquals("marius", store.findRecordById("1").getValue("NAME"));
+    store.close();
+
+    store = new MMapKeyValueStore(dir, false);
+    assertTrue(store.findRecordById(0) == null);
+    assertEquals("marius", store.findRecordById("1").getValue("NAME"));
+    store.close();
+  }
+
+  @Test
+  public void testOverwrite() {
+    File dir = tmpdir.getRoot();
+    MMapKeyValueStore store = new MMapKeyValueStore(dir, false);
+    add(store, "1", "lars");
+    store.close();
+
+    store = new MMapKeyValueStore(dir, true);
+    assertTrue(store.findRecordById("1") == null);
+    assertTrue(store.lookupToken("NAME", "lars") == null);
+    assertEquals(0, store.makeNewRecordId());
+    store.close();
+  }
+
+  private void add(KeyValueStore store, String id, String name) {
+    Record record = TestUtils.makeRecord("ID", id, "NAME", name);
+    long internal = store.makeNewRecordId();
+    store.registerRecord(internal, record);
+    store.registerId(internal, id);
+    for (String token : name.split(" "))
+      store.registerToken(internal, "NAME", token);
+  }
+}
@@ -0,0 +1,15 @@
+package no.priv.garshol.duke.databases;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+
+public class PersistentKeyValueDatabaseTest extends PersistentDatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    KeyValueDatabase db = new KeyValueDatabase();
+    db.setConfiguration(config);
+    db.setPath(tmpdir.getRoot().getAbsolutePath());
+    return db;
+  }
+  
+}
@@ -0,0 +1,45 @@
+package no.priv.garshol.duke.databases;
+
+import org.junit.Test;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.utils.TestUtils;
+
+import static junit.framework.Assert.assertEquals;
+
+public class PropertyKeyFunctionTest {
+  private Record record =
+    TestUtils.makeRecord("NAME", "Lars Marius Garshol",
+                         "PHONE", "+47 555 12 345");
+
+  @Test
+  public void testValue() {
+    assertEquals("lars marius garshol", makeKey("NAME", "value", 0));
+    assertEquals("lars ", makeKey("NAME", "value", 5));
+  }
+
+  @Test
+  public void testTokens() {
+    assertEquals("lars", makeKey("NAME", "first", 0));
+    assertEquals("garshol", makeKey("NAME", "last", 0));
+    assertEquals("gar", makeKey("NAME", "last", 3));
+  }
+
+  @Test
+  public void testDigits() {
+    assertEquals("4755512345", makeKey("PHONE", "digits", 0));
+  }
+
+  @Test
+  public void testMissing() {
+    assertEquals("", makeKey("EMAIL", "first", 0));
+  }
+
+  private String makeKey(String property, String part, int length) {
+    PropertyKeyFunction function = new PropertyKeyFunction();
+    function.setProperty(property);
+    function.setPart(PropertyKeyFunction.Part.valueOf(part.toUpperCase()));
+    function.setLength(length);
+    return function.makeKey(record);
+  }
+}
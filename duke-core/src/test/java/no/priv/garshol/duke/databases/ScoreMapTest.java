@@ -0,0 +1,49 @@
+package no.priv.garshol.duke.databases;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ScoreMapTest {
+
+  @Test
+  public void testEmpty() {
+    ScoreMap map = new ScoreMap();
+    assertEquals(0, map.size());
+    assertEquals(-1.0, map.get(0));
+  }
+
+  @Test
+  public void testAdd() {
+    ScoreMap map = new ScoreMap();
+    map.add(0, 0.5);
+    map.add(7, 0.25);
+    map.add(0, 0.25);
+    assertEquals(2, map.size());
+    assertEquals(0.75, map.get(0));
+    assertEquals(0.25, map.get(7));
+    assertEquals(-1.0, map.get(1));
+  }
+
+  @Test
+  public void testSlots() {
+    ScoreMap map = new ScoreMap();
+    for (int ix = 0; ix < 1000; ix++)
+      map.add(ix * 3, ix);
+
+    int count = 0;
+    for (int slot = 0; slot < map.capacity(); slot++) {
+      if (!map.isUsed(slot))
+        continue;
+      count++;
+      long id = map.getId(slot);
+      assertTrue(id % 3 == 0);
+      assertEquals((double) (id / 3), map.getScore(slot));
+      map.addScore(slot, 1.0);
+    }
+    assertEquals(1000, count);
+    assertEquals(1000, map.size());
+    assertEquals(11.0, map.get(30));
+  }
+}
@@ -0,0 +1,42 @@
+package no.priv.garshol.duke.databases;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class StringIntMapTest {
+
+  @Test
+  public void testEmpty() {
+    StringIntMap map = new StringIntMap();
+    assertEquals(0, map.size());
+    assertEquals(-1, map.get("foo"));
+  }
+
+  @Test
+  public void testPutGet() {
+    StringIntMap map = new StringIntMap();
+    map.put("foo", 1);
+    map.put("bar", 2);
+    assertEquals(2, map.size());
+    assertEquals(1, map.get("foo"));
+    assertEquals(2, map.get("bar"));
+    assertEquals(-1, map.get("baz"));
+
+    map.put("foo", 3);
+    assertEquals(2, map.size());
+    assertEquals(3, map.get("foo"));
+  }
+
+  @Test
+  public void testGrow() {
+    StringIntMap map = new StringIntMap();
+    for (int ix = 0; ix < 10000; ix++)
+      map.put("key" + ix, ix);
+
+    assertEquals(10000, map.size());
+    for (int ix = 0; ix < 10000; ix++)
+      assertEquals(ix, map.get("key" + ix));
+    assertEquals(-1, map.get("key10000"));
+  }
+}
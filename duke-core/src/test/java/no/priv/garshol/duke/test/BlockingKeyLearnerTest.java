@@ -0,0 +1,103 @@
+package no.priv.garshol.duke.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import no.priv.garshol.duke.BlockingKeyLearner;
+import no.priv.garshol.duke.ConfigurationImpl;
+import no.priv.garshol.duke.InMemoryLinkDatabase;
+import no.priv.garshol.duke.Link;
+import no.priv.garshol.duke.LinkKind;
+import no.priv.garshol.duke.LinkStatus;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.comparators.ExactComparator;
+import no.priv.garshol.duke.datasources.InMemoryDataSource;
+import no.priv.garshol.duke.utils.TestUtils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class BlockingKeyLearnerTest {
+  private static final String[] SURNAMES = {
+    "smith", "jones", "taylor", "brown", "wilson",
+    "evans", "thomas", "roberts", "walker", "wright"
+  };
+  private ConfigurationImpl config;
+  private InMemoryLinkDatabase testdb;
+
+  @Before
+  public void setup() {
+    ExactComparator comp = new ExactComparator();
+    List<Property> props = new ArrayList();
+    props.add(new PropertyImpl("ID"));
+    props.add(new PropertyImpl("NAME", comp, 0.3, 0.8));
+    props.add(new PropertyImpl("EMAIL", comp, 0.3, 0.8));
+    config = new ConfigurationImpl();
+    config.setProperties(props);
+    config.setThreshold(0.85);
+
+    // pairs of records with different first names, but the same
+    // surname and email
+    InMemoryDataSource source = new InMemoryDataSource();
+    testdb = new InMemoryLinkDatabase();
+    for (int ix = 0; ix < SURNAMES.length; ix++) {
+      String email = SURNAMES[ix] + ix + "@example.com";
+      source.add(TestUtils.makeRecord("ID", ix + "a",
+                                      "NAME", "anne " + SURNAMES[ix],
+                                      "EMAIL", email));
+      source.add(TestUtils.makeRecord("ID", ix + "b",
+                                      "NAME", "bob " + SURNAMES[ix],
+                                      "EMAIL", email));
+      testdb.assertLink(new Link(ix + "b", ix + "a", LinkStatus.ASSERTED,
+                                 LinkKind.SAME, 1.0));
+    }
+    config.addDataSource(0, source);
+  }
+
+  @Test
+  public void testFindsBest() {
+    BlockingKeyLearner learner = new BlockingKeyLearner(config, testdb);
+    assertEquals(10, learner.getTruePairs());
+
+    List<BlockingKeyLearner.Result> results = learner.run();
+    BlockingKeyLearner.Result best = results.get(0);
+    assertEquals(1.0, best.getPairCompleteness());
+    // each record is only compared with its duplicate
+    assertEquals(20, best.getComparisons());
+    assertTrue(best.isParetoOptimal());
+
+    // keys on the first name can't find anything
+    for (BlockingKeyLearner.Result result : results)
+      assertTrue(result.getFMeasure() <= best.getFMeasure());
+  }
+
+  @Test
+  public void testMinCompleteness() {
+    BlockingKeyLearner learner = new BlockingKeyLearner(config, testdb);
+    learner.setMinCompleteness(1.0);
+    learner.setWindowSizes(new int[] { 1, 5 });
+    BlockingKeyLearner.Result best = learner.run().get(0);
+    assertEquals(1.0, best.getPairCompleteness());
+    assertEquals(1, best.getWindowSize());
+  }
+
+  @Test
+  public void testWriteConfig() throws Exception {
+    BlockingKeyLearner learner = new BlockingKeyLearner(config, testdb);
+    BlockingKeyLearner.Result best = learner.run().get(0);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    learner.writeConfig(best, out);
+    String xml = out.toString("utf-8");
+    assertTrue(xml.contains("PropertyKeyFunction"));
+    assertTrue(xml.contains("InMemoryBlockingDatabase"));
+    assertTrue(xml.contains("<param name=\"key-functions\" value=\"key1"));
+    assertTrue(xml.contains("<param name=\"window-size\" value=\"" +
+                            best.getWindowSize() + "\""));
+  }
+}
@@ -0,0 +1,148 @@
+
+package no.priv.garshol.duke.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import no.priv.garshol.duke.ConfigurationImpl;
+import no.priv.garshol.duke.DataGenerator;
+import no.priv.garshol.duke.Link;
+import no.priv.garshol.duke.LinkDatabase;
+import no.priv.garshol.duke.LinkKind;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.comparators.ExactComparator;
+import no.priv.garshol.duke.comparators.Levenshtein;
+import no.priv.garshol.duke.comparators.NumericComparator;
+import no.priv.garshol.duke.utils.CSVReader;
+import no.priv.garshol.duke.utils.LinkDatabaseUtils;
+import no.priv.garshol.duke.utils.LinkFileWriter;
+import no.priv.garshol.duke.utils.NTriplesWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DataGeneratorTest {
+  private ConfigurationImpl config;
+
+  @Before
+  public void setup() {
+    List<Property> props = new ArrayList();
+    props.add(new PropertyImpl("ID"));
+    props.add(new PropertyImpl("NAME", new Levenshtein(), 0.3, 0.9));
+    props.add(new PropertyImpl("ADDRESS", new Levenshtein(), 0.3, 0.8));
+    props.add(new PropertyImpl("PHONE", new ExactComparator(), 0.3, 0.8));
+    props.add(new PropertyImpl("AGE", new NumericComparator(), 0.4, 0.6));
+
+    config = new ConfigurationImpl();
+    config.setProperties(props);
+  }
+
+  @Test
+  public void testCSV() throws IOException {
+    StringWriter csv = new StringWriter();
+    StringWriter testfile = new StringWriter();
+    generate(1000, 0, csv, testfile);
+
+    CSVReader reader = new CSVReader(new StringReader(csv.toString()));
+    String[] header = reader.next();
+    assertEquals(5, header.length);
+    assertEquals("ID", header[0]);
+
+    int count = 0;
+    String[] row = reader.next();
+    while (row != null) {
+      assertEquals("" + count, row[0]);
+      count++;
+      row = reader.next();
+    }
+    assertEquals(1000, count);
+  }
+
+  @Test
+  public void testTestFile() throws IOException {
+    StringWriter testfile = new StringWriter();
+    generate(1000, 0, new StringWriter(), testfile);
+
+    LinkDatabase linkdb =
+      LinkDatabaseUtils.loadTestFile(new StringReader(testfile.toString()));
+    Collection<Link> links = linkdb.getAllLinks();
+
+    // with a duplicate rate of 0.2 we expect about 200 duplicates
+    assertTrue("too few links: " + links.size(), links.size() > 100);
+    for (Link link : links) {
+      assertEquals(LinkKind.SAME, link.getKind());
+      assertTrue(!link.getID1().equals(link.getID2()));
+    }
+  }
+
+  @Test
+  public void testNoDuplicates() throws IOException {
+    StringWriter testfile = new StringWriter();
+    DataGenerator generator = new DataGenerator(config, 0);
+    generator.setDuplicateRate(0.0);
+    generator.generate(100, new DataGenerator.CSVHandler(new StringWriter(),
+                                                         config),
+                       new LinkFileWriter(testfile));
+    assertEquals("", testfile.toString());
+  }
+
+  @Test
+  public void testReproducible() throws IOException {
+    StringWriter csv1 = new StringWriter();
+    StringWriter testfile1 = new StringWriter();
+    generate(500, 42, csv1, testfile1);
+
+    StringWriter csv2 = new StringWriter();
+    StringWriter testfile2 = new StringWriter();
+    generate(500, 42, csv2, testfile2);
+
+    assertEquals(csv1.toString(), csv2.toString());
+    assertEquals(testfile1.toString(), testfile2.toString());
+  }
+
+  @Test
+  public void testNTriples() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    NTriplesWriter writer = new NTriplesWriter(out);
+    DataGenerator generator = new DataGenerator(config, 0);
+    generator.setIdPrefix("http://example.com/record/");
+    generator.generate(10, new DataGenerator.NTriplesHandler(
+                         writer, config, "http://example.com/"), null);
+    writer.done();
+
+    String data = out.toString("utf-8");
+    assertTrue(data.startsWith("<http://example.com/record/0> " +
+                               "<http://example.com/"));
+  }
+
+  @Test
+  public void testPairs() throws IOException {
+    DataGenerator generator = new DataGenerator(config, 0);
+    DataGenerator.RecordCollector collector =
+      new DataGenerator.RecordCollector(config);
+    generator.generatePairs(100, collector);
+
+    List<Record> records = collector.getRecords();
+    assertEquals(200, records.size());
+    assertEquals("0", records.get(0).getValue("ID"));
+    assertEquals("199", records.get(199).getValue("ID"));
+    assertTrue(records.get(0).getValue("NAME") != null);
+  }
+
+  private void generate(int count, long seed, StringWriter csv,
+                        StringWriter testfile) throws IOException {
+    DataGenerator generator = new DataGenerator(config, seed);
+    generator.generate(count, new DataGenerator.CSVHandler(csv, config),
+                       new LinkFileWriter(testfile));
+  }
+}
@@ -4,17 +4,26 @@ package no.priv.garshol.duke.test;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import no.priv.garshol.duke.ConfigurationImpl;
+import no.priv.garshol.duke.DataSource;
+import no.priv.garshol.duke.IndexedRecord;
 import no.priv.garshol.duke.Processor;
 import no.priv.garshol.duke.Property;
 import no.priv.garshol.duke.PropertyImpl;
 import no.priv.garshol.duke.Record;
 import no.priv.garshol.duke.RecordIterator;
 import no.priv.garshol.duke.comparators.Levenshtein;
+import no.priv.garshol.duke.comparators.QGramComparator;
+import no.priv.garshol.duke.databases.InMemoryDatabase;
 import no.priv.garshol.duke.datasources.InMemoryDataSource;
+import no.priv.garshol.duke.matchers.AbstractMatchListener;
 import no.priv.garshol.duke.utils.DefaultRecordIterator;
 import no.priv.garshol.duke.utils.TestUtils;
 import org.junit.After;
@@ -22,6 +31,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class DeduplicatorTest {
   private ConfigurationImpl config;
@@ -230,8 +240,253 @@ public class DeduplicatorTest {
                  2, source.getBatchCount());
   }
 
+  @Test
+  public void testBoundedMatches() throws IOException {
+    processor.setBoundedComparison(true);
+
+    Collection<Record> records = new ArrayList();
+    records.add(TestUtils.makeRecord("ID", "1", "NAME", "aaaaa", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "2", "NAME", "aaaaa", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "3", "NAME", "xyzzy", "EMAIL", "BBBBB"));
+    processor.deduplicate(records);
+
+    assertEquals(3, listener.getRecordCount());
+    assertEquals(2, listener.getMatches().size());
+    assertEquals(1, listener.getNoMatchCount());
+  }
+
+  @Test
+  public void testBoundedCompare() throws IOException {
+    Record r1 = TestUtils.makeRecord("ID", "1", "NAME", "xyzzy", "EMAIL", "BBBBB");
+    Record r2 = TestUtils.makeRecord("ID", "2", "NAME", "aaaaa", "EMAIL", "BBBBB");
+
+    // with no cutoff we get the exact same result as before
+    double prob = processor.compare(r1, r2);
+    assertEquals(prob, processor.compare(r1, r2, 0.0), 0.0001);
+
+    // with a cutoff the comparison is abandoned, but the result
+    // must still be an upper bound below the cutoff
+    double bound = processor.compare(r1, r2, 0.85);
+    assertTrue(bound <= 0.85);
+    assertTrue(bound >= prob);
+  }
+
+  @Test
+  public void testIndexedRecords() throws IOException {
+    processor.setIndexedRecords(true);
+
+    Collection<Record> records = new ArrayList();
+    records.add(TestUtils.makeRecord("ID", "1", "NAME", "AND", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "2", "NAME", "AND", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "3", "NAME", "XYZ", "EMAIL", "BBBBB"));
+    processor.deduplicate(records);
+
+    assertEquals(2, listener.getMatches().size()); // 1-2 and 2-1
+    assertEquals(3, listener.getRecordCount());
+    TestUtils.Pair pair = listener.getMatches().iterator().next();
+    assertTrue(pair.r1 instanceof IndexedRecord);
+  }
+
+  @Test
+  public void testIndexedCompare() throws IOException {
+    Record r1 = TestUtils.makeRecord("ID", "1", "NAME", "xyzzy", "EMAIL", "BBBBB");
+    Record r2 = TestUtils.makeRecord("ID", "2", "NAME", "xyzzx", "EMAIL", "BBBBB");
+    IndexedRecord i1 = IndexedRecord.copyOf(r1, config);
+    IndexedRecord i2 = IndexedRecord.copyOf(r2, config);
+
+    // same results whether we look values up by index or not
+    assertEquals(processor.compare(r1, r2), processor.compare(i1, i2), 0.0001);
+    assertEquals(processor.compare(r1, r2), processor.compare(i1, r2), 0.0001);
+    assertEquals(processor.compare(r1, r2, 0.85),
+                 processor.compare(i1, i2, 0.85), 0.0001);
+  }
+
+  @Test
+  public void testPipelined() throws IOException {
+    processor.setPipelining(true);
+
+    Collection<Record> records = new ArrayList();
+    records.add(TestUtils.makeRecord("ID", "1",
+                                     "NAME", "aaaaa",
+                                     "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "2",
+                                     "NAME", "aaaaa",
+                                     "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "3",
+                                     "NAME", "aaaaa",
+                                     "EMAIL", "BBBBB"));
+    TestDataSource source = new TestDataSource(records);
+    config.addDataSource(0, source);
+
+    processor.deduplicate(2);
+
+    assertEquals("wrong number of matches", 4, listener.getMatches().size());
+    assertEquals("wrong number of records processed",
+                 3, listener.getRecordCount());
+    // batches the reader had already read past when they were done
+    // get acknowledged together with the next ones
+    assertTrue("wrong number of batches",
+               source.getBatchCount() >= 1 && source.getBatchCount() <= 2);
+  }
+
+  @Test
+  public void testPipelinedIteratorUse() throws IOException {
+    processor.setPipelining(true);
+    BatchCounter counter = new BatchCounter();
+    processor.addMatchListener(counter);
+
+    Collection<Record> records = new ArrayList();
+    for (int ix = 0; ix < 25; ix++)
+      records.add(TestUtils.makeRecord("ID", "" + ix,
+                                       "NAME", "name" + ix,
+                                       "EMAIL", "email" + ix));
+    LoggingDataSource source = new LoggingDataSource(records, counter);
+    config.addDataSource(0, source);
+
+    processor.deduplicate(2);
+
+    List<String> log = source.getLog();
+    assertEquals("close", log.get(log.size() - 1));
+    assertTrue(log.get(log.size() - 2).startsWith("batchProcessed "));
+    int nexts = 0;
+    for (String event : log) {
+      if (event.equals("next"))
+        nexts++;
+      else if (event.startsWith("batchProcessed"))
+        // everything read must have been processed
+        assertEquals("batchProcessed " + nexts + "/" + nexts, event);
+    }
+    assertEquals(25, nexts);
+    assertEquals("iterator used from several threads",
+                 1, source.getThreads().size());
+  }
+
+  @Test
+  public void testThreaded() throws IOException {
+    // enough records that the batch is split into many chunks for
+    // the match threads
+    Collection<Record> records = new ArrayList();
+    for (int ix = 0; ix < 100; ix++)
+      records.add(TestUtils.makeRecord("ID", "" + ix,
+                                       "NAME", "name" + (ix / 2),
+                                       "EMAIL", "email" + (ix / 2)));
+
+    // first find the matches with a single thread
+    CountingListener single = new CountingListener();
+    processor.addMatchListener(single);
+    processor.deduplicate(records);
+    processor.removeMatchListener(single);
+
+    // then with several
+    InMemoryDatabase db = new InMemoryDatabase();
+    db.setConfiguration(config);
+    Processor threaded = new Processor(config, db);
+    threaded.setThreads(4);
+    CountingListener counter = new CountingListener();
+    threaded.addMatchListener(counter);
+    threaded.deduplicate(records);
+    threaded.deduplicate(new ArrayList()); // pool is reused
+    threaded.close();
+
+    assertEquals(single.getMatchCount(), counter.getMatchCount());
+    assertEquals(processor.getComparisonCount(),
+                 threaded.getComparisonCount());
+  }
+
+  @Test
+  public void testStatistics() throws IOException {
+    Collection<Record> records = new ArrayList();
+    records.add(TestUtils.makeRecord("ID", "1", "NAME", "aaaaa", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "2", "NAME", "aaaaa", "EMAIL", "BBBBB"));
+    processor.deduplicate(records);
+
+    Processor.Statistics stats = processor.getStatistics();
+    assertEquals(2, stats.getComparisons());
+    assertEquals(processor.getComparisonCount(), stats.getComparisons());
+    assertTrue(stats.getComparingTime() > 0);
+    assertEquals(0, stats.getThreadedMatchTime());
+  }
+
+  @Test
+  public void testWorkerStatistics() throws IOException {
+    Collection<Record> records = new ArrayList();
+    for (int ix = 0; ix < 200; ix++)
+      records.add(TestUtils.makeRecord("ID", "" + ix,
+                                       "NAME", "name" + (ix / 2),
+                                       "EMAIL", "email" + (ix / 2)));
+    config.addDataSource(0, new InMemoryDataSource(records));
+
+    InMemoryDatabase db = new InMemoryDatabase();
+    db.setConfiguration(config);
+    Processor threaded = new Processor(config, db);
+    threaded.setThreads(4);
+    threaded.deduplicate();
+
+    Processor.Statistics stats = threaded.getStatistics();
+    long wall = stats.getThreadedMatchTime();
+    assertTrue(wall > 0);
+    long total = 0;
+    for (long busy : stats.getWorkerBusyTimes()) {
+      // no thread can be busy for longer than we waited for them
+      assertTrue(busy + " > " + wall, busy <= wall);
+      total += busy;
+    }
+    assertTrue(total > 0);
+
+    // a new run starts the figures over
+    threaded.deduplicate(new ArrayList<DataSource>(), 10);
+    stats = threaded.getStatistics();
+    assertEquals(0, stats.getThreadedMatchTime());
+    for (long busy : stats.getWorkerBusyTimes())
+      assertEquals(0, busy);
+    threaded.close();
+  }
+
+  @Test
+  public void testDetailedProfiling() throws IOException {
+    processor.setDetailedProfiling(true);
+
+    Collection<Record> records = new ArrayList();
+    records.add(TestUtils.makeRecord("ID", "1", "NAME", "aaaaa", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "2", "NAME", "aaaaa", "EMAIL", "BBBBB"));
+    processor.deduplicate(records);
+
+    Processor.Instrumentation instr = processor.getInstrumentation();
+    assertEquals(2, instr.getCandidateHistogram().getCount());
+    assertEquals(2, instr.getPropertyHistograms().get("NAME").getCount());
+    assertEquals(2, instr.getPropertyHistograms().get("EMAIL").getCount());
+    assertEquals(4, instr.getComparatorHistograms().get("Levenshtein")
+                 .getCount());
+  }
+
+  @Test
+  public void testPreparedComparator() throws IOException {
+    config.getPropertyByName("NAME").setComparator(new QGramComparator());
+
+    Collection<Record> records = new ArrayList();
+    records.add(TestUtils.makeRecord("ID", "1", "NAME", "aaaaa", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "2", "NAME", "aaaaa", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "3", "NAME", "xyzzy", "EMAIL", "BBBBB"));
+    processor.deduplicate(records);
+
+    assertEquals(2, listener.getMatches().size());
+    assertEquals(1, listener.getNoMatchCount());
+  }
+
   // ===== UTILITIES
 
+  static class CountingListener extends AbstractMatchListener {
+    private AtomicInteger matches = new AtomicInteger();
+
+    public void matches(Record r1, Record r2, double confidence) {
+      matches.incrementAndGet();
+    }
+
+    public int getMatchCount() {
+      return matches.get();
+    }
+  }
+
   static class TestDataSource extends InMemoryDataSource {
     private int batch_count;
 
@@ -252,6 +507,76 @@ public class DeduplicatorTest {
     }
   }
 
+  static class BatchCounter extends AbstractMatchListener {
+    private volatile int size;
+    private volatile int processed;
+
+    public void batchReady(int size) {
+      this.size = size;
+    }
+
+    public void batchDone() {
+      processed += size;
+    }
+
+    public int getProcessed() {
+      return processed;
+    }
+  }
+
+  // records the order in which the iterator methods are called
+  static class LoggingDataSource extends InMemoryDataSource {
+    private BatchCounter counter;
+    private List<String> log;
+    private Set<Thread> threads;
+
+    public LoggingDataSource(Collection<Record> records,
+                             BatchCounter counter) {
+      super(records);
+      this.counter = counter;
+      this.log = Collections.synchronizedList(new ArrayList());
+      this.threads = Collections.synchronizedSet(new HashSet());
+    }
+
+    public RecordIterator getRecords() {
+      final Iterator<Record> it = records.iterator();
+      return new RecordIterator() {
+        private int read;
+
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        public Record next() {
+          record("next");
+          read++;
+          return it.next();
+        }
+
+        public void batchProcessed() {
+          record("batchProcessed " + counter.getProcessed() + "/" + read);
+        }
+
+        public void close() {
+          record("close");
+        }
+      };
+    }
+
+    private void record(String event) {
+      threads.add(Thread.currentThread());
+      log.add(event);
+    }
+
+    public List<String> getLog() {
+      return log;
+    }
+
+    public Set<Thread> getThreads() {
+      return threads;
+    }
+  }
+
   static class TestRecordIterator extends DefaultRecordIterator {
     private TestDataSource source;
     
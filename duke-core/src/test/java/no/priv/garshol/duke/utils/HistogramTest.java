@@ -0,0 +1,51 @@
+
+package no.priv.garshol.duke.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+  @Test
+  public void testEmpty() {
+    Histogram h = new Histogram();
+    assertEquals(0, h.getCount());
+    assertEquals(0, h.getTotal());
+    assertEquals(0.0, h.getMean(), 0.0001);
+    assertEquals(0, h.getPercentile(50));
+  }
+
+  @Test
+  public void testSingleValue() {
+    Histogram h = new Histogram();
+    h.record(100);
+    assertEquals(1, h.getCount());
+    assertEquals(100, h.getTotal());
+    assertEquals(100.0, h.getMean(), 0.0001);
+    assertEquals(127, h.getPercentile(50)); // upper bound of bucket
+  }
+
+  @Test
+  public void testZero() {
+    Histogram h = new Histogram();
+    h.record(0);
+    assertEquals(0, h.getPercentile(100));
+  }
+
+  @Test
+  public void testPercentiles() {
+    Histogram h = new Histogram();
+    for (int ix = 1; ix <= 100; ix++)
+      h.record(ix);
+
+    assertEquals(100, h.getCount());
+    assertEquals(5050, h.getTotal());
+
+    long median = h.getPercentile(50);
+    assertTrue(median >= 50 && median < 100);
+    long max = h.getPercentile(100);
+    assertTrue(max >= 100 && max < 200);
+  }
+}
@@ -0,0 +1,142 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Collects the best hits of a search in a single pass, skipping hits
+ * scoring lower than the minimum relevance. Unlike Lucene's
+ * TopScoreDocCollector it doesn't allocate space for the maximum
+ * number of hits up front, so it's fine to ask for a million hits
+ * when only a few are expected. Hits are ordered as Lucene orders
+ * them: by descending score, then by ascending document number.
+ *
+ * <p>Collects up to the maximum number of hits in arrays, then turns
+ * the arrays into a min-heap, so that the weakest hit can be
+ * replaced when a better one is found.
+ * @since 1.4
+ */
+class HitCollector extends Collector {
+  private int max;
+  private float min_relevance;
+  private int[] docs;
+  private float[] scores;
+  private int count;
+  private boolean full; // when true, the arrays are a heap
+  private Scorer scorer;
+  private int docbase;
+
+  /**
+   * @param max The maximum number of hits to collect.
+   * @param min_relevance Hits with lower scores are ignored.
+   * @param capacity The expected number of hits.
+   */
+  public HitCollector(int max, float min_relevance, int capacity) {
+    this.max = max;
+    this.min_relevance = min_relevance;
+    capacity = Math.max(1, Math.min(capacity, max));
+    this.docs = new int[capacity];
+    this.scores = new float[capacity];
+  }
+
+  public void setScorer(Scorer scorer) {
+    this.scorer = scorer;
+  }
+
+  public void setNextReader(AtomicReaderContext context) {
+    this.docbase = context.docBase;
+  }
+
+  public boolean acceptsDocsOutOfOrder() {
+    return true; // ties are broken explicitly, so order doesn't matter
+  }
+
+  public void collect(int doc) throws IOException {
+    float score = scorer.score();
+    if (score < min_relevance)
+      return;
+    doc += docbase;
+
+    if (!full) {
+      if (count == docs.length) {
+        int size = (int) Math.min((long) max, docs.length * 2L);
+        docs = Arrays.copyOf(docs, size);
+        scores = Arrays.copyOf(scores, size);
+      }
+      docs[count] = doc;
+      scores[count++] = score;
+      if (count == max) {
+        full = true;
+        for (int ix = count / 2 - 1; ix >= 0; ix--)
+          siftDown(ix);
+      }
+    } else if (score > scores[0] || (score == scores[0] && doc < docs[0])) {
+      docs[0] = doc;
+      scores[0] = score;
+      siftDown(0);
+    }
+  }
+
+  /**
+   * Returns the number of hits collected.
+   */
+  public int getHitCount() {
+    return count;
+  }
+
+  /**
+   * Returns the collected hits, best first.
+   */
+  public ScoreDoc[] getHits() {
+    ScoreDoc[] hits = new ScoreDoc[count];
+    for (int ix = 0; ix < count; ix++)
+      hits[ix] = new ScoreDoc(docs[ix], scores[ix]);
+    Arrays.sort(hits, new Comparator<ScoreDoc>() {
+      public int compare(ScoreDoc h1, ScoreDoc h2) {
+        if (h1.score != h2.score)
+          return h1.score > h2.score ? -1 : 1;
+        return h1.doc - h2.doc;
+      }
+    });
+    return hits;
+  }
+
+  // ===== HEAP
+
+  // the weakest hit is at the top of the heap. weakest means lowest
+  // score, and on equal scores the highest document number
+  private boolean weaker(int ix1, int ix2) {
+    return scores[ix1] < scores[ix2] ||
+      (scores[ix1] == scores[ix2] && docs[ix1] > docs[ix2]);
+  }
+
+  private void siftDown(int ix) {
+    while (true) {
+      int child = ix * 2 + 1;
+      if (child >= count)
+        return;
+      if (child + 1 < count && weaker(child + 1, child))
+        child++;
+      if (!weaker(child, ix))
+        return;
+      swap(ix, child);
+      ix = child;
+    }
+  }
+
+  private void swap(int ix1, int ix2) {
+    int doc = docs[ix1];
+    docs[ix1] = docs[ix2];
+    docs[ix2] = doc;
+    float score = scores[ix1];
+    scores[ix1] = scores[ix2];
+    scores[ix2] = score;
+  }
+}
@@ -0,0 +1,113 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+import no.priv.garshol.duke.DukeException;
+
+/**
+ * A DocumentRecord which doesn't load the stored fields of the
+ * document until they are asked for, and then only the fields asked
+ * for. Candidate records are often rejected after comparing just one
+ * or two properties, and then the remaining fields are never loaded.
+ *
+ * <p>Beware: the record can only load fields while the IndexReader
+ * it came from is open, which means until the next commit.
+ * @since 1.4
+ */
+public class LazyDocumentRecord extends DocumentRecord {
+  private int docno;
+  private Document doc; // holds the fields loaded so far
+  private IndexReader reader;
+  private Set<String> loaded; // properties loaded so far
+  private boolean complete; // true iff all properties are loaded
+
+  public LazyDocumentRecord(int docno, IndexReader reader) {
+    this(docno, new Document(), reader);
+  }
+
+  private LazyDocumentRecord(int docno, Document doc, IndexReader reader) {
+    super(docno, doc);
+    this.docno = docno;
+    this.doc = doc;
+    this.reader = reader;
+    this.loaded = new HashSet();
+  }
+
+  public synchronized Collection<String> getProperties() {
+    load(null);
+    return super.getProperties();
+  }
+
+  public synchronized String getValue(String prop) {
+    load(prop);
+    return super.getValue(prop);
+  }
+
+  public synchronized Collection<String> getValues(String prop) {
+    load(prop);
+    return super.getValues(prop);
+  }
+
+  public String toString() {
+    return "[LazyDocumentRecord " + docno + " " + loaded + "]";
+  }
+
+  /**
+   * Loads the given property, or all properties not yet loaded if
+   * the property is null.
+   */
+  private void load(String prop) {
+    if (complete || (prop != null && loaded.contains(prop)))
+      return;
+
+    try {
+      reader.document(docno, new FieldLoader(prop));
+    } catch (IOException e) {
+      throw new DukeException(e);
+    }
+
+    if (prop == null)
+      complete = true;
+    else
+      loaded.add(prop);
+  }
+
+  /**
+   * Adds the wanted fields to the document. Duke stores all values of
+   * a property together, so when loading a single property we can
+   * stop as soon as we've seen its values.
+   */
+  class FieldLoader extends StoredFieldVisitor {
+    private String prop; // if null, load all fields not yet loaded
+    private boolean found;
+
+    public FieldLoader(String prop) {
+      this.prop = prop;
+    }
+
+    public Status needsField(FieldInfo info) {
+      if (prop == null)
+        return loaded.contains(info.name) ? Status.NO : Status.YES;
+
+      if (info.name.equals(prop)) {
+        found = true;
+        return Status.YES;
+      }
+      return found ? Status.STOP : Status.NO;
+    }
+
+    public void stringField(FieldInfo info, String value) {
+      doc.add(new StoredField(info.name, value));
+    }
+  }
+}
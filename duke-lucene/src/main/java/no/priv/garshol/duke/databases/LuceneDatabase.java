@@ -7,6 +7,7 @@ import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import no.priv.garshol.duke.Comparator;
 import no.priv.garshol.duke.Configuration;
@@ -40,10 +41,13 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NRTCachingDirectory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
 
@@ -58,17 +62,23 @@ public class LuceneDatabase implements Database {
   private Directory directory;
   private IndexReader reader;
   private IndexSearcher searcher;
+  private SearcherManager searchermgr; // only used in near-real-time mode
   private Analyzer analyzer;
-  // Deichman case:
-  //  1 = 40 minutes
-  //  4 = 48 minutes
-  private final static int SEARCH_EXPANSION_FACTOR = 1;
   private int max_search_hits;
   private float min_relevance;
   private boolean overwrite;
   private String path;
+  private DirectoryType directory_type;
+  private int nrt_cache_size; // in megabytes
+  private File tmpdir; // used when the index is temporary, but not RAM
   private boolean fuzzy_search;
   public BoostMode boost_mode;
+  private boolean nrt;
+  private boolean lazy_loading;
+  private int commit_interval; // in seconds
+  private int commit_records;
+  private AtomicInteger uncommitted; // indexed since last durable commit
+  private long lastcommit; // time of last durable commit
 
   // helper for geostuff
   private GeoProperty geoprop;
@@ -79,6 +89,8 @@ public class LuceneDatabase implements Database {
     this.max_search_hits = 1000000;
     this.fuzzy_search = true; // on by default
     this.boost_mode = BoostMode.QUERY;
+    this.directory_type = DirectoryType.DEFAULT;
+    this.uncommitted = new AtomicInteger();
   }
 
   public void setConfiguration(Configuration config) {
@@ -105,6 +117,58 @@ public class LuceneDatabase implements Database {
     this.fuzzy_search = fuzzy_search;
   }
 
+  /**
+   * Turns on near-real-time mode, where commit() makes new records
+   * searchable by reopening the searcher from the IndexWriter, without
+   * doing a full durable commit to disk. Durable commits are then
+   * only made as set by setCommitInterval and setCommitRecords, and
+   * on close. False by default.
+   * @since 1.4
+   */
+  public void setNearRealTime(boolean nrt) {
+    this.nrt = nrt;
+  }
+
+  /**
+   * Returns true iff near-real-time mode is on.
+   * @since 1.4
+   */
+  public boolean isNearRealTime() {
+    return nrt;
+  }
+
+  /**
+   * In near-real-time mode, commit() also makes a durable commit if
+   * at least this many seconds have passed since the last one. 0
+   * (the default) means no time limit.
+   * @since 1.4
+   */
+  public void setCommitInterval(int commit_interval) {
+    this.commit_interval = commit_interval;
+  }
+
+  /**
+   * In near-real-time mode, commit() also makes a durable commit if
+   * at least this many records have been indexed since the last
+   * one. 0 (the default) means no limit.
+   * @since 1.4
+   */
+  public void setCommitRecords(int commit_records) {
+    this.commit_records = commit_records;
+  }
+
+  /**
+   * If true, the stored fields of candidate records are only loaded
+   * from the index when they are used. This saves time when most
+   * candidates are rejected after comparing a few properties, but the
+   * records can then not be used after the next commit. False by
+   * default.
+   * @since 1.4
+   */
+  public void setLazyLoading(boolean lazy_loading) {
+    this.lazy_loading = lazy_loading;
+  }
+
   /**
    * Returns the path to the Lucene index directory. If null, it means
    * the Lucene index is kept in-memory.
@@ -121,6 +185,33 @@ public class LuceneDatabase implements Database {
     this.path = path;
   }
 
+  /**
+   * Sets the kind of Lucene Directory to keep the index in.
+   * @since 1.4
+   */
+  public void setDirectoryType(DirectoryType directory_type) {
+    this.directory_type = directory_type;
+  }
+
+  /**
+   * Returns the kind of Lucene Directory the index is kept in.
+   * @since 1.4
+   */
+  public DirectoryType getDirectoryType() {
+    return directory_type;
+  }
+
+  /**
+   * If set to more than 0, the directory is wrapped in an
+   * NRTCachingDirectory, which keeps newly flushed small segments in
+   * memory, up to the given number of megabytes. This is mainly
+   * useful in near-real-time mode.
+   * @since 1.4
+   */
+  public void setNrtCacheSize(int nrt_cache_size) {
+    this.nrt_cache_size = nrt_cache_size;
+  }
+
   /**
    * Tells the database to boost Lucene fields when searching for
    * candidate matches, depending on their probabilities. This can
@@ -135,7 +226,16 @@ public class LuceneDatabase implements Database {
    * on disk.
    */
   public boolean isInMemory() {
-    return (directory instanceof RAMDirectory);
+    return path == null;
+  }
+
+  /**
+   * Returns true, since the IndexWriter is thread-safe. The database
+   * must have been initialized, by indexing or looking up a record,
+   * before records are indexed in parallel.
+   */
+  public boolean supportsConcurrentIndexing() {
+    return true;
   }
 
   /**
@@ -145,9 +245,6 @@ public class LuceneDatabase implements Database {
     if (directory == null)
       init();
 
-    if (!overwrite && path != null)
-      delete(record);
-
     Document doc = new Document();
     for (String propname : record.getProperties()) {
       Property prop = config.getPropertyByName(propname);
@@ -195,31 +292,38 @@ public class LuceneDatabase implements Database {
     }
 
     try {
-      iwriter.addDocument(doc);
-    } catch (IOException e) {
-      throw new DukeException(e);
-    }
-  }
-
-  private void delete(Record record) {
-    // removes previous copy of this record from the index, if it's there
-    Property idprop = config.getIdentityProperties().iterator().next();
-    Query q = parseTokens(idprop.getName(), record.getValue(idprop.getName()));
-    try {
-      iwriter.deleteDocuments(q);
+      Property idprop = config.getIdentityProperties().iterator().next();
+      String id = record.getValue(idprop.getName());
+      if (!overwrite && path != null && id != null)
+        // replaces the previous copy of this record, if it's there.
+        // this is atomic, so that two threads indexing the same
+        // record can't both leave a copy behind
+        iwriter.updateDocument(new Term(idprop.getName(), id), doc);
+      else
+        iwriter.addDocument(doc);
+      uncommitted.incrementAndGet();
     } catch (IOException e) {
       throw new DukeException(e);
     }
   }
 
   /**
-   * Flushes all changes to disk.
+   * Flushes all changes to disk. In near-real-time mode changes are
+   * made searchable, but only flushed to disk when the commit
+   * interval or record count has been reached.
    */
   public void commit() {
     if (directory == null)
       return;
 
     try {
+      if (nrt) {
+        if (isDurableCommitDue())
+          durableCommit();
+        searchermgr.maybeRefreshBlocking();
+        return;
+      }
+
       if (reader != null)
         reader.close();
 
@@ -229,13 +333,29 @@ public class LuceneDatabase implements Database {
       // http://www.searchworkings.org/blog/-/blogs/uwe-says%3A-is-your-reader-atomic
       // iwriter.optimize();
 
-      iwriter.commit();
+      durableCommit();
       openSearchers();
     } catch (IOException e) {
       throw new DukeException(e);
     }
   }
 
+  private boolean isDurableCommitDue() {
+    if (uncommitted.get() == 0)
+      return false;
+    if (commit_records == 0 && commit_interval == 0)
+      return false; // only commit on close
+    return (commit_records > 0 && uncommitted.get() >= commit_records) ||
+      (commit_interval > 0 &&
+       System.currentTimeMillis() - lastcommit >= commit_interval * 1000L);
+  }
+
+  private void durableCommit() throws IOException {
+    iwriter.commit();
+    uncommitted.set(0);
+    lastcommit = System.currentTimeMillis();
+  }
+
   /**
    * Look up record by identity.
    */
@@ -255,6 +375,18 @@ public class LuceneDatabase implements Database {
    * Look up potentially matching records.
    */
   public Collection<Record> findCandidateMatches(Record record) {
+    List<Record> matches = new ArrayList();
+    findCandidateMatches(record, matches);
+    return matches;
+  }
+
+  /**
+   * Adds the potentially matching records to the list, and returns
+   * the Lucene hits for them, in the same order. Used by
+   * ShardedLuceneDatabase, which needs the scores to merge the
+   * results from different shards.
+   */
+  ScoreDoc[] findCandidateMatches(Record record, List<Record> matches) {
     if (directory == null)
       init();
 
@@ -263,7 +395,7 @@ public class LuceneDatabase implements Database {
       String value = record.getValue(geoprop.getName());
       if (value != null) {
         Filter filter = geoprop.geoSearch(value);
-        return maintracker.doQuery(new MatchAllDocsQuery(), filter);
+        return maintracker.doQuery(new MatchAllDocsQuery(), filter, matches);
       }
     }
 
@@ -281,7 +413,7 @@ public class LuceneDatabase implements Database {
     }
 
     // do the query
-    return maintracker.doQuery(query);
+    return maintracker.doQuery(query, null, matches);
   }
 
   /**
@@ -292,10 +424,14 @@ public class LuceneDatabase implements Database {
       return;
 
     try {
+      if (searchermgr != null)
+        searchermgr.close();
       iwriter.close();
       directory.close();
       if (reader != null)
         reader.close();
+      if (tmpdir != null)
+        delete(tmpdir);
     } catch (IOException e) {
       throw new DukeException(e);
     }
@@ -304,7 +440,9 @@ public class LuceneDatabase implements Database {
   public String toString() {
     return "LuceneDatabase, max-search-hits: " + max_search_hits +
       ", min-relevance: " + min_relevance + ", fuzzy: " + fuzzy_search +
-      ", boost-mode: " + boost_mode + ", path: " + path + "\n  " + directory;
+      ", boost-mode: " + boost_mode + ", path: " + path +
+      ", directory-type: " + directory_type +
+      (nrt ? ", near-real-time" : "") + "\n  " + directory;
   }
 
   // ----- INTERNALS
@@ -325,24 +463,18 @@ public class LuceneDatabase implements Database {
   private void openIndexes(boolean overwrite) throws IOException {
     if (directory == null) {
       try {
-        if (path == null)
-          directory = new RAMDirectory();
-        else {
-          //directory = new MMapDirectory(new File(config.getPath()));
-          // as per http://wiki.apache.org/lucene-java/ImproveSearchingSpeed
-          // we use NIOFSDirectory, provided we're not on Windows
-          if (Utils.isWindowsOS())
-            directory = FSDirectory.open(new File(path));
-          else
-            directory = NIOFSDirectory.open(new File(path));
-        }
+        directory = makeDirectory();
+        if (nrt_cache_size > 0)
+          directory = new NRTCachingDirectory(directory,
+                                              Math.min(5.0, nrt_cache_size),
+                                              nrt_cache_size);
 
         IndexWriterConfig cfg =
           new IndexWriterConfig(Version.LUCENE_CURRENT, analyzer);
         cfg.setOpenMode(overwrite ? IndexWriterConfig.OpenMode.CREATE :
                                     IndexWriterConfig.OpenMode.APPEND);
         iwriter = new IndexWriter(directory, cfg);
-        iwriter.commit(); // so that the searcher doesn't fail
+        durableCommit(); // so that the searcher doesn't fail
       } catch (IndexNotFoundException e) {
         if (!overwrite) {
           // the index was not there, so make a new one
@@ -354,11 +486,76 @@ public class LuceneDatabase implements Database {
     }
   }
 
+  private Directory makeDirectory() throws IOException {
+    if (directory_type == DirectoryType.RAM ||
+        (directory_type == DirectoryType.DEFAULT && path == null)) {
+      if (path != null)
+        throw new DukeConfigException("RAM directory can't be used with " +
+                                      "path " + path);
+      return new RAMDirectory();
+    }
+
+    File dir;
+    if (path != null)
+      dir = new File(path);
+    else {
+      // the index is temporary, but we want it off the Java heap
+      if (tmpdir == null)
+        tmpdir = Utils.createTempDirectory("duke-lucene");
+      dir = tmpdir;
+    }
+
+    switch (directory_type) {
+    case FS:
+      return FSDirectory.open(dir);
+    case NIO:
+      return new NIOFSDirectory(dir);
+    case MMAP:
+      return new MMapDirectory(dir);
+    default:
+      // as per http://wiki.apache.org/lucene-java/ImproveSearchingSpeed
+      // we use NIOFSDirectory, provided we're not on Windows
+      if (Utils.isWindowsOS())
+        return FSDirectory.open(dir);
+      else
+        return NIOFSDirectory.open(dir);
+    }
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    file.delete();
+  }
+
   public void openSearchers() throws IOException {
+    if (nrt) {
+      if (searchermgr == null)
+        // applying deletes is necessary, since records that are
+        // reindexed are deleted first
+        searchermgr = new SearcherManager(iwriter, true, null);
+      else
+        searchermgr.maybeRefreshBlocking();
+      return;
+    }
+
     reader = DirectoryReader.open(directory);
     searcher = new IndexSearcher(reader);
   }
 
+  // in near-real-time mode the searcher may be replaced while it's in
+  // use, so searches must acquire it, and release it afterwards
+  private IndexSearcher acquireSearcher() throws IOException {
+    return nrt ? searchermgr.acquire() : searcher;
+  }
+
+  private void releaseSearcher(IndexSearcher searcher) throws IOException {
+    if (nrt)
+      searchermgr.release(searcher);
+  }
+
   /**
    * Parses the query. Using this instead of a QueryParser in order
    * to avoid thread-safety issues with Lucene's query parser.
@@ -457,74 +654,98 @@ public class LuceneDatabase implements Database {
   }
 
   /**
-   * The tracker is used to estimate the size of the query result
-   * we should ask Lucene for. This parameter is the single biggest
-   * influence on search performance, but setting it too low causes
-   * matches to be missed. We therefore try hard to estimate it as
-   * correctly as possible.
-   *
-   * The tracker uses a ring buffer of recent result sizes to
-   * estimate the result size.
+   * The tracker runs the searches, and keeps track of how many hits
+   * recent searches have found, so that the collector can be sized
+   * correctly. Hits are collected in a single pass, and each thread
+   * keeps its own statistics, so match threads don't contend for
+   * anything here.
    */
   class EstimateResultTracker {
-    private int limit;
     /**
-     * Ring buffer containing n last search result sizes, except for
-     * searches which found nothing.
+     * Ring buffers containing the n last search result sizes, except
+     * for searches which found nothing. One per thread.
      */
-    private int[] prevsizes;
-    private int sizeix; // position in prevsizes
-
-    public EstimateResultTracker() {
-      this.limit = 100;
-      this.prevsizes = new int[10];
-    }
+    private ThreadLocal<SizeStats> stats = new ThreadLocal<SizeStats>() {
+      protected SizeStats initialValue() {
+        return new SizeStats();
+      }
+    };
 
     public Collection<Record> doQuery(Query query) {
       return doQuery(query, null);
     }
 
     public Collection<Record> doQuery(Query query, Filter filter) {
-      List<Record> matches;
+      List<Record> matches = new ArrayList();
+      doQuery(query, filter, matches);
+      return matches;
+    }
+
+    public ScoreDoc[] doQuery(Query query, Filter filter,
+                              List<Record> matches) {
       try {
-        ScoreDoc[] hits;
-
-        int thislimit = Math.min(limit, max_search_hits);
-        while (true) {
-          hits = searcher.search(query, filter, thislimit).scoreDocs;
-          if (hits.length < thislimit || thislimit == max_search_hits)
-            break;
-          thislimit = thislimit * 5;
+        IndexSearcher searcher = acquireSearcher();
+        try {
+          return doQuery(searcher, query, filter, matches);
+        } finally {
+          releaseSearcher(searcher);
         }
+      } catch (IOException e) {
+        throw new DukeException(e);
+      }
+    }
 
-        matches = new ArrayList(Math.min(hits.length, max_search_hits));
-        for (int ix = 0; ix < hits.length &&
-                         hits[ix].score >= min_relevance; ix++)
-
+    private ScoreDoc[] doQuery(IndexSearcher searcher, Query query,
+                               Filter filter, List<Record> matches)
+      throws IOException {
+      SizeStats stats = this.stats.get();
+      HitCollector collector =
+        new HitCollector(max_search_hits, min_relevance, stats.estimate());
+      searcher.search(query, filter, collector);
+      ScoreDoc[] hits = collector.getHits();
+
+      for (int ix = 0; ix < hits.length; ix++) {
+        if (lazy_loading)
+          matches.add(new LazyDocumentRecord(hits[ix].doc,
+                                             searcher.getIndexReader()));
+        else
           matches.add(new DocumentRecord(hits[ix].doc,
                                          searcher.doc(hits[ix].doc)));
+      }
 
-        if (hits.length > 0) {
-          synchronized(this) {
-            prevsizes[sizeix++] = matches.size();
-            if (sizeix == prevsizes.length) {
-              sizeix = 0;
-              limit = Math.max((int) (average() * SEARCH_EXPANSION_FACTOR), limit);
-            }
-          }
-        }
-      } catch (IOException e) {
-        throw new DukeException(e);
+      if (hits.length > 0)
+        stats.add(hits.length);
+      return hits;
+    }
+  }
+
+  static class SizeStats {
+    private int limit;
+    private int[] prevsizes;
+    private int sizeix; // position in prevsizes
+
+    public SizeStats() {
+      this.limit = 100;
+      this.prevsizes = new int[10];
+    }
+
+    public int estimate() {
+      return limit;
+    }
+
+    public void add(int size) {
+      prevsizes[sizeix++] = size;
+      if (sizeix == prevsizes.length) {
+        sizeix = 0;
+        limit = Math.max((int) average(), limit);
       }
-      return matches;
     }
 
     private double average() {
       int sum = 0;
-      int ix = 0;
-      for (; ix < prevsizes.length && prevsizes[ix] != 0; ix++)
+      for (int ix = 0; ix < prevsizes.length; ix++)
         sum += prevsizes[ix];
-      return sum / (double) ix;
+      return sum / (double) prevsizes.length;
     }
   }
 
@@ -546,6 +767,38 @@ public class LuceneDatabase implements Database {
     geoprop = new GeoProperty(prop);
   }
 
+  /**
+   * The kinds of Lucene Directory the index can be kept in.
+   * @since 1.4
+   */
+  public enum DirectoryType {
+    /**
+     * RAMDirectory if there is no path, otherwise NIOFSDirectory (or
+     * FSDirectory on Windows).
+     */
+    DEFAULT,
+    /**
+     * RAMDirectory, which keeps the index on the Java heap. Can't be
+     * used with a path.
+     */
+    RAM,
+    /**
+     * FSDirectory, which lets Lucene choose the implementation.
+     */
+    FS,
+    /**
+     * NIOFSDirectory.
+     */
+    NIO,
+    /**
+     * MMapDirectory, which reads the index via the operating system's
+     * page cache. Without a path the index is kept in a temporary
+     * directory which is deleted on close, so this is an off-heap
+     * alternative to RAM.
+     */
+    MMAP;
+  }
+
   public enum BoostMode {
     /**
      * Boost fields at query time.
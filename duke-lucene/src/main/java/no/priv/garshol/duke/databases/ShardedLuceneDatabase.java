@@ -0,0 +1,418 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.ScoreDoc;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.DukeConfigException;
+import no.priv.garshol.duke.DukeException;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.Record;
+
+/**
+ * A database which spreads the records over several Lucene indexes
+ * (shards), by hashing the record ID. Each shard has its own
+ * IndexWriter and its own indexing thread, so records are indexed in
+ * parallel. Searches go to all shards at the same time, and the best
+ * hits from all of them are merged. Lookups by ID only go to the
+ * shard the record must be in.
+ *
+ * <p>The hits are merged by their raw Lucene scores. Every shard
+ * computes IDF from its own records, so the order of hits from
+ * different shards can differ a little from what a single index
+ * would give, most of all with few records per shard. Hashing
+ * spreads the records evenly, though, so the statistics of the
+ * shards stay close, and a shard whose best hits are weak doesn't
+ * get them promoted above strong hits from other shards.
+ *
+ * <p>Indexing happens in the background, so an exception from
+ * indexing a record is only reported later, from commit(), or from
+ * the next call to index() or close(). The exception names the
+ * record that failed. If indexing failed, commit() throws without
+ * committing any shard.
+ *
+ * <p>If there is a path, shard number n is kept in the directory
+ * shard-n under the path. The number of shards must not be changed
+ * for an existing index.
+ * @since 1.4
+ */
+public class ShardedLuceneDatabase implements Database {
+  private static final int QUEUE_SIZE = 1000; // records per shard
+  private Configuration config;
+  private boolean overwrite;
+  private String path;
+  private int shardcount;
+  private volatile Shard[] shards;
+  private ExecutorService searchpool;
+  private volatile DukeException error; // from an indexing thread
+
+  // settings passed on to the shards
+  private int max_search_hits;
+  private float min_relevance;
+  private boolean fuzzy_search;
+  private LuceneDatabase.BoostMode boost_mode;
+  private LuceneDatabase.DirectoryType directory_type;
+  private boolean nrt;
+  private int commit_interval;
+  private int commit_records;
+  private boolean lazy_loading;
+
+  public ShardedLuceneDatabase() {
+    this.shardcount = 4;
+    this.max_search_hits = 1000000;
+    this.fuzzy_search = true;
+    this.boost_mode = LuceneDatabase.BoostMode.QUERY;
+    this.directory_type = LuceneDatabase.DirectoryType.DEFAULT;
+  }
+
+  public void setConfiguration(Configuration config) {
+    this.config = config;
+  }
+
+  public void setOverwrite(boolean overwrite) {
+    this.overwrite = overwrite;
+  }
+
+  /**
+   * Sets the number of shards. The default is 4.
+   */
+  public void setShards(int shardcount) {
+    if (shardcount < 1)
+      throw new DukeConfigException("Number of shards must be at least 1");
+    this.shardcount = shardcount;
+  }
+
+  public int getShards() {
+    return shardcount;
+  }
+
+  /**
+   * Returns the path to the directory containing the shards. If null,
+   * the shards are kept in-memory.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  public void setPath(String path) {
+    this.path = path;
+  }
+
+  /**
+   * The maximum number of candidates returned from all shards
+   * together. Each shard also returns at most this many.
+   */
+  public void setMaxSearchHits(int max_search_hits) {
+    this.max_search_hits = max_search_hits;
+  }
+
+  public void setMinRelevance(float min_relevance) {
+    this.min_relevance = min_relevance;
+  }
+
+  public void setFuzzySearch(boolean fuzzy_search) {
+    this.fuzzy_search = fuzzy_search;
+  }
+
+  public void setBoostMode(LuceneDatabase.BoostMode boost_mode) {
+    this.boost_mode = boost_mode;
+  }
+
+  public void setDirectoryType(LuceneDatabase.DirectoryType directory_type) {
+    this.directory_type = directory_type;
+  }
+
+  public void setNearRealTime(boolean nrt) {
+    this.nrt = nrt;
+  }
+
+  public void setCommitInterval(int commit_interval) {
+    this.commit_interval = commit_interval;
+  }
+
+  public void setCommitRecords(int commit_records) {
+    this.commit_records = commit_records;
+  }
+
+  public void setLazyLoading(boolean lazy_loading) {
+    this.lazy_loading = lazy_loading;
+  }
+
+  public boolean isInMemory() {
+    return path == null;
+  }
+
+  public boolean supportsConcurrentIndexing() {
+    return true;
+  }
+
+  /**
+   * Queues the record for indexing in its shard. The record may not
+   * be searchable until after the next commit.
+   */
+  public void index(final Record record) {
+    if (shards == null)
+      init();
+    checkError();
+
+    final String id = getId(record);
+    final Shard shard = getShard(id);
+    shard.indexer.execute(new Runnable() {
+        public void run() {
+          try {
+            shard.db.index(record);
+          } catch (RuntimeException e) {
+            if (error == null) // the first error is the interesting one
+              error = new DukeException("Indexing record " + id +
+                                        " failed: " + e, e);
+          }
+        }
+      });
+  }
+
+  /**
+   * Waits until all queued records are indexed, then commits all
+   * shards in parallel. If indexing any of the records failed,
+   * nothing is committed, and the error is thrown instead.
+   */
+  public void commit() {
+    if (shards == null)
+      return;
+
+    List<Future> futures = new ArrayList(shards.length);
+    for (final Shard shard : shards)
+      futures.add(shard.indexer.submit(new Runnable() {
+          public void run() {
+            // nothing to do, we just wait for the queued records
+          }
+        }));
+    waitFor(futures);
+    checkError();
+
+    futures.clear();
+    for (final Shard shard : shards)
+      futures.add(shard.indexer.submit(new Runnable() {
+          public void run() {
+            shard.db.commit();
+          }
+        }));
+    waitFor(futures);
+  }
+
+  public Record findRecordById(String id) {
+    if (shards == null)
+      init();
+
+    return getShard(id).db.findRecordById(id);
+  }
+
+  public Collection<Record> findCandidateMatches(final Record record) {
+    if (shards == null)
+      init();
+
+    // search all shards but the first in the pool, and the first in
+    // this thread, so we don't just sit here waiting
+    List<Future<ShardResult>> futures = new ArrayList(shards.length - 1);
+    for (int ix = 1; ix < shards.length; ix++) {
+      final Shard shard = shards[ix];
+      futures.add(searchpool.submit(new Callable<ShardResult>() {
+          public ShardResult call() {
+            return new ShardResult(shard, record);
+          }
+        }));
+    }
+
+    List<ShardResult> results = new ArrayList(shards.length);
+    results.add(new ShardResult(shards[0], record));
+    for (Future<ShardResult> future : futures)
+      results.add(get(future));
+
+    return merge(results);
+  }
+
+  public void close() {
+    if (shards == null)
+      return;
+
+    List<Future> futures = new ArrayList(shards.length);
+    for (final Shard shard : shards)
+      futures.add(shard.indexer.submit(new Runnable() {
+          public void run() {
+            shard.db.close();
+          }
+        }));
+    waitFor(futures);
+
+    for (Shard shard : shards)
+      shard.indexer.shutdown();
+    searchpool.shutdown();
+    shards = null;
+    checkError();
+  }
+
+  public String toString() {
+    return "ShardedLuceneDatabase, shards: " + shardcount +
+      ", max-search-hits: " + max_search_hits +
+      ", min-relevance: " + min_relevance + ", path: " + path;
+  }
+
+  // ----- INTERNALS
+
+  private synchronized void init() {
+    if (this.shards != null)
+      return; // another thread got here first
+
+    Shard[] shards = new Shard[shardcount];
+    for (int ix = 0; ix < shardcount; ix++) {
+      LuceneDatabase db = new LuceneDatabase();
+      db.setConfiguration(config);
+      db.setOverwrite(overwrite);
+      if (path != null)
+        db.setPath(new File(path, "shard-" + ix).getPath());
+      db.setMaxSearchHits(max_search_hits);
+      db.setMinRelevance(min_relevance);
+      db.setFuzzySearch(fuzzy_search);
+      db.setBoostMode(boost_mode);
+      db.setDirectoryType(directory_type);
+      db.setNearRealTime(nrt);
+      db.setCommitInterval(commit_interval);
+      db.setCommitRecords(commit_records);
+      db.setLazyLoading(lazy_loading);
+      shards[ix] = new Shard(db);
+    }
+
+    searchpool = Executors.newCachedThreadPool(new DaemonThreadFactory());
+    this.shards = shards;
+  }
+
+  private String getId(Record record) {
+    Property idprop = config.getIdentityProperties().iterator().next();
+    String id = record.getValue(idprop.getName());
+    if (id == null)
+      throw new DukeException("Record has no ID: " + record);
+    return id;
+  }
+
+  private Shard getShard(String id) {
+    return shards[(id.hashCode() & Integer.MAX_VALUE) % shards.length];
+  }
+
+  /**
+   * Merges the results by score, keeping the best max_search_hits.
+   * The scores are compared as they are, since scaling each shard by
+   * its own top score would put the best hit of every shard on top,
+   * however weak it is. On equal scores earlier shards win, so the
+   * result is the same every time.
+   */
+  private Collection<Record> merge(List<ShardResult> results) {
+    int total = 0;
+    for (ShardResult result : results)
+      total += result.matches.size();
+    List<Record> merged = new ArrayList(Math.min(total, max_search_hits));
+
+    int[] pos = new int[results.size()];
+    while (merged.size() < max_search_hits) {
+      int best = -1;
+      float bestscore = 0.0f;
+      for (int ix = 0; ix < pos.length; ix++) {
+        ShardResult result = results.get(ix);
+        if (pos[ix] >= result.hits.length)
+          continue;
+        float score = result.hits[pos[ix]].score; // sorted by score
+        if (best == -1 || score > bestscore) {
+          best = ix;
+          bestscore = score;
+        }
+      }
+      if (best == -1)
+        break; // all shards exhausted
+
+      merged.add(results.get(best).matches.get(pos[best]++));
+    }
+    return merged;
+  }
+
+  private void checkError() {
+    DukeException e = error;
+    if (e != null) {
+      error = null;
+      throw new DukeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  private static void waitFor(List<Future> futures) {
+    for (Future future : futures)
+      get(future);
+  }
+
+  private static <T> T get(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new DukeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new DukeException(e.getCause());
+    }
+  }
+
+  static class Shard {
+    private LuceneDatabase db;
+    private ExecutorService indexer;
+
+    public Shard(LuceneDatabase db) {
+      this.db = db;
+      // records must be indexed in order, so only one thread per
+      // shard. if the queue is full, the caller has to wait.
+      this.indexer = new ThreadPoolExecutor(
+        1, 1, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+        new DaemonThreadFactory(),
+        new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable task,
+                                        ThreadPoolExecutor executor) {
+            try {
+              executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+              throw new DukeException(e);
+            }
+          }
+        });
+    }
+  }
+
+  static class ShardResult {
+    private List<Record> matches;
+    private ScoreDoc[] hits;
+
+    public ShardResult(Shard shard, Record record) {
+      this.matches = new ArrayList();
+      this.hits = shard.db.findCandidateMatches(record, matches);
+    }
+  }
+
+  static class DaemonThreadFactory implements ThreadFactory {
+    public Thread newThread(Runnable task) {
+      Thread thread = new Thread(task);
+      thread.setDaemon(true); // don't keep the JVM alive
+      return thread;
+    }
+  }
+}
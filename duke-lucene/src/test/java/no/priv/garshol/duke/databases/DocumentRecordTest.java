@@ -101,5 +101,43 @@ public class DocumentRecordTest {
     assertTrue(r.hashCode() == r2.hashCode());
     assertTrue(r.equals(r2));
   }
-  
-}
\ No newline at end of file
+
+  @Test
+  public void testLazy() throws IOException {
+    ((LuceneDatabase) db).setLazyLoading(true);
+    HashMap props = new HashMap();
+    props.put("ID", Collections.singleton("abc"));
+    Collection<String> list = new ArrayList();
+    list.add("b");
+    list.add("c");
+    props.put("NAME", list);
+    db.index(new RecordImpl(props));
+    db.commit();
+
+    Record r = db.findRecordById("abc");
+    assertTrue(r instanceof LazyDocumentRecord);
+    assertEquals("abc", r.getValue("ID"));
+    list = r.getValues("NAME");
+    assertEquals(2, list.size());
+    assertTrue(list.contains("b"));
+    assertTrue(list.contains("c"));
+    assertEquals(null, r.getValue("DIDGERIDOO"));
+    assertEquals(2, r.getProperties().size());
+    assertEquals(2, r.getValues("NAME").size()); // not loaded twice
+  }
+
+  @Test
+  public void testLazyProperties() throws IOException {
+    ((LuceneDatabase) db).setLazyLoading(true);
+    db.index(TestUtils.makeRecord("ID", "abc", "NAME", "b"));
+    db.commit();
+
+    Record r = db.findRecordById("abc");
+    Collection<String> props = r.getProperties();
+    assertEquals(2, props.size());
+    assertTrue(props.contains("ID"));
+    assertTrue(props.contains("NAME"));
+    assertEquals("b", r.getValue("NAME"));
+    assertTrue(r.equals(db.findRecordById("abc")));
+  }
+}
@@ -0,0 +1,117 @@
+package no.priv.garshol.duke.databases;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class HitCollectorTest {
+  private static final String[] WORDS = {"a", "b", "c", "d", "e", "f"};
+  private RAMDirectory directory;
+  private DirectoryReader reader;
+  private IndexSearcher searcher;
+
+  @Before
+  public void setup() throws IOException {
+    directory = new RAMDirectory();
+    IndexWriterConfig cfg = new IndexWriterConfig(
+      Version.LUCENE_CURRENT, new StandardAnalyzer(Version.LUCENE_CURRENT));
+    IndexWriter writer = new IndexWriter(directory, cfg);
+    Random random = new Random(0);
+    for (int ix = 0; ix < 500; ix++) {
+      StringBuilder value = new StringBuilder();
+      for (int word = 0; word < 1 + random.nextInt(5); word++)
+        value.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      Document doc = new Document();
+      doc.add(new Field("F", value.toString(), Field.Store.YES,
+                        Field.Index.ANALYZED));
+      writer.addDocument(doc);
+      if (ix % 100 == 99)
+        writer.commit(); // so we get several segments
+    }
+    writer.close();
+
+    reader = DirectoryReader.open(directory);
+    searcher = new IndexSearcher(reader);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testSameAsLucene() throws IOException {
+    Query query = makeQuery();
+    for (int max : new int[] {1, 7, 100, 499, 500, 1000}) {
+      ScoreDoc[] expected = searcher.search(query, max).scoreDocs;
+
+      HitCollector collector = new HitCollector(max, 0.0f, 10);
+      searcher.search(query, collector);
+      ScoreDoc[] hits = collector.getHits();
+
+      assertEquals("wrong number of hits for " + max,
+                   expected.length, hits.length);
+      for (int ix = 0; ix < hits.length; ix++) {
+        assertEquals("wrong hit " + ix + " for " + max,
+                     expected[ix].doc, hits[ix].doc);
+        assertEquals(expected[ix].score, hits[ix].score);
+      }
+    }
+  }
+
+  @Test
+  public void testMinRelevance() throws IOException {
+    Query query = makeQuery();
+    ScoreDoc[] all = searcher.search(query, 1000).scoreDocs;
+    float cutoff = all[all.length / 2].score;
+
+    HitCollector collector = new HitCollector(1000, cutoff, 10);
+    searcher.search(query, collector);
+    ScoreDoc[] hits = collector.getHits();
+
+    assertTrue(hits.length > 0);
+    assertTrue(hits.length < all.length);
+    for (int ix = 0; ix < hits.length; ix++) {
+      assertEquals(all[ix].doc, hits[ix].doc);
+      assertTrue(hits[ix].score >= cutoff);
+    }
+  }
+
+  @Test
+  public void testNoHits() throws IOException {
+    HitCollector collector = new HitCollector(1000000, 0.0f, 100);
+    searcher.search(new TermQuery(new Term("F", "x")), collector);
+    assertEquals(0, collector.getHitCount());
+    assertEquals(0, collector.getHits().length);
+  }
+
+  private Query makeQuery() {
+    BooleanQuery query = new BooleanQuery();
+    query.add(new TermQuery(new Term("F", "a")), Occur.SHOULD);
+    query.add(new TermQuery(new Term("F", "b")), Occur.SHOULD);
+    query.add(new TermQuery(new Term("F", "c")), Occur.SHOULD);
+    return query;
+  }
+}
@@ -0,0 +1,16 @@
+package no.priv.garshol.duke.databases;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+
+public class LazyLuceneDatabaseTest extends DatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    LuceneDatabase db = new LuceneDatabase();
+    db.setOverwrite(true);
+    db.setLazyLoading(true);
+    db.setConfiguration(config);
+    return db;
+  }
+  
+}
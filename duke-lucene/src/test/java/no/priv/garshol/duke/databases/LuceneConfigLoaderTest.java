@@ -10,6 +10,7 @@ import org.junit.Test;
 import org.xml.sax.SAXException;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 public class LuceneConfigLoaderTest {
 
@@ -21,4 +22,12 @@ public class LuceneConfigLoaderTest {
     assertEquals("/tmp/ct-visma-1", lucene.getPath());
   }
 
+  @Test
+  public void testDirectoryType() throws IOException, SAXException {
+    Configuration config = ConfigLoader.load("classpath:config-directory.xml");
+    LuceneDatabase lucene = (LuceneDatabase) config.getDatabase(false);
+    assertEquals(LuceneDatabase.DirectoryType.MMAP, lucene.getDirectoryType());
+    assertTrue(lucene.isInMemory());
+  }
+
 }
@@ -0,0 +1,36 @@
+package no.priv.garshol.duke.databases;
+
+import java.io.File;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.utils.TestUtils;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertTrue;
+
+public class MMapLuceneDatabaseTest extends DatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    LuceneDatabase db = new LuceneDatabase();
+    db.setOverwrite(true);
+    db.setDirectoryType(LuceneDatabase.DirectoryType.MMAP);
+    db.setConfiguration(config);
+    return db;
+  }
+
+  @Test
+  public void testTemporaryDirectoryDeleted() {
+    File tmp = new File(System.getProperty("java.io.tmpdir"));
+    int before = tmp.list().length;
+
+    db.index(TestUtils.makeRecord("ID", "1", "NAME", "AND", "EMAIL", "BBBBB"));
+    db.commit();
+    assertTrue(db.isInMemory());
+    assertTrue(db.findRecordById("1") != null);
+    db.close();
+
+    assertTrue("temporary index left behind", tmp.list().length <= before);
+  }
+
+}
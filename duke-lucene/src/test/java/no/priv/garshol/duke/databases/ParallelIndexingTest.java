@@ -0,0 +1,143 @@
+package no.priv.garshol.duke.databases;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.priv.garshol.duke.ConfigurationImpl;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Processor;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.comparators.Levenshtein;
+import no.priv.garshol.duke.matchers.AbstractMatchListener;
+import no.priv.garshol.duke.utils.TestUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ParallelIndexingTest {
+  private ConfigurationImpl config;
+  @Rule
+  public TemporaryFolder tmpdir = new TemporaryFolder();
+
+  @Before
+  public void setup() {
+    Levenshtein comp = new Levenshtein();
+    List<Property> props = new ArrayList();
+    props.add(new PropertyImpl("ID"));
+    props.add(new PropertyImpl("NAME", comp, 0.3, 0.8));
+    props.add(new PropertyImpl("EMAIL", comp, 0.3, 0.8));
+
+    config = new ConfigurationImpl();
+    config.setThreshold(0.85);
+    config.setMaybeThreshold(0.8);
+    config.setProperties(props);
+  }
+
+  @Test
+  public void testLucene() {
+    LuceneDatabase db = new LuceneDatabase();
+    db.setConfiguration(config);
+    db.setOverwrite(true);
+    db.setFuzzySearch(false); // fuzzy queries make this very slow
+    check(db);
+  }
+
+  @Test
+  public void testSharded() {
+    ShardedLuceneDatabase db = new ShardedLuceneDatabase();
+    db.setConfiguration(config);
+    db.setOverwrite(true);
+    db.setFuzzySearch(false); // fuzzy queries make this very slow
+    check(db);
+  }
+
+  @Test
+  public void testReindexing() throws Exception {
+    final LuceneDatabase db = new LuceneDatabase();
+    db.setConfiguration(config);
+    db.setOverwrite(false);
+    db.setPath(tmpdir.newFolder().getPath());
+    db.findRecordById("0"); // must be initialized before going parallel
+
+    // several threads index new versions of the same records at once
+    Thread[] threads = new Thread[4];
+    for (int ix = 0; ix < threads.length; ix++) {
+      threads[ix] = new Thread() {
+          public void run() {
+            for (int round = 0; round < 20; round++)
+              for (int id = 0; id < 10; id++)
+                db.index(TestUtils.makeRecord("ID", "" + id,
+                                              "NAME", "record" + id));
+          }
+        };
+      threads[ix].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    db.commit();
+
+    // only one version of each record must be left
+    for (int id = 0; id < 10; id++) {
+      Collection<Record> found =
+        db.findCandidateMatches(TestUtils.makeRecord("NAME", "record" + id));
+      int copies = 0;
+      for (Record record : found)
+        if (record.getValue("ID").equals("" + id))
+          copies++;
+      assertEquals("wrong number of copies of " + id, 1, copies);
+    }
+    db.close();
+  }
+
+  private void check(Database db) {
+    assertTrue(db.supportsConcurrentIndexing());
+
+    // pairs of records which match each other, but nothing else
+    List<Record> records = new ArrayList();
+    Random random = new Random(0);
+    String name = null;
+    for (int ix = 0; ix < 500; ix++) {
+      if (ix % 2 == 0)
+        name = makeName(random);
+      records.add(TestUtils.makeRecord("ID", "" + ix, "NAME", name,
+                                       "EMAIL", name + "@example.com"));
+    }
+
+    Processor processor = new Processor(config, db);
+    processor.setThreads(4);
+    CountingListener listener = new CountingListener();
+    processor.addMatchListener(listener);
+    processor.deduplicate(records);
+
+    for (int ix = 0; ix < 500; ix++)
+      assertTrue("record " + ix + " not indexed",
+                 db.findRecordById("" + ix) != null);
+    // each record matches the other in its pair
+    assertEquals(500, listener.count.get());
+    processor.close();
+  }
+
+  private String makeName(Random random) {
+    char[] name = new char[10];
+    for (int ix = 0; ix < name.length; ix++)
+      name[ix] = (char) ('a' + random.nextInt(26));
+    return new String(name);
+  }
+
+  static class CountingListener extends AbstractMatchListener {
+    private AtomicInteger count = new AtomicInteger();
+
+    public void matches(Record r1, Record r2, double confidence) {
+      count.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package no.priv.garshol.duke.databases;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+
+public class PersistentMMapLuceneDatabaseTest extends PersistentDatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    LuceneDatabase db = new LuceneDatabase();
+    db.setOverwrite(false);
+    db.setDirectoryType(LuceneDatabase.DirectoryType.MMAP);
+    db.setNrtCacheSize(16);
+    db.setConfiguration(config);
+    db.setPath(tmpdir.getRoot().getAbsolutePath());
+    return db;
+  }
+  
+}
@@ -0,0 +1,51 @@
+package no.priv.garshol.duke.databases;
+
+import java.io.IOException;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.utils.TestUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class PersistentNrtLuceneDatabaseTest extends PersistentDatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    LuceneDatabase db = new LuceneDatabase();
+    db.setOverwrite(false);
+    db.setNearRealTime(true);
+    db.setConfiguration(config);
+    db.setPath(tmpdir.getRoot().getAbsolutePath());
+    return db;
+  }
+
+  @Test
+  public void testCommitRecords() throws IOException {
+    ((LuceneDatabase) db).setCommitRecords(2);
+
+    db.index(TestUtils.makeRecord("ID", "1", "NAME", "AND", "EMAIL", "BBBBB"));
+    db.commit();
+    assertTrue("record not searchable", db.findRecordById("1") != null);
+    assertEquals("record committed too early", 0, countCommitted());
+
+    db.index(TestUtils.makeRecord("ID", "2", "NAME", "LARS", "EMAIL", "BARS"));
+    db.commit();
+    assertEquals("records not committed", 2, countCommitted());
+  }
+
+  private int countCommitted() throws IOException {
+    FSDirectory dir = FSDirectory.open(tmpdir.getRoot());
+    DirectoryReader reader = DirectoryReader.open(dir);
+    try {
+      return reader.numDocs();
+    } finally {
+      reader.close();
+      dir.close();
+    }
+  }
+}
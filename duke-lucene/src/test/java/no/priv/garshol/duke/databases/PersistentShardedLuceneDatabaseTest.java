@@ -0,0 +1,17 @@
+package no.priv.garshol.duke.databases;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+
+public class PersistentShardedLuceneDatabaseTest extends PersistentDatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    ShardedLuceneDatabase db = new ShardedLuceneDatabase();
+    db.setOverwrite(false);
+    db.setShards(3);
+    db.setConfiguration(config);
+    db.setPath(tmpdir.getRoot().getAbsolutePath());
+    return db;
+  }
+  
+}
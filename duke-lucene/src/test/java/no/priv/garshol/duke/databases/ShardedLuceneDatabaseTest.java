@@ -0,0 +1,99 @@
+package no.priv.garshol.duke.databases;
+
+import java.util.Collection;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.DukeException;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.utils.TestUtils;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class ShardedLuceneDatabaseTest extends DatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    ShardedLuceneDatabase db = new ShardedLuceneDatabase();
+    db.setOverwrite(true);
+    db.setShards(3);
+    db.setConfiguration(config);
+    return db;
+  }
+
+  @Test
+  public void testAllShards() {
+    for (int ix = 0; ix < 100; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "NAME", "LARS",
+                                    "EMAIL", "lars@example.com"));
+    db.commit();
+
+    Record record = TestUtils.makeRecord("ID", "x", "NAME", "LARS",
+                                         "EMAIL", "lars@example.com");
+    Collection<Record> matches = db.findCandidateMatches(record);
+    assertEquals(100, matches.size());
+
+    for (int ix = 0; ix < 100; ix++)
+      assertEquals("" + ix, db.findRecordById("" + ix).getValue("ID"));
+  }
+
+  @Test
+  public void testMaxSearchHits() {
+    ((ShardedLuceneDatabase) db).setMaxSearchHits(10);
+    for (int ix = 0; ix < 100; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "NAME", "LARS",
+                                    "EMAIL", "lars@example.com"));
+    db.commit();
+
+    Record record = TestUtils.makeRecord("ID", "x", "NAME", "LARS",
+                                         "EMAIL", "lars@example.com");
+    assertEquals(10, db.findCandidateMatches(record).size());
+  }
+
+  @Test
+  public void testWeakShard() {
+    // the first shard only has weak matches, the last only strong
+    // ones. the weak ones must not be ranked as if they were strong.
+    ((ShardedLuceneDatabase) db).setMaxSearchHits(10);
+    int weak = 0;
+    int strong = 0;
+    for (int ix = 0; weak < 10 || strong < 10; ix++) {
+      String id = "" + ix;
+      int shard = (id.hashCode() & Integer.MAX_VALUE) % 3;
+      if (shard == 0 && weak < 10) {
+        db.index(TestUtils.makeRecord("ID", id, "NAME", "LARS",
+                                      "EMAIL", "ola nordmann example"));
+        weak++;
+      } else if (shard == 2 && strong < 10) {
+        db.index(TestUtils.makeRecord("ID", id, "NAME", "LARS",
+                                      "EMAIL", "lars garshol example"));
+        strong++;
+      }
+    }
+    db.commit();
+
+    Record record = TestUtils.makeRecord("ID", "x", "NAME", "LARS",
+                                         "EMAIL", "lars garshol example");
+    Collection<Record> matches = db.findCandidateMatches(record);
+    assertEquals(10, matches.size());
+    for (Record match : matches)
+      assertEquals("weak match ranked above strong ones: " + match,
+                   "lars garshol example", match.getValue("EMAIL"));
+  }
+
+  @Test
+  public void testIndexingErrorOnCommit() {
+    db.index(TestUtils.makeRecord("ID", "1", "NAME", "LARS"));
+    db.index(TestUtils.makeRecord("ID", "2", "NAME", "LARS",
+                                  "UNKNOWN", "property"));
+    try {
+      db.commit();
+      fail("indexing error not reported");
+    } catch (DukeException e) {
+      assertTrue("record ID not in message: " + e.getMessage(),
+                 e.getMessage().contains("record 2"));
+    }
+  }
+}
@@ -0,0 +1,489 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedMap;
+
+import no.priv.garshol.duke.CompactRecord;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.Record;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.OffHeapStore;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.BasicDataType;
+import org.h2.mvstore.type.StringDataType;
+
+/**
+ * A database using blocking to find candidate records, storing the
+ * blocks in the H2 MVStore, either in a file on disk or in memory.
+ * It replaces MapDBBlockingDatabase, which is tied to MapDB 0.9 with
+ * its async writer thread and instance cache. The MVStore has no
+ * writer thread unless auto-commit is turned on, it caches pages, not
+ * objects, in a cache split into segments that are locked separately,
+ * readers never block, and the file can be memory-mapped. In-memory
+ * stores can be kept off the Java heap. Existing MapDB files can be
+ * converted with MapDBMigrator.
+ * @since 1.4
+ */
+public class MVStoreBlockingDatabase extends AbstractBlockingDatabase {
+  static final String IDMAP = "idmap";
+  private MVStore store;
+  private boolean overwrite;
+
+  // db configuration properties
+  private String file;
+  private boolean mmap;
+  private boolean offheap;
+  private int cache_size;
+  private int cache_concurrency;
+  private boolean compression;
+  private int auto_commit_delay;
+
+  public MVStoreBlockingDatabase() {
+    super();
+    this.cache_size = 16; // MVStore default
+    this.cache_concurrency = 16; // MVStore default
+  }
+
+  // ----- CONFIGURATION OPTIONS
+
+  public void setOverwrite(boolean overwrite) {
+    this.overwrite = overwrite;
+  }
+
+  /**
+   * Sets the file name (and path) of the database file. If omitted
+   * the database is just kept in memory.
+   */
+  public void setFile(String file) {
+    this.file = file;
+  }
+
+  /**
+   * If true, the database file is memory-mapped instead of read with
+   * ordinary file I/O. Default false.
+   */
+  public void setMmap(boolean mmap) {
+    this.mmap = mmap;
+  }
+
+  /**
+   * If true, and there is no file, the database is kept in direct
+   * buffers outside the Java heap. Default false.
+   */
+  public void setOffHeap(boolean offheap) {
+    this.offheap = offheap;
+  }
+
+  /**
+   * Sets the size of the page cache in MB. Default 16.
+   */
+  public void setCacheSize(int cache_size) {
+    this.cache_size = cache_size;
+  }
+
+  /**
+   * Sets the number of segments in the page cache. Each segment has
+   * its own lock, so more segments means less contention between
+   * threads. Default 16.
+   */
+  public void setCacheConcurrency(int cache_concurrency) {
+    this.cache_concurrency = cache_concurrency;
+  }
+
+  /**
+   * If true, pages are compressed before being written. Default false.
+   */
+  public void setCompression(boolean compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Sets how many milliseconds may pass before a background thread
+   * writes changes to disk. 0, the default, means there is no
+   * background thread, and changes are written when the database is
+   * committed or closed.
+   */
+  public void setAutoCommitDelay(int auto_commit_delay) {
+    this.auto_commit_delay = auto_commit_delay;
+  }
+
+  public void index(Record record) {
+    if (store == null)
+      init();
+
+    // is there a previous version of this record? if so, remove it
+    String id = getId(record);
+    if (!overwrite && file != null) {
+      Record old = findRecordById(id);
+      if (old != null) {
+        for (KeyFunction keyfunc : getIndexFunctions()) {
+          NavigableMap<String, Block> blocks = getBlocks(keyfunc);
+          String key = keyfunc.makeKey(old);
+          Block block = blocks.get(key);
+          if (block == null)
+            continue; // indexed before this key function was added
+          block = copy(block);
+          block.remove(id);
+          blocks.put(key, block);
+        }
+      }
+    }
+
+    idmap.put(id, toCompactRecord(record));
+
+    // index by key
+    for (KeyFunction keyfunc : getIndexFunctions()) {
+      NavigableMap<String, Block> blocks = getBlocks(keyfunc);
+      String key = keyfunc.makeKey(record);
+      Block block = blocks.get(key);
+      if (block == null)
+        block = new Block();
+      else
+        block = copy(block);
+      block.add(id);
+      blocks.put(key, block);
+    }
+  }
+
+  public Record findRecordById(String id) {
+    if (store == null)
+      init();
+    return idmap.get(id);
+  }
+
+  public Collection<Record> findCandidateMatches(Record record) {
+    if (store == null)
+      init();
+    return super.findCandidateMatches(record);
+  }
+
+  public boolean isInMemory() {
+    return file == null;
+  }
+
+  public void commit() {
+    if (store != null)
+      store.commit();
+  }
+
+  public void close() {
+    if (store != null)
+      store.close();
+    store = null;
+    func_to_map.clear(); // the maps belong to the closed store
+  }
+
+  public String toString() {
+    return "MVStoreBlockingDatabase window_size=" + window_size +
+      (adaptive ? ", adaptive, max_window_size=" + max_window_size : "") +
+      ", cache_size=" + cache_size + ", in-memory=" + isInMemory() + "\n  " +
+      "mmap=" + mmap + ", offheap=" + offheap + ", compress=" +
+      compression + ", auto_commit_delay=" + auto_commit_delay +
+      "\n  " +
+      functions;
+  }
+
+  private String getId(Record r) {
+    for (Property idprop : config.getIdentityProperties()) {
+      String v = r.getValue(idprop.getName());
+      if (v != null)
+        return v;
+    }
+    return null;
+  }
+
+  private void init() {
+    MVStore.Builder builder = new MVStore.Builder();
+    if (file == null) {
+      if (offheap)
+        builder = builder.fileStore(new OffHeapStore());
+    } else {
+      if (overwrite)
+        new File(file).delete();
+      builder = builder.fileName(mmap ? "nioMapped:" + file : file);
+      if (compression)
+        builder = builder.compress();
+    }
+    builder = builder.cacheSize(cache_size);
+    builder = builder.cacheConcurrency(cache_concurrency);
+    if (auto_commit_delay == 0)
+      builder = builder.autoCommitDisabled();
+
+    store = builder.open();
+    if (auto_commit_delay > 0)
+      store.setAutoCommitDelay(auto_commit_delay);
+    idmap = (Map) openRecords(store);
+  }
+
+  // blocks are shared with readers, so they must be copied before
+  // they are changed
+  private static Block copy(Block block) {
+    return new Block(block.size(), Arrays.copyOf(block.getIds(),
+                                                 block.size() + 1));
+  }
+
+  private static CompactRecord toCompactRecord(Record record) {
+    if (record instanceof CompactRecord)
+      return (CompactRecord) record;
+    return CompactRecord.copyOf(record);
+  }
+
+  static MVMap<String, CompactRecord> openRecords(MVStore store) {
+    return store.openMap(IDMAP, new MVMap.Builder<String, CompactRecord>()
+                         .keyType(StringDataType.INSTANCE)
+                         .valueType(new RecordDataType()));
+  }
+
+  static MVMap<String, Block> openBlocks(MVStore store, String name) {
+    return store.openMap(name, new MVMap.Builder<String, Block>()
+                         .keyType(StringDataType.INSTANCE)
+                         .valueType(new BlockDataType()));
+  }
+
+  // --- PLUG IN EXTENSIONS
+
+  protected int addBlock(Collection<Record> candidates,
+                         Map.Entry entry) {
+    Block block = (Block) entry.getValue();
+    String[] ids = block.getIds();
+    int ix = 0;
+    for (; ix < block.size(); ix++)
+      candidates.add(idmap.get(ids[ix]));
+    return ix;
+  }
+
+  protected int getBlockSize(Map.Entry entry) {
+    return ((Block) entry.getValue()).size();
+  }
+
+  protected NavigableMap makeMap(KeyFunction keyfunc) {
+    if (store == null)
+      init();
+    return new BlockMap(openBlocks(store, getName(keyfunc)));
+  }
+
+  // ----- DATA TYPES
+
+  static class BlockDataType extends BasicDataType<Block> {
+    public int getMemory(Block block) {
+      int memory = 24;
+      String[] ids = block.getIds();
+      for (int ix = 0; ix < block.size(); ix++)
+        memory += 40 + ids[ix].length() * 2;
+      return memory;
+    }
+
+    public void write(WriteBuffer buff, Block block) {
+      int size = block.size();
+      buff.putVarInt(size);
+      String[] ids = block.getIds();
+      for (int ix = 0; ix < size; ix++)
+        putString(buff, ids[ix]);
+    }
+
+    public Block read(ByteBuffer buff) {
+      int free = DataUtils.readVarInt(buff);
+      String[] ids = new String[free];
+      for (int ix = 0; ix < free; ix++)
+        ids[ix] = DataUtils.readString(buff);
+      return new Block(free, ids);
+    }
+
+    public Block[] createStorage(int size) {
+      return new Block[size];
+    }
+  }
+
+  static class RecordDataType extends BasicDataType<CompactRecord> {
+    public int getMemory(CompactRecord record) {
+      int memory = 48;
+      String[] s = record.getArray();
+      for (int ix = 0; ix < record.getFree(); ix++)
+        memory += 40 + s[ix].length() * 2;
+      return memory;
+    }
+
+    public void write(WriteBuffer buff, CompactRecord record) {
+      int free = record.getFree();
+      buff.putVarInt(free);
+      String[] s = record.getArray();
+      for (int ix = 0; ix < free; ix++)
+        putString(buff, s[ix]);
+    }
+
+    public CompactRecord read(ByteBuffer buff) {
+      int free = DataUtils.readVarInt(buff);
+      String[] s = new String[free];
+      for (int ix = 0; ix < free; ix++)
+        s[ix] = DataUtils.readString(buff);
+      return new CompactRecord(free, s);
+    }
+
+    public CompactRecord[] createStorage(int size) {
+      return new CompactRecord[size];
+    }
+  }
+
+  private static void putString(WriteBuffer buff, String str) {
+    int length = str.length();
+    buff.putVarInt(length).putStringData(str, length);
+  }
+
+  // ----- NAVIGABLE MAP VIEW
+
+  /**
+   * MVMap can look up the keys around a key, but isn't a NavigableMap,
+   * so this wraps it in one. Only the methods needed for searching
+   * the neighbourhood of a key are supported.
+   */
+  static class BlockMap extends AbstractMap<String, Block>
+    implements NavigableMap<String, Block> {
+    private MVMap<String, Block> map;
+
+    public BlockMap(MVMap<String, Block> map) {
+      this.map = map;
+    }
+
+    public Block get(Object key) {
+      return map.get(key);
+    }
+
+    public Block put(String key, Block block) {
+      return map.put(key, block);
+    }
+
+    public Block remove(Object key) {
+      return map.remove(key);
+    }
+
+    public boolean containsKey(Object key) {
+      return map.containsKey(key);
+    }
+
+    public int size() {
+      return map.size();
+    }
+
+    public Set<Map.Entry<String, Block>> entrySet() {
+      return map.entrySet();
+    }
+
+    public Comparator<? super String> comparator() {
+      return null; // natural ordering
+    }
+
+    public Map.Entry<String, Block> ceilingEntry(String key) {
+      return makeEntry(map.ceilingKey(key));
+    }
+
+    public String ceilingKey(String key) {
+      return map.ceilingKey(key);
+    }
+
+    public Map.Entry<String, Block> higherEntry(String key) {
+      return makeEntry(map.higherKey(key));
+    }
+
+    public String higherKey(String key) {
+      return map.higherKey(key);
+    }
+
+    public Map.Entry<String, Block> lowerEntry(String key) {
+      return makeEntry(map.lowerKey(key));
+    }
+
+    public String lowerKey(String key) {
+      return map.lowerKey(key);
+    }
+
+    public Map.Entry<String, Block> floorEntry(String key) {
+      return makeEntry(map.floorKey(key));
+    }
+
+    public String floorKey(String key) {
+      return map.floorKey(key);
+    }
+
+    public Map.Entry<String, Block> firstEntry() {
+      return makeEntry(map.firstKey());
+    }
+
+    public String firstKey() {
+      return map.firstKey();
+    }
+
+    public Map.Entry<String, Block> lastEntry() {
+      return makeEntry(map.lastKey());
+    }
+
+    public String lastKey() {
+      return map.lastKey();
+    }
+
+    // --- not supported
+
+    public Map.Entry<String, Block> pollFirstEntry() {
+      throw new UnsupportedOperationException();
+    }
+
+    public Map.Entry<String, Block> pollLastEntry() {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableMap<String, Block> descendingMap() {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableSet<String> navigableKeySet() {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableSet<String> descendingKeySet() {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableMap<String, Block> subMap(String from, boolean frominc,
+                                              String to, boolean toinc) {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableMap<String, Block> headMap(String to, boolean inclusive) {
+      throw new UnsupportedOperationException();
+    }
+
+    public NavigableMap<String, Block> tailMap(String from,
+                                               boolean inclusive) {
+      throw new UnsupportedOperationException();
+    }
+
+    public SortedMap<String, Block> subMap(String from, String to) {
+      throw new UnsupportedOperationException();
+    }
+
+    public SortedMap<String, Block> headMap(String to) {
+      throw new UnsupportedOperationException();
+    }
+
+    public SortedMap<String, Block> tailMap(String from) {
+      throw new UnsupportedOperationException();
+    }
+
+    private Map.Entry<String, Block> makeEntry(String key) {
+      if (key == null)
+        return null;
+      return new AbstractMap.SimpleImmutableEntry(key, map.get(key));
+    }
+  }
+}
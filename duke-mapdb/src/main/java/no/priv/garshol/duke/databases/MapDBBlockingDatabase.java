@@ -2,19 +2,35 @@
 package no.priv.garshol.duke.databases;
 
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 
 import no.priv.garshol.duke.CompactRecord;
+import no.priv.garshol.duke.DukeException;
 import no.priv.garshol.duke.Property;
 import no.priv.garshol.duke.Record;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.mapdb.Fun;
+import org.mapdb.Pump;
 import org.mapdb.Serializer;
 
 // FIXME:
@@ -25,7 +41,9 @@ import org.mapdb.Serializer;
 
 /**
  * A database using blocking to find candidate records, storing the
- * blocks in MapDB on disk.
+ * blocks in MapDB on disk. New databases should use
+ * MVStoreBlockingDatabase instead, and existing files can be
+ * converted with MapDBMigrator.
  * @since 1.2
  */
 public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
@@ -40,10 +58,21 @@ public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
   private boolean compression;
   private boolean snapshot;
   private boolean notxn;
+  private boolean bulk_load;
+  private int bulk_batch_size;
+
+  // key function -> the key/id pairs of its blocks. null unless we
+  // are bulk loading. only set to null once the blocks are written,
+  // so that lookups never see half-written blocks.
+  private volatile Map<KeyFunction, BulkLoader> loaders;
+
+  // exists in the file while a bulk load is in progress
+  static final String BULK_LOAD_MARKER = "bulkload";
 
   public MapDBBlockingDatabase() {
     super();
     this.cache_size = 32768; // MapDB default
+    this.bulk_batch_size = 1000000;
 
     // experiments show optimal performance with these two on, and
     // the others off. therefore setting that as default
@@ -73,6 +102,37 @@ public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
     this.file = file;
   }
 
+  /**
+   * Turns on bulk loading, which is much faster when indexing lots of
+   * records into an empty database. Instead of updating the blocks
+   * for every record, the (key, id) pairs are collected, sorted on
+   * disk, and the blocks then written in one pass with the MapDB data
+   * pump. This happens on the first commit (which the Processor does
+   * before matching), and after that records are indexed the normal
+   * way. So this only helps if all records are indexed before
+   * matching starts. Record IDs must be unique during the load. If
+   * the database is not empty this setting is ignored.
+   *
+   * <p>If the process dies before the blocks are written, the
+   * records indexed so far are thrown away when the database is
+   * opened again, since they can't be found without their blocks.
+   * Default false.
+   * @since 1.4
+   */
+  public void setBulkLoad(boolean bulk_load) {
+    this.bulk_load = bulk_load;
+  }
+
+  /**
+   * Sets the number of (key, id) pairs per key function to sort in
+   * memory before writing them to a temporary file when bulk
+   * loading. Default is 1000000.
+   * @since 1.4
+   */
+  public void setBulkBatchSize(int bulk_batch_size) {
+    this.bulk_batch_size = bulk_batch_size;
+  }
+
   // these configuration options are experimental
   public void setAsync(boolean async) { this.async = async; }
   public void setMmap(boolean mmap) { this.mmap = mmap; }
@@ -84,15 +144,25 @@ public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
     if (db == null)
       init();
 
-    // is there a previous version of this record? if so, remove it
     String id = getId(record);
+    if (loaders != null) {
+      // we're bulk loading, so just collect the keys for later
+      indexById(record);
+      for (KeyFunction keyfunc : getIndexFunctions())
+        getLoader(keyfunc).add(keyfunc.makeKey(record), id);
+      return;
+    }
+
+    // is there a previous version of this record? if so, remove it
     if (!overwrite && file != null) {
       Record old = findRecordById(id);
       if (old != null) {
-        for (KeyFunction keyfunc : functions) {
+        for (KeyFunction keyfunc : getIndexFunctions()) {
           NavigableMap<String, Block> blocks = getBlocks(keyfunc);
           String key = keyfunc.makeKey(old);
           Block block = blocks.get(key);
+          if (block == null)
+            continue; // indexed before this key function was added
           block.remove(id);
           blocks.put(key, block); // changed the object, so need to write again
         }
@@ -102,7 +172,7 @@ public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
     indexById(record);
 
     // index by key
-    for (KeyFunction keyfunc : functions) {
+    for (KeyFunction keyfunc : getIndexFunctions()) {
       NavigableMap<String, Block> blocks = getBlocks(keyfunc);
       String key = keyfunc.makeKey(record);
       Block block = blocks.get(key);
@@ -113,6 +183,14 @@ public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
     }
   }
 
+  protected void indexById(Record record) {
+    // the idmap can only serialize CompactRecords, so other kinds of
+    // records (like IndexedRecords) have to be converted
+    if (!(record instanceof CompactRecord))
+      record = CompactRecord.copyOf(record);
+    super.indexById(record);
+  }
+
   public Record findRecordById(String id) {
     if (db == null)
       init();
@@ -122,6 +200,8 @@ public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
   public Collection<Record> findCandidateMatches(Record record) {
     if (db == null)
       init();
+    if (loaders != null)
+      commit(); // the blocks aren't there until the bulk load is done
     return super.findCandidateMatches(record);
   }
 
@@ -129,21 +209,27 @@ public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
     return file == null;
   }
 
-  public void commit() {
-    // having commit here slows things down considerably, probably
-    // because it forces writes.
+  public synchronized void commit() {
+    // committing the MapDB database here slows things down
+    // considerably, probably because it forces writes. so we only
+    // finish the bulk load, if there is one.
+    if (loaders != null)
+      finishBulkLoad();
   }
 
   public void close() {
+    commit();
     db.commit();
     db.close();
   }
 
   public String toString() {
     return "MapDBBlockingDatabase window_size=" + window_size +
+      (adaptive ? ", adaptive, max_window_size=" + max_window_size : "") +
       ", cache_size=" + cache_size + ", in-memory=" + isInMemory() + "\n  " +
       "async=" + async + ", mmap=" + mmap + ", compress=" + compression +
       ", snapshot=" + snapshot + "\n  notxn=" + notxn +
+      (bulk_load ? ", bulk_load, bulk_batch_size=" + bulk_batch_size : "") +
       "\n  " +
       functions;
   }
@@ -188,6 +274,58 @@ public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
         .make();
     else
       idmap = db.getHashMap("idmap");
+
+    if (db.exists(BULK_LOAD_MARKER))
+      discardBulkLoad();
+
+    if (bulk_load && idmap.isEmpty()) {
+      db.createAtomicBoolean(BULK_LOAD_MARKER, true);
+      db.commit(); // so we know about the load if we crash
+      loaders = new HashMap();
+    }
+  }
+
+  // a bulk load was started, but never finished, so the records have
+  // no blocks. the only thing we can do is to start over.
+  private void discardBulkLoad() {
+    idmap.clear();
+    for (Map.Entry<String, Object> entry : db.getAll().entrySet())
+      if (entry.getValue() instanceof NavigableMap)
+        db.delete(entry.getKey()); // blocks written before we died
+    db.delete(BULK_LOAD_MARKER);
+    db.commit();
+  }
+
+  private BulkLoader getLoader(KeyFunction keyfunc) {
+    BulkLoader loader = loaders.get(keyfunc);
+    if (loader == null) {
+      File tmpdir = file == null ? null : new File(file).getParentFile();
+      loader = new BulkLoader(bulk_batch_size, tmpdir);
+      loaders.put(keyfunc, loader);
+    }
+    return loader;
+  }
+
+  // builds the tree maps from the collected pairs. must only be
+  // called from commit(), which is synchronized.
+  private void finishBulkLoad() {
+    for (KeyFunction keyfunc : loaders.keySet()) {
+      BulkLoader loader = loaders.get(keyfunc);
+      String name = getName(keyfunc);
+      if (db.exists(name))
+        db.delete(name); // must be empty, since idmap was empty
+
+      DB.BTreeMapMaker maker = db.createTreeMap(name)
+        .valueSerializer(new BlockSerializer());
+      Iterator<Fun.Tuple2<String, Block>> blocks = loader.getBlocks();
+      if (blocks.hasNext()) // the pump fails on empty sources
+        maker = maker.pumpSource(blocks);
+      func_to_map.put(keyfunc, maker.make());
+      loader.close();
+    }
+
+    db.delete(BULK_LOAD_MARKER);
+    loaders = null; // from now on we index the normal way
   }
 
   // MapDB doesn't support overwrite yet, so we have to do this
@@ -214,11 +352,15 @@ public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
     return ix;
   }
 
+  protected int getBlockSize(Map.Entry entry) {
+    return ((Block) entry.getValue()).size();
+  }
+
   protected NavigableMap makeMap(KeyFunction keyfunc) {
     if (db == null)
       init();
 
-    String name = keyfunc.getClass().getName();
+    String name = getName(keyfunc);
     if (!db.exists(name))
       return db.createTreeMap(name)
         .valueSerializer(new BlockSerializer())
@@ -227,6 +369,172 @@ public class MapDBBlockingDatabase extends AbstractBlockingDatabase {
       return db.getTreeMap(name);
   }
 
+  // ----- BULK LOADING
+
+  /**
+   * Collects the (key, id) pairs of one key function, and sorts them
+   * with an external merge sort. Batches of pairs are sorted in
+   * memory and written to temporary files, which are merged at the
+   * end. The MapDB data pump wants the keys in descending order, so
+   * that is the order we sort in.
+   */
+  static class BulkLoader {
+    private static final Comparator ORDER = Collections.reverseOrder();
+    private int batch_size;
+    private File tmpdir;
+    private List<Fun.Tuple2<String, String>> pairs;
+    private List<File> runs;
+    private List<Integer> counts; // number of pairs in each run
+    private List<RunIterator> readers;
+
+    public BulkLoader(int batch_size, File tmpdir) {
+      this.batch_size = batch_size;
+      this.tmpdir = tmpdir;
+      this.pairs = new ArrayList();
+      this.runs = new ArrayList();
+      this.counts = new ArrayList();
+      this.readers = new ArrayList();
+    }
+
+    public void add(String key, String id) {
+      pairs.add(Fun.t2(key, id));
+      if (pairs.size() >= batch_size)
+        spill();
+    }
+
+    /**
+     * Returns the blocks, with the keys in descending order.
+     */
+    public Iterator<Fun.Tuple2<String, Block>> getBlocks() {
+      Collections.sort(pairs, ORDER);
+      Iterator<Fun.Tuple2<String, String>> sorted;
+      if (runs.isEmpty())
+        sorted = pairs.iterator();
+      else {
+        Iterator[] iterators = new Iterator[runs.size() + 1];
+        for (int ix = 0; ix < runs.size(); ix++) {
+          RunIterator reader = new RunIterator(runs.get(ix), counts.get(ix));
+          readers.add(reader);
+          iterators[ix] = reader;
+        }
+        iterators[runs.size()] = pairs.iterator();
+        sorted = Pump.sort(ORDER, false, iterators);
+      }
+      return new BlockIterator(sorted);
+    }
+
+    /**
+     * Deletes the temporary files.
+     */
+    public void close() {
+      for (RunIterator reader : readers)
+        reader.close();
+      for (File run : runs)
+        run.delete();
+      pairs = null;
+    }
+
+    private void spill() {
+      Collections.sort(pairs, ORDER);
+      try {
+        File run = File.createTempFile("duke-bulk-", ".tmp", tmpdir);
+        run.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(run)));
+        for (Fun.Tuple2<String, String> pair : pairs) {
+          out.writeUTF(pair.a);
+          out.writeUTF(pair.b);
+        }
+        out.close();
+        runs.add(run);
+        counts.add(pairs.size());
+      } catch (IOException e) {
+        throw new DukeException("Couldn't write temporary file", e);
+      }
+      pairs.clear();
+    }
+  }
+
+  /**
+   * Reads the pairs back from one of the temporary files.
+   */
+  static class RunIterator implements Iterator<Fun.Tuple2<String, String>> {
+    private DataInputStream in;
+    private int left;
+
+    public RunIterator(File run, int count) {
+      try {
+        this.in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(run)));
+      } catch (IOException e) {
+        throw new DukeException("Couldn't read temporary file", e);
+      }
+      this.left = count;
+    }
+
+    public boolean hasNext() {
+      return left > 0;
+    }
+
+    public Fun.Tuple2<String, String> next() {
+      if (left == 0)
+        throw new NoSuchElementException();
+      left--;
+      try {
+        return Fun.t2(in.readUTF(), in.readUTF());
+      } catch (IOException e) {
+        throw new DukeException("Couldn't read temporary file", e);
+      }
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // we're only reading, so nothing is lost
+      }
+    }
+  }
+
+  /**
+   * Turns the sorted pairs into blocks, one per key.
+   */
+  static class BlockIterator implements Iterator<Fun.Tuple2<String, Block>> {
+    private Iterator<Fun.Tuple2<String, String>> pairs;
+    private Fun.Tuple2<String, String> next; // first pair of next block
+
+    public BlockIterator(Iterator<Fun.Tuple2<String, String>> pairs) {
+      this.pairs = pairs;
+      if (pairs.hasNext())
+        next = pairs.next();
+    }
+
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    public Fun.Tuple2<String, Block> next() {
+      if (next == null)
+        throw new NoSuchElementException();
+
+      String key = next.a;
+      Block block = new Block();
+      while (next != null && next.a.equals(key)) {
+        block.add(next.b);
+        next = pairs.hasNext() ? pairs.next() : null;
+      }
+      return Fun.t2(key, block);
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   // ----- SERIALIZERS
 
   static class BlockSerializer implements Serializable, Serializer<Block> {
@@ -0,0 +1,124 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.io.File;
+import java.util.Map;
+
+import no.priv.garshol.duke.CompactRecord;
+import no.priv.garshol.duke.Duke;
+import no.priv.garshol.duke.DukeException;
+import no.priv.garshol.duke.utils.CommandLineParser;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+
+/**
+ * Command-line tool which converts the file of a
+ * MapDBBlockingDatabase into a file for MVStoreBlockingDatabase. The
+ * records and all the blocks are copied, so the new database can be
+ * used with the same key functions without indexing again.
+ * @since 1.4
+ */
+public class MapDBMigrator {
+  private static final int COMMIT_INTERVAL = 10000;
+
+  /**
+   * Copies everything in the MapDB file into the MVStore file, and
+   * returns the number of records copied. The MVStore file must not
+   * exist.
+   */
+  public static int migrate(File mapdbfile, File mvstorefile) {
+    return migrate(mapdbfile, mvstorefile, false);
+  }
+
+  /**
+   * Does the same as migrate(mapdbfile, mvstorefile), but if
+   * compression is true, the MapDB file is read as one written with
+   * compression turned on. MapDB files don't record this, so it must
+   * match the compression setting of the MapDBBlockingDatabase.
+   */
+  public static int migrate(File mapdbfile, File mvstorefile,
+                            boolean compression) {
+    if (!mapdbfile.exists())
+      throw new DukeException("No such file: " + mapdbfile);
+    if (mvstorefile.exists())
+      throw new DukeException("File already exists: " + mvstorefile);
+
+    DBMaker maker = DBMaker.newFileDB(mapdbfile).readOnly();
+    if (compression)
+      maker = maker.compressionEnable();
+    DB db = maker.make();
+    MVStore store = new MVStore.Builder()
+      .fileName(mvstorefile.getPath())
+      .autoCommitDisabled()
+      .open();
+
+    int records = 0;
+    try {
+      for (Map.Entry<String, Object> entry : db.getAll().entrySet()) {
+        String name = entry.getKey();
+        if (name.equals(MVStoreBlockingDatabase.IDMAP)) {
+          MVMap<String, CompactRecord> idmap =
+            MVStoreBlockingDatabase.openRecords(store);
+          records = copy((HTreeMap) entry.getValue(), idmap, store);
+        } else if (entry.getValue() instanceof BTreeMap) {
+          MVMap<String, AbstractBlockingDatabase.Block> blocks =
+            MVStoreBlockingDatabase.openBlocks(store, name);
+          copy((BTreeMap) entry.getValue(), blocks, store);
+        }
+        // there is nothing else in these files
+      }
+      store.commit();
+    } finally {
+      store.close();
+      db.close();
+    }
+    return records;
+  }
+
+  private static int copy(Map from, MVMap to, MVStore store) {
+    int count = 0;
+    for (Object entry : from.entrySet()) {
+      Map.Entry e = (Map.Entry) entry;
+      to.put(e.getKey(), e.getValue());
+      if (++count % COMMIT_INTERVAL == 0)
+        store.commit(); // so that the changes don't pile up in memory
+    }
+    return count;
+  }
+
+  public static void main(String[] argv) {
+    CommandLineParser parser = new CommandLineParser();
+    parser.setMinimumArguments(2);
+    parser.setMaximumArguments(2);
+    parser.addBooleanOption("compression", 'c');
+
+    try {
+      argv = parser.parse(argv);
+    } catch (CommandLineParser.CommandLineParserException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      usage();
+      System.exit(1);
+    }
+
+    boolean compression = parser.getOptionState("compression");
+    int records = migrate(new File(argv[0]), new File(argv[1]), compression);
+    System.out.println("Copied " + records + " records into " + argv[1]);
+  }
+
+  private static void usage() {
+    System.out.println("");
+    System.out.println("java no.priv.garshol.duke.databases.MapDBMigrator [options] <mapdbfile> <mvstorefile>");
+    System.out.println("");
+    System.out.println("  Converts the file of a MapDBBlockingDatabase into a file");
+    System.out.println("  for the MVStoreBlockingDatabase. The MapDB file is not");
+    System.out.println("  changed.");
+    System.out.println("");
+    System.out.println("  --compression         the MapDB file was written with compression");
+    System.out.println("");
+    System.out.println("Duke version " + Duke.getVersionString());
+  }
+}
@@ -0,0 +1,35 @@
+package no.priv.garshol.duke.databases;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Record;
+
+public class AdaptiveMapDBBlockingDatabaseTest extends DatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    MapDBBlockingDatabase db = new MapDBBlockingDatabase();
+    db.setConfiguration(config);
+    db.setAdaptiveWindow(true);
+
+    Collection<KeyFunction> functions = new ArrayList();
+    functions.add(new NameKeyFunction());
+    db.setKeyFunctions(functions);
+    db.setSecondaryKeyFunction(new EmailKeyFunction());
+    return db;
+  }
+
+  private static class NameKeyFunction implements KeyFunction {
+    public String makeKey(Record record) {
+      return record.getValue("NAME");
+    }
+  }
+
+  private static class EmailKeyFunction implements KeyFunction {
+    public String makeKey(Record record) {
+      return record.getValue("EMAIL");
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package no.priv.garshol.duke.databases;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import no.priv.garshol.duke.CompactRecord;
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.utils.TestUtils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class BulkMapDBBlockingDatabaseTest extends PersistentDatabaseTest {
+  private String dbfile;
+
+  public Database createDatabase(Configuration config) throws IOException {
+    if (dbfile == null)
+      dbfile = tmpdir.newFile().getAbsolutePath(); // ensure same every time
+
+    MapDBBlockingDatabase db = makeDatabase(config, dbfile);
+    db.setBulkLoad(true);
+    db.setWindowSize(0); // otherwise we'll find way too many candidates
+    return db;
+  }
+
+  @Test
+  public void testSameAsNormal() throws IOException {
+    // index the same records with and without bulk loading, with a
+    // batch size small enough that the pairs are sorted on disk, and
+    // check that the two databases find the same candidates
+    MapDBBlockingDatabase bulk = (MapDBBlockingDatabase) db;
+    bulk.setBulkBatchSize(100);
+    bulk.setWindowSize(5);
+    MapDBBlockingDatabase normal =
+      makeDatabase(config, tmpdir.newFile().getAbsolutePath());
+
+    Random random = new Random(4321);
+    for (int ix = 0; ix < 1000; ix++) {
+      Record record = TestUtils.makeRecord("ID", "" + ix,
+                                           "NAME", makeName(random));
+      bulk.index(record);
+      normal.index(record);
+    }
+    bulk.commit();
+    normal.commit();
+
+    for (int ix = 0; ix < 100; ix++) {
+      Record record = TestUtils.makeRecord("NAME", makeName(random));
+      assertEquals(getIds(normal.findCandidateMatches(record)),
+                   getIds(bulk.findCandidateMatches(record)));
+    }
+
+    // after the bulk load records are indexed the normal way
+    Record record = TestUtils.makeRecord("ID", "new", "NAME", "zzzzzzz");
+    bulk.index(record);
+    assertTrue(getIds(bulk.findCandidateMatches(record)).contains("new"));
+
+    normal.close();
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    Record record = TestUtils.makeRecord("ID", "1", "NAME", "AND");
+    assertEquals(0, db.findCandidateMatches(record).size());
+  }
+
+  @Test
+  public void testUnfinishedLoad() throws IOException {
+    // this is what the file looks like if the process died during the
+    // bulk load: the records are there, but not the blocks
+    String file = tmpdir.newFile().getAbsolutePath();
+    DB crashed = DBMaker.newFileDB(new File(file))
+      .mmapFileEnableIfSupported() // same settings as the database
+      .make();
+    Map<String, CompactRecord> idmap = crashed.createHashMap("idmap")
+      .valueSerializer(new MapDBBlockingDatabase.RecordSerializer())
+      .make();
+    idmap.put("1", CompactRecord.copyOf(TestUtils.makeRecord("ID", "1",
+                                                             "NAME", "AND")));
+    crashed.createAtomicBoolean(MapDBBlockingDatabase.BULK_LOAD_MARKER,
+                                true);
+    crashed.commit();
+    crashed.close();
+
+    // when opened again the records must be gone, so that they can
+    // be loaded again, rather than be there without blocks
+    MapDBBlockingDatabase reopened = makeDatabase(config, file);
+    reopened.setBulkLoad(true);
+    assertTrue(reopened.findRecordById("1") == null);
+
+    Record record = TestUtils.makeRecord("ID", "1", "NAME", "AND");
+    reopened.index(record);
+    reopened.commit();
+    assertEquals(1, reopened.findCandidateMatches(record).size());
+    reopened.close();
+  }
+
+  private MapDBBlockingDatabase makeDatabase(Configuration config,
+                                             String file) {
+    MapDBBlockingDatabase db = new MapDBBlockingDatabase();
+    db.setConfiguration(config);
+    db.setOverwrite(false);
+    db.setFile(file);
+    db.setAsync(false); // slows down tests too much
+
+    Collection<KeyFunction> functions = new ArrayList();
+    functions.add(new TestKeyFunction());
+    db.setKeyFunctions(functions);
+    return db;
+  }
+
+  private Set<String> getIds(Collection<Record> records) {
+    Set<String> ids = new HashSet();
+    for (Record record : records)
+      ids.add(record.getValue("ID"));
+    return ids;
+  }
+
+  private String makeName(Random random) {
+    char[] chars = new char[1 + random.nextInt(5)];
+    for (int ix = 0; ix < chars.length; ix++)
+      chars[ix] = (char) ('a' + random.nextInt(5));
+    return new String(chars);
+  }
+
+  private static class TestKeyFunction implements KeyFunction {
+    public String makeKey(Record record) {
+      return record.getValue("NAME");
+    }
+  }
+}
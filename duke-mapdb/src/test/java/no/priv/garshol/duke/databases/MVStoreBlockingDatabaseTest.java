@@ -0,0 +1,48 @@
+package no.priv.garshol.duke.databases;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.junit.Test;
+
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.utils.TestUtils;
+
+import static junit.framework.Assert.assertEquals;
+
+public class MVStoreBlockingDatabaseTest extends DatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    MVStoreBlockingDatabase db = new MVStoreBlockingDatabase();
+    db.setConfiguration(config);
+
+    Collection<KeyFunction> functions = new ArrayList();
+    functions.add(new TestKeyFunction());
+    db.setKeyFunctions(functions);
+    return db;
+  }
+
+  @Test
+  public void testOffHeap() {
+    MVStoreBlockingDatabase db =
+      (MVStoreBlockingDatabase) createDatabase(config);
+    db.setOffHeap(true);
+    db.setWindowSize(0);
+    for (int ix = 0; ix < 1000; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "NAME", "name" + (ix % 10)));
+    db.commit();
+
+    assertEquals("name7", db.findRecordById("17").getValue("NAME"));
+    Record record = TestUtils.makeRecord("NAME", "name3");
+    assertEquals(100, db.findCandidateMatches(record).size());
+    db.close();
+  }
+
+  private static class TestKeyFunction implements KeyFunction {
+    public String makeKey(Record record) {
+      return record.getValue("NAME");
+    }
+  }
+}
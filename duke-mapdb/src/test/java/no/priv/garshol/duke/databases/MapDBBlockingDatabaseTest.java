@@ -1,12 +1,19 @@
 
 package no.priv.garshol.duke.databases;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 
 import no.priv.garshol.duke.Configuration;
 import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Processor;
 import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.utils.TestUtils;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 public class MapDBBlockingDatabaseTest extends DatabaseTest {
 
@@ -20,6 +27,49 @@ public class MapDBBlockingDatabaseTest extends DatabaseTest {
     return db;
   }
 
+  @Test
+  public void testIndexedRecords() throws IOException {
+    Processor processor = new Processor(config, db);
+    processor.setIndexedRecords(true);
+    TestUtils.TestListener listener = new TestUtils.TestListener();
+    processor.addMatchListener(listener);
+
+    Collection<Record> records = new ArrayList();
+    records.add(TestUtils.makeRecord("ID", "1", "NAME", "AND", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "2", "NAME", "AND", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "3", "NAME", "XYZ", "EMAIL", "BBBBB"));
+    processor.deduplicate(records);
+
+    assertEquals(2, listener.getMatches().size()); // 1-2 and 2-1
+    assertEquals("AND", db.findRecordById("1").getValue("NAME"));
+    processor.close();
+  }
+
+  @Test
+  public void testTwoPropertyKeyFunctions() {
+    KeyFunction name =
+      new PropertyKeyFunction("NAME", PropertyKeyFunction.Part.FIRST, 0);
+    KeyFunction email =
+      new PropertyKeyFunction("EMAIL", PropertyKeyFunction.Part.VALUE, 0);
+    Collection<KeyFunction> functions = new ArrayList();
+    functions.add(name);
+    functions.add(email);
+
+    MapDBBlockingDatabase db = new MapDBBlockingDatabase();
+    db.setConfiguration(config);
+    db.setKeyFunctions(functions);
+    db.index(TestUtils.makeRecord("ID", "1", "NAME", "foo bar", "EMAIL", "x"));
+    db.index(TestUtils.makeRecord("ID", "2", "NAME", "zzz", "EMAIL", "foo"));
+    db.commit();
+
+    // each key function must have blocks of its own
+    assertEquals(2, db.getBlocks(name).size()); // foo, zzz
+    assertEquals(2, db.getBlocks(email).size()); // foo, x
+    assertTrue(db.getBlocks(name).containsKey("zzz"));
+    assertTrue(db.getBlocks(email).containsKey("x"));
+    db.close();
+  }
+
   private static class TestKeyFunction implements KeyFunction {
     public String makeKey(Record record) {
       return record.getValue("NAME");
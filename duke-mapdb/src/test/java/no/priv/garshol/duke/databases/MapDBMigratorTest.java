@@ -0,0 +1,104 @@
+package no.priv.garshol.duke.databases;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import no.priv.garshol.duke.ConfigurationImpl;
+import no.priv.garshol.duke.DukeException;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.comparators.ExactComparator;
+import no.priv.garshol.duke.utils.TestUtils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+public class MapDBMigratorTest {
+  @Rule
+  public TemporaryFolder tmpdir = new TemporaryFolder();
+
+  @Test
+  public void testMigrate() throws IOException {
+    checkMigrate(false);
+  }
+
+  @Test
+  public void testMigrateCompressed() throws IOException {
+    checkMigrate(true);
+  }
+
+  @Test
+  public void testTargetExists() throws IOException {
+    try {
+      MapDBMigrator.migrate(tmpdir.newFile(), tmpdir.newFile());
+      fail("overwrote existing file");
+    } catch (DukeException e) {
+      // this is what we expect
+    }
+  }
+
+  private void checkMigrate(boolean compression) throws IOException {
+    ConfigurationImpl config = makeConfig();
+    File from = new File(tmpdir.getRoot(), "mapdb");
+    File to = new File(tmpdir.getRoot(), "mvstore");
+
+    MapDBBlockingDatabase mapdb = new MapDBBlockingDatabase();
+    setup(mapdb, config);
+    mapdb.setFile(from.getPath());
+    mapdb.setAsync(false);
+    mapdb.setCompression(compression);
+    for (int ix = 0; ix < 100; ix++)
+      mapdb.index(TestUtils.makeRecord("ID", "" + ix,
+                                       "NAME", "name" + (ix % 10)));
+    mapdb.close();
+
+    assertEquals(100, MapDBMigrator.migrate(from, to, compression));
+
+    MVStoreBlockingDatabase mvstore = new MVStoreBlockingDatabase();
+    setup(mvstore, config);
+    mvstore.setFile(to.getPath());
+    assertEquals("name5", mvstore.findRecordById("25").getValue("NAME"));
+
+    Record record = TestUtils.makeRecord("NAME", "name5");
+    Set<String> ids = new HashSet();
+    for (Record candidate : mvstore.findCandidateMatches(record))
+      ids.add(candidate.getValue("ID"));
+    assertEquals(10, ids.size());
+    for (int ix = 5; ix < 100; ix += 10)
+      assertEquals(true, ids.contains("" + ix));
+    mvstore.close();
+  }
+
+  private void setup(AbstractBlockingDatabase db, ConfigurationImpl config) {
+    db.setConfiguration(config);
+    db.setWindowSize(0);
+    Collection<KeyFunction> functions = new ArrayList();
+    functions.add(new TestKeyFunction());
+    db.setKeyFunctions(functions);
+  }
+
+  private ConfigurationImpl makeConfig() {
+    ExactComparator comp = new ExactComparator();
+    Collection<Property> props = new ArrayList();
+    props.add(new PropertyImpl("ID"));
+    props.add(new PropertyImpl("NAME", comp, 0.3, 0.8));
+    ConfigurationImpl config = new ConfigurationImpl();
+    config.setProperties(new ArrayList(props));
+    return config;
+  }
+
+  private static class TestKeyFunction implements KeyFunction {
+    public String makeKey(Record record) {
+      return record.getValue("NAME");
+    }
+  }
+}